@@ -0,0 +1,146 @@
+package com.elmakers.mine.bukkit.data;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The column layout of a set of rows, shared by every row read at the same
+ * time.
+ * 
+ * Rows using a DataColumns layout store their values in a plain array, indexed
+ * by column, instead of keeping a DataField and a map entry for every value.
+ * 
+ * Numeric columns are flagged, so that rows can read them as primitives
+ * rather than boxing each value.
+ * 
+ * @author NathanWolf
+ * 
+ */
+public class DataColumns
+{
+    protected final Map<String, Integer> indexes;
+    protected final String[]             names;
+    protected final boolean              numbers;
+    protected final boolean[]            numeric;
+    protected final DataType[]           types;
+
+    /**
+     * Check whether values of a type can be held as a primitive number.
+     * 
+     * @param type
+     *            The column type
+     * @return true for integer and floating point types
+     */
+    public static boolean isNumeric(DataType type)
+    {
+        switch (type)
+        {
+            case BYTE:
+            case DOUBLE:
+            case FLOAT:
+            case INTEGER:
+            case LONG:
+                return true;
+        }
+        return false;
+    }
+
+    public DataColumns(List<String> names, List<DataType> types)
+    {
+        int columnCount = names.size();
+        this.names = names.toArray(new String[columnCount]);
+        this.types = types.toArray(new DataType[columnCount]);
+        this.indexes = new HashMap<String, Integer>(columnCount * 2);
+        this.numeric = new boolean[columnCount];
+        boolean hasNumbers = false;
+        for (int i = 0; i < columnCount; i++)
+        {
+            numeric[i] = isNumeric(this.types[i]);
+            hasNumbers = hasNumbers || numeric[i];
+
+            // Use the first column if a name is repeated
+            if (!indexes.containsKey(this.names[i]))
+            {
+                indexes.put(this.names[i], i);
+            }
+        }
+        this.numbers = hasNumbers;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (o == this)
+        {
+            return true;
+        }
+        if (!(o instanceof DataColumns))
+        {
+            return false;
+        }
+        DataColumns other = (DataColumns) o;
+        return Arrays.equals(names, other.names) && Arrays.equals(types, other.types);
+    }
+
+    /**
+     * Find a column by name.
+     * 
+     * @param columnName
+     *            The name of the column
+     * @return The column's index, or -1 if there is no such column
+     */
+    public int getIndex(String columnName)
+    {
+        Integer index = indexes.get(columnName);
+        if (index == null)
+        {
+            return -1;
+        }
+        return index;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Arrays.hashCode(names);
+    }
+
+    public String getName(int index)
+    {
+        return names[index];
+    }
+
+    public DataType getType(int index)
+    {
+        return types[index];
+    }
+
+    public boolean hasNumbers()
+    {
+        return numbers;
+    }
+
+    /**
+     * Check whether a column holds floating point numbers.
+     * 
+     * @param index
+     *            The column index
+     * @return true for double and float columns
+     */
+    public boolean isFloatingPoint(int index)
+    {
+        return types[index] == DataType.DOUBLE || types[index] == DataType.FLOAT;
+    }
+
+    public boolean isNumeric(int index)
+    {
+        return numeric[index];
+    }
+
+    public int size()
+    {
+        return names.length;
+    }
+}
@@ -0,0 +1,318 @@
+package com.elmakers.mine.bukkit.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A selective read of a table: conditions on columns, ordering, and a limit.
+ * 
+ * SQL stores turn a query into a parameterized SELECT, so only the matching
+ * rows are read. Other stores load the whole table and use matches() and
+ * apply() to filter it in memory.
+ * 
+ * Condition values are given as Java values- a Date or an enum, for instance-
+ * and are converted to the store's own format by the store.
+ * 
+ * @author NathanWolf
+ * 
+ */
+public class DataQuery
+{
+    public static class Condition
+    {
+        protected final String   column;
+        protected final Operator operator;
+        protected final DataType type;
+        protected final Object   value;
+
+        public Condition(String column, DataType type, Operator operator, Object value)
+        {
+            this.column = column;
+            this.type = type;
+            this.operator = operator;
+            this.value = value;
+        }
+
+        public String getColumn()
+        {
+            return column;
+        }
+
+        public Operator getOperator()
+        {
+            return operator;
+        }
+
+        public DataType getType()
+        {
+            return type;
+        }
+
+        public Object getValue()
+        {
+            return value;
+        }
+    }
+
+    public enum Operator
+    {
+        EQUAL("="), GREATER(">"), GREATER_OR_EQUAL(">="), LESS("<"), LESS_OR_EQUAL("<="), NOT_EQUAL("<>");
+
+        private final String sql;
+
+        private Operator(String sql)
+        {
+            this.sql = sql;
+        }
+
+        public String getSql()
+        {
+            return sql;
+        }
+
+        /**
+         * Check a value against a condition, the same way SQL would.
+         * 
+         * A null target matches null values for EQUAL, and non-null values
+         * for NOT_EQUAL. Otherwise, null never matches.
+         * 
+         * @param value
+         *            The value to check
+         * @param target
+         *            The value from the condition
+         * @return true if the value matches
+         */
+        public boolean matches(Object value, Object target)
+        {
+            if (target == null)
+            {
+                switch (this)
+                {
+                    case EQUAL:
+                        return value == null;
+                    case NOT_EQUAL:
+                        return value != null;
+                }
+                return false;
+            }
+            if (value == null)
+            {
+                return false;
+            }
+
+            value = DataType.convertValue(value, target.getClass());
+            switch (this)
+            {
+                case EQUAL:
+                    return value.equals(target);
+                case NOT_EQUAL:
+                    return !value.equals(target);
+                case GREATER:
+                    return compare(value, target) > 0;
+                case GREATER_OR_EQUAL:
+                    return compare(value, target) >= 0;
+                case LESS:
+                    return compare(value, target) < 0;
+                case LESS_OR_EQUAL:
+                    return compare(value, target) <= 0;
+            }
+            return false;
+        }
+    }
+
+    public static class Order
+    {
+        protected final boolean ascending;
+        protected final String  column;
+
+        public Order(String column, boolean ascending)
+        {
+            this.column = column;
+            this.ascending = ascending;
+        }
+
+        public String getColumn()
+        {
+            return column;
+        }
+
+        public boolean isAscending()
+        {
+            return ascending;
+        }
+    }
+
+    /**
+     * Compare two values, sorting nulls first the way SQL stores do.
+     * 
+     * Values that aren't Comparable are only checked for equality, and
+     * otherwise sort as equal.
+     * 
+     * @param value
+     *            The first value
+     * @param other
+     *            The value to compare to
+     * @return Less than, equal to or greater than zero, as with compareTo
+     */
+    @SuppressWarnings("unchecked")
+    public static int compare(Object value, Object other)
+    {
+        if (value == null || other == null)
+        {
+            return value == null ? (other == null ? 0 : -1) : 1;
+        }
+        if (!(value instanceof Comparable))
+        {
+            return 0;
+        }
+        other = DataType.convertValue(other, value.getClass());
+        return ((Comparable<Object>) value).compareTo(other);
+    }
+
+    protected final List<String>    columns    = new ArrayList<String>();
+    protected final List<Condition> conditions = new ArrayList<Condition>();
+    protected int                   limit      = -1;
+    protected int                   offset     = 0;
+    protected final List<Order>     orders     = new ArrayList<Order>();
+
+    /**
+     * Filter, sort and limit a list of rows in memory.
+     * 
+     * Columns are not projected, the rows keep all of their fields.
+     * 
+     * @param rows
+     *            The rows to filter
+     * @return The rows that match this query, in order
+     */
+    public List<DataRow> apply(List<DataRow> rows)
+    {
+        List<DataRow> results = new ArrayList<DataRow>();
+        for (DataRow row : rows)
+        {
+            if (matches(row))
+            {
+                results.add(row);
+            }
+        }
+
+        if (orders.size() > 0)
+        {
+            Collections.sort(results, new Comparator<DataRow>()
+            {
+                public int compare(DataRow row, DataRow other)
+                {
+                    for (Order order : orders)
+                    {
+                        int comparison = DataQuery.compare(row.getValue(order.column), other.getValue(order.column));
+                        if (comparison != 0)
+                        {
+                            return order.ascending ? comparison : -comparison;
+                        }
+                    }
+                    return 0;
+                }
+            });
+        }
+
+        int start = Math.min(offset, results.size());
+        int end = limit < 0 ? results.size() : Math.min(results.size(), start + limit);
+        return new ArrayList<DataRow>(results.subList(start, end));
+    }
+
+    public List<String> getColumns()
+    {
+        return columns;
+    }
+
+    public List<Condition> getConditions()
+    {
+        return conditions;
+    }
+
+    public int getLimit()
+    {
+        return limit;
+    }
+
+    public int getOffset()
+    {
+        return offset;
+    }
+
+    public List<Order> getOrders()
+    {
+        return orders;
+    }
+
+    /**
+     * Only read up to a number of rows.
+     * 
+     * @param limit
+     *            The maximum number of rows, or -1 for no limit
+     * @return This query
+     */
+    public DataQuery limit(int limit)
+    {
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * Check a row against this query's conditions.
+     * 
+     * @param row
+     *            The row to check
+     * @return true if the row matches every condition
+     */
+    public boolean matches(DataRow row)
+    {
+        for (Condition condition : conditions)
+        {
+            if (!condition.operator.matches(row.getValue(condition.column), condition.value))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Skip a number of rows, after sorting.
+     * 
+     * @param offset
+     *            The number of rows to skip
+     * @return This query
+     */
+    public DataQuery offset(int offset)
+    {
+        this.offset = offset;
+        return this;
+    }
+
+    public DataQuery orderBy(String column, boolean ascending)
+    {
+        orders.add(new Order(column, ascending));
+        return this;
+    }
+
+    /**
+     * Only read some columns. If no columns are selected, all are read.
+     * 
+     * @param column
+     *            The column to read
+     * @return This query
+     */
+    public DataQuery select(String column)
+    {
+        columns.add(column);
+        return this;
+    }
+
+    public DataQuery where(String column, DataType type, Operator operator, Object value)
+    {
+        conditions.add(new Condition(column, type, operator, value));
+        return this;
+    }
+}
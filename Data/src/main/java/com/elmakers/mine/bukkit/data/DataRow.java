@@ -8,6 +8,14 @@ import java.util.logging.Logger;
 /**
  * Used to represent a single row of data from a data store.
  * 
+ * Rows built up for writing keep a DataField for each value. Rows read from a
+ * store may instead share a DataColumns layout with the rest of their rows,
+ * and keep only an array of values- get() and getFields() still work on these
+ * rows, creating DataFields as needed.
+ * 
+ * Numeric values of array-backed rows can be held in a primitive array, and
+ * read with getInt(), getLong() and getDouble() without being boxed.
+ * 
  * @author NathanWolf
  * 
  */
@@ -15,12 +23,21 @@ public class DataRow
 {
     protected static Logger              log      = DataStore.getLogger();
 
-    protected HashMap<String, DataField> fieldMap = new HashMap<String, DataField>();
+    // Marks a value that is held in the numbers array
+    protected static final Object        NUMBER   = new Object();
+
+    protected DataColumns                columns  = null;
+
+    protected HashMap<String, DataField> fieldMap = null;
 
-    protected List<DataField>            fields   = new ArrayList<DataField>();
+    protected List<DataField>            fields   = null;
+
+    protected long[]                     numbers  = null;
 
     protected DataTable                  table;
 
+    protected Object[]                   values   = null;
+
     /**
      * Create an empty DataRow.
      * 
@@ -30,6 +47,49 @@ public class DataRow
     public DataRow(DataTable dataTable)
     {
         this.table = dataTable;
+        this.fieldMap = new HashMap<String, DataField>();
+        this.fields = new ArrayList<DataField>();
+    }
+
+    /**
+     * Create a DataRow that holds its values in an array.
+     * 
+     * This is used when reading many rows with the same columns.
+     * 
+     * @param dataTable
+     *            The table this row belongs to
+     * @param columns
+     *            The shared column layout
+     * @param values
+     *            The values of this row, one per column
+     */
+    public DataRow(DataTable dataTable, DataColumns columns, Object[] values)
+    {
+        this(dataTable, columns, values, null);
+    }
+
+    /**
+     * Create a DataRow that holds its values in arrays.
+     * 
+     * Numeric values may be held in the numbers array, with the NUMBER marker
+     * in their place in the values array. Floating point numbers are held as
+     * their raw long bits.
+     * 
+     * @param dataTable
+     *            The table this row belongs to
+     * @param columns
+     *            The shared column layout
+     * @param values
+     *            The values of this row, one per column
+     * @param numbers
+     *            Numeric values of this row, or null if there are none
+     */
+    protected DataRow(DataTable dataTable, DataColumns columns, Object[] values, long[] numbers)
+    {
+        this.table = dataTable;
+        this.columns = columns;
+        this.values = values;
+        this.numbers = numbers;
     }
 
     /**
@@ -43,6 +103,8 @@ public class DataRow
      */
     public void add(DataField newField)
     {
+        expand();
+
         String fieldName = newField.getName();
         if (fieldName == null || fieldName.length() <= 0)
         {
@@ -66,6 +128,35 @@ public class DataRow
         fields.add(newField);
     }
 
+    protected DataField createField(int index)
+    {
+        DataField field = new DataField(columns.getName(index), columns.getType(index), getValue(index));
+        field.setIdField(table != null && table.getIdFieldNames().contains(field.getName()));
+        return field;
+    }
+
+    /**
+     * Switch an array-backed row to keeping its own fields, so that more
+     * fields can be added.
+     */
+    protected void expand()
+    {
+        if (values == null)
+        {
+            return;
+        }
+
+        fields = getFields();
+        fieldMap = new HashMap<String, DataField>();
+        for (DataField field : fields)
+        {
+            fieldMap.put(field.getName(), field);
+        }
+        values = null;
+        numbers = null;
+        columns = null;
+    }
+
     /**
      * Retrieve a data field from this row by name.
      * 
@@ -75,12 +166,50 @@ public class DataRow
      */
     public DataField get(String columnName)
     {
+        if (values != null)
+        {
+            int index = columns.getIndex(columnName);
+            return index < 0 ? null : createField(index);
+        }
         return fieldMap.get(columnName);
     }
 
+    /**
+     * Get the shared column layout of this row.
+     * 
+     * @return The column layout, or null if this row keeps its own fields
+     */
+    public DataColumns getColumns()
+    {
+        return columns;
+    }
+
+    /**
+     * Read a numeric value as a double, without boxing it.
+     * 
+     * Only valid for rows with a column layout, and for values where
+     * isNumber() is true.
+     * 
+     * @param index
+     *            The column index
+     * @return The value
+     */
+    public double getDouble(int index)
+    {
+        if (values[index] != NUMBER)
+        {
+            return ((Number) values[index]).doubleValue();
+        }
+        if (columns.isFloatingPoint(index))
+        {
+            return Double.longBitsToDouble(numbers[index]);
+        }
+        return numbers[index];
+    }
+
     public DataField getField(String fieldName)
     {
-        return fieldMap.get(fieldName);
+        return get(fieldName);
     }
 
     /**
@@ -90,9 +219,106 @@ public class DataRow
      */
     public final List<DataField> getFields()
     {
+        if (values != null)
+        {
+            List<DataField> rowFields = new ArrayList<DataField>(values.length);
+            for (int i = 0; i < values.length; i++)
+            {
+                rowFields.add(createField(i));
+            }
+            return rowFields;
+        }
         return fields;
     }
 
+    /**
+     * Read a numeric value as an int, without boxing it.
+     * 
+     * @param index
+     *            The column index
+     * @return The value
+     * @see #getDouble(int)
+     */
+    public int getInt(int index)
+    {
+        return (int) getLong(index);
+    }
+
+    /**
+     * Read a numeric value as a long, without boxing it.
+     * 
+     * @param index
+     *            The column index
+     * @return The value
+     * @see #getDouble(int)
+     */
+    public long getLong(int index)
+    {
+        if (values[index] != NUMBER)
+        {
+            return ((Number) values[index]).longValue();
+        }
+        if (columns.isFloatingPoint(index))
+        {
+            return (long) Double.longBitsToDouble(numbers[index]);
+        }
+        return numbers[index];
+    }
+
+    /**
+     * Get a value by column index.
+     * 
+     * Only valid for rows with a column layout.
+     * 
+     * @param index
+     *            The column index
+     * @return The value
+     * @see #getColumns()
+     */
+    public Object getValue(int index)
+    {
+        Object value = values[index];
+        if (value != NUMBER)
+        {
+            return value;
+        }
+
+        // Box numbers the way the driver would have
+        long number = numbers[index];
+        switch (columns.getType(index))
+        {
+            case DOUBLE:
+            case FLOAT:
+                return Double.longBitsToDouble(number);
+            case LONG:
+                return number;
+        }
+        if (number >= Integer.MIN_VALUE && number <= Integer.MAX_VALUE)
+        {
+            return (int) number;
+        }
+        return number;
+    }
+
+    /**
+     * Get a value by column name, without creating a DataField.
+     * 
+     * @param columnName
+     *            The name of the column
+     * @return The value, or null if it is null or missing
+     */
+    public Object getValue(String columnName)
+    {
+        if (values != null)
+        {
+            int index = columns.getIndex(columnName);
+            return index < 0 ? null : getValue(index);
+        }
+
+        DataField field = fieldMap.get(columnName);
+        return field == null ? null : field.getValue();
+    }
+
     /**
      * Get the table for this row.
      * 
@@ -103,9 +329,23 @@ public class DataRow
         return table;
     }
 
+    /**
+     * Check whether a value is a number that can be read with getInt(),
+     * getLong() or getDouble().
+     * 
+     * @param index
+     *            The column index
+     * @return false if the value is null, or not a number
+     */
+    public boolean isNumber(int index)
+    {
+        Object value = values[index];
+        return value == NUMBER || value instanceof Number;
+    }
+
     public boolean isMigrationRequired(DataRow storeTableHeader)
     {
-        for (DataField field : fields)
+        for (DataField field : getFields())
         {
             DataField storeField = storeTableHeader.getField(field.getName());
 
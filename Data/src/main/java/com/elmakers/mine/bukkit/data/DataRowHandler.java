@@ -0,0 +1,26 @@
+package com.elmakers.mine.bukkit.data;
+
+import com.elmakers.com.bukkit.data.exception.InvalidDataException;
+
+/**
+ * Receives rows one at a time as they are read from a data store.
+ * 
+ * Rows passed to a handler are not added to their table, and are only valid
+ * until the handler returns- copy out anything you need to keep.
+ * 
+ * @author NathanWolf
+ * 
+ */
+public interface DataRowHandler
+{
+    /**
+     * Handle a single row.
+     * 
+     * @param row
+     *            The row that was read
+     * @return false to stop reading rows
+     * @throws InvalidDataException
+     *             If the row could not be used, this stops the load
+     */
+    public boolean handle(DataRow row) throws InvalidDataException;
+}
@@ -3,6 +3,8 @@ package com.elmakers.mine.bukkit.data;
 import java.util.List;
 import java.util.logging.Logger;
 
+import com.elmakers.com.bukkit.data.exception.InvalidDataException;
+
 /**
  * An abstract class representing a data store.
  * 
@@ -43,6 +45,23 @@ public abstract class DataStore
         this.schema = schema;
     }
 
+    /**
+     * Begin a transaction.
+     * 
+     * All writes made until the matching commit or rollback are applied
+     * together. Transactions may be nested- only the outermost commit writes
+     * to the store, and a rollback at any level rolls back the whole
+     * transaction.
+     * 
+     * Stores that don't support transactions write immediately.
+     * 
+     * @return true if success
+     */
+    public boolean beginTransaction()
+    {
+        return true;
+    }
+
     /**
      * Clear a table, except for the objects contained in the specified
      * DataTable
@@ -72,6 +91,17 @@ public abstract class DataStore
      */
     public abstract boolean clearIds(DataTable table, List<Object> ids);
 
+    /**
+     * Commit the current transaction.
+     * 
+     * @return true if success, false if the transaction was rolled back
+     * @see #beginTransaction()
+     */
+    public boolean commit()
+    {
+        return true;
+    }
+
     /**
      * Connect to the data store represented by this store's schema
      * 
@@ -84,6 +114,38 @@ public abstract class DataStore
 
     }
 
+    /**
+     * Count the rows of a table that match a query.
+     * 
+     * The default implementation loads the whole table and counts in memory,
+     * stores that can count rows themselves should override this.
+     * 
+     * @param table
+     *            The table to count. No rows are added to it.
+     * @param query
+     *            The conditions to match- ordering and limits are ignored
+     * @return The number of matching rows, or -1 on error
+     */
+    public int count(DataTable table, DataQuery query)
+    {
+        if (!load(table))
+        {
+            return -1;
+        }
+
+        List<DataRow> rows = table.getRows();
+        int count = 0;
+        for (DataRow row : rows)
+        {
+            if (query.matches(row))
+            {
+                count++;
+            }
+        }
+        rows.clear();
+        return count;
+    }
+
     /**
      * Will attempt to create a table- check to see if the table exists before
      * calling this.
@@ -111,6 +173,30 @@ public abstract class DataStore
      */
     public abstract boolean drop(String tableName);
 
+    /**
+     * Get the most connections this store will have open at once.
+     * 
+     * Each thread using the store holds its own connection, so this limits
+     * how many threads can use it at the same time.
+     * 
+     * @return The connection limit, or 0 for no limit
+     */
+    public int getMaxConnections()
+    {
+        return 0;
+    }
+
+    /**
+     * Find the largest value of a table's primary id.
+     * 
+     * This is used to pick up auto-generated ids without loading the table.
+     * 
+     * @param table
+     *            The table to check, with its id field name set
+     * @return The largest id in the table, or 0 if the table is empty
+     */
+    public abstract long getMaxId(DataTable table);
+
     /**
      * Return the table header (column definitions) without querying the table
      * for data.
@@ -158,6 +244,118 @@ public abstract class DataStore
      */
     public abstract boolean load(DataTable table);
 
+    /**
+     * Read a table one row at a time, without keeping the rows in memory.
+     * 
+     * The default implementation loads the whole table first, stores that
+     * can stream rows should override this.
+     * 
+     * @param table
+     *            The table to read. No rows are added to it.
+     * @param handler
+     *            The handler to pass each row to
+     * @return true if success
+     * @throws InvalidDataException
+     *             If the handler rejected a row
+     */
+    public boolean load(DataTable table, DataRowHandler handler) throws InvalidDataException
+    {
+        if (!load(table))
+        {
+            return false;
+        }
+
+        List<DataRow> rows = table.getRows();
+        try
+        {
+            for (DataRow row : rows)
+            {
+                if (!handler.handle(row))
+                {
+                    break;
+                }
+            }
+        }
+        finally
+        {
+            rows.clear();
+        }
+        return true;
+    }
+
+    /**
+     * Load the rows of a table that match a query.
+     * 
+     * The default implementation loads the whole table and filters it in
+     * memory, stores that can run queries themselves should override this.
+     * 
+     * @param table
+     *            The table to load the matching rows into
+     * @param query
+     *            The query to run
+     * @return true if success
+     */
+    public boolean load(DataTable table, DataQuery query)
+    {
+        if (!load(table))
+        {
+            return false;
+        }
+
+        List<DataRow> rows = table.getRows();
+        List<DataRow> results = query.apply(rows);
+        rows.clear();
+        rows.addAll(results);
+        return true;
+    }
+
+    /**
+     * Release any connection held for the calling thread.
+     * 
+     * Threads that only use the store now and then should call this when
+     * they are done, so their connection can be reused.
+     */
+    public void release()
+    {
+    }
+
+    /**
+     * Delete specific rows from a table.
+     * 
+     * Each row is matched on the table's id fields, other fields are ignored.
+     * 
+     * @param table
+     *            The rows to delete, with the table's id field names set
+     * @return true if success
+     */
+    public abstract boolean remove(DataTable table);
+
+    /**
+     * Roll back the current transaction, discarding all writes made since it
+     * began.
+     * 
+     * @return true if success
+     * @see #beginTransaction()
+     */
+    public boolean rollback()
+    {
+        return true;
+    }
+
+    /**
+     * Load the rows of a table matching a set of ids.
+     * 
+     * Rows are matched on the first id field of the table, so this can be used
+     * to load objects by id, or to load the list data for a set of objects.
+     * 
+     * @param table
+     *            The table to load into, with its id field name set
+     * @param ids
+     *            The ids of the rows to load
+     * @return true if success
+     */
+    public abstract boolean loadIds(DataTable table, List<Object> ids);
+
     /**
      * Save a table to the data store.
      * 
@@ -169,6 +367,20 @@ public abstract class DataStore
      */
     public abstract boolean save(DataTable table);
 
+    /**
+     * Update existing rows in a table.
+     * 
+     * Each row holds the table's id fields, used to find the row to update,
+     * plus only the fields to change. Rows may change different fields.
+     * 
+     * Assumes that the table and rows already exist.
+     * 
+     * @param table
+     *            The rows to update, with the table's id field names set
+     * @return true if success
+     */
+    public abstract boolean update(DataTable table);
+
     /**
      * Check to see if the specified table exists.
      * 
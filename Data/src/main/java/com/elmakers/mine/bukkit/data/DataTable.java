@@ -5,6 +5,8 @@ import java.util.List;
 
 public class DataTable
 {
+    protected DataColumns   columns      = null;
+
     protected List<String>  idFieldNames = new ArrayList<String>();
 
     protected String        name;
@@ -40,6 +42,16 @@ public class DataTable
         rows.add(headerRow);
     }
 
+    /**
+     * Get the column layout shared by rows read into this table.
+     * 
+     * @return The shared layout, or null if no rows have been read
+     */
+    public DataColumns getColumns()
+    {
+        return columns;
+    }
+
     public DataRow getHeader()
     {
         if (rows.size() == 0)
@@ -65,6 +77,11 @@ public class DataTable
         return rows;
     }
 
+    public void setColumns(DataColumns columns)
+    {
+        this.columns = columns;
+    }
+
     public void setName(String name)
     {
         this.name = name;
@@ -315,6 +315,9 @@ public enum DataType
 
         switch (sqlType)
         {
+            case java.sql.Types.BIGINT:
+                dataType = DataType.LONG;
+                break;
             case java.sql.Types.BOOLEAN:
                 dataType = DataType.BOOLEAN;
                 break;
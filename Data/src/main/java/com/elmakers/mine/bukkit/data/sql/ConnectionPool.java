@@ -0,0 +1,468 @@
+package com.elmakers.mine.bukkit.data.sql;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Logger;
+
+import com.elmakers.mine.bukkit.data.DataStore;
+
+/**
+ * A small pool of JDBC connections to a single database.
+ * 
+ * Connections that have been idle for a while are checked with a validation
+ * query before they are handed out, and connections that stay idle past the
+ * idle timeout are closed.
+ * 
+ * A background timer keeps the idle connections alive by validating them
+ * every so often. This closes connections the server has dropped, such as
+ * MySQL's wait_timeout, before anyone needs them- rather than making the
+ * next caller wait on a reconnect.
+ * 
+ * The timer also takes back borrowed connections whose thread has died, or
+ * hasn't used them for a while, without releasing them. These are closed,
+ * since they may have been left in the middle of a transaction.
+ * 
+ * @author NathanWolf
+ * 
+ */
+public class ConnectionPool
+{
+    protected static Logger                      log                = DataStore.getLogger();
+
+    protected static Timer                       maintenanceTimer   = null;
+
+    protected long                               abandonedTimeout   = 10 * 60 * 1000;
+    protected final Set<PooledConnection>        borrowed           = new HashSet<PooledConnection>();
+    protected long                               borrowTimeout      = 30000;
+    protected boolean                            closed             = false;
+    protected final String                       connectionString;
+    protected final LinkedList<PooledConnection> idle               = new LinkedList<PooledConnection>();
+    protected long                               idleTimeout        = 5 * 60 * 1000;
+    protected TimerTask                          maintenanceTask    = null;
+    protected int                                maxSize            = 4;
+    protected int                                openCount          = 0;
+    protected long                               validationInterval = 30000;
+    protected String                             validationQuery    = "SELECT 1";
+
+    protected static synchronized Timer getMaintenanceTimer()
+    {
+        if (maintenanceTimer == null)
+        {
+            maintenanceTimer = new Timer("Persistence Connection Pool", true);
+        }
+        return maintenanceTimer;
+    }
+
+    public ConnectionPool(String connectionString)
+    {
+        this.connectionString = connectionString;
+    }
+
+    /**
+     * Get a connection from the pool, opening a new one if none are idle.
+     * 
+     * If the pool is at its maximum size, this waits for another thread to
+     * release a connection.
+     * 
+     * @return A valid connection
+     * @throws SQLException
+     *             If a connection could not be opened, or none became
+     *             available in time
+     */
+    public PooledConnection borrow() throws SQLException
+    {
+        long deadline = System.currentTimeMillis() + borrowTimeout;
+        while (true)
+        {
+            PooledConnection pooled = null;
+            synchronized (this)
+            {
+                while (!closed && idle.size() == 0 && openCount >= maxSize)
+                {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0)
+                    {
+                        throw new SQLException("Persistence: Timed out waiting for a connection, " + openCount + " in use");
+                    }
+                    try
+                    {
+                        wait(remaining);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Persistence: Interrupted waiting for a connection");
+                    }
+                }
+
+                if (closed)
+                {
+                    throw new SQLException("Persistence: Connection pool is closed");
+                }
+
+                if (idle.size() > 0)
+                {
+                    // Most recently used first, so the rest can time out
+                    pooled = idle.removeFirst();
+                }
+                else
+                {
+                    openCount++;
+                }
+            }
+
+            if (pooled == null)
+            {
+                return lend(open());
+            }
+
+            if (validate(pooled))
+            {
+                return lend(pooled);
+            }
+            discard(pooled);
+        }
+    }
+
+    /**
+     * Close all idle connections, and stop handing out new ones.
+     * 
+     * Connections that are in use are closed when they are released.
+     */
+    public void close()
+    {
+        List<PooledConnection> closing = null;
+        synchronized (this)
+        {
+            closed = true;
+            if (maintenanceTask != null)
+            {
+                maintenanceTask.cancel();
+                maintenanceTask = null;
+            }
+            closing = new ArrayList<PooledConnection>(idle);
+            idle.clear();
+            openCount -= closing.size();
+            notifyAll();
+        }
+
+        for (PooledConnection pooled : closing)
+        {
+            pooled.close();
+        }
+    }
+
+    /**
+     * Close a connection that is broken or no longer needed, instead of
+     * returning it to the pool.
+     * 
+     * @param pooled
+     *            A connection borrowed from this pool
+     */
+    public void discard(PooledConnection pooled)
+    {
+        pooled.close();
+        synchronized (this)
+        {
+            borrowed.remove(pooled);
+            pooled.setOwner(null);
+            openCount--;
+            notifyAll();
+        }
+    }
+
+    public long getAbandonedTimeout()
+    {
+        return abandonedTimeout;
+    }
+
+    public synchronized int getBorrowedCount()
+    {
+        return borrowed.size();
+    }
+
+    public long getBorrowTimeout()
+    {
+        return borrowTimeout;
+    }
+
+    public synchronized int getIdleCount()
+    {
+        return idle.size();
+    }
+
+    public long getIdleTimeout()
+    {
+        return idleTimeout;
+    }
+
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    public synchronized int getOpenCount()
+    {
+        return openCount;
+    }
+
+    public long getValidationInterval()
+    {
+        return validationInterval;
+    }
+
+    public String getValidationQuery()
+    {
+        return validationQuery;
+    }
+
+    /**
+     * Close connections that have been idle too long, and validate the rest
+     * if they haven't been used recently. Borrowed connections that have been
+     * abandoned are taken back and closed.
+     * 
+     * This is run periodically in the background once the pool is started.
+     */
+    public void maintain()
+    {
+        long now = System.currentTimeMillis();
+        List<PooledConnection> expired = new ArrayList<PooledConnection>();
+        List<PooledConnection> checking = new ArrayList<PooledConnection>();
+        List<PooledConnection> abandoned = new ArrayList<PooledConnection>();
+        synchronized (this)
+        {
+            Iterator<PooledConnection> it = idle.iterator();
+            while (it.hasNext())
+            {
+                PooledConnection pooled = it.next();
+                long idleTime = pooled.getIdleTime(now);
+                if (idleTime >= idleTimeout)
+                {
+                    it.remove();
+                    expired.add(pooled);
+                }
+                else if (idleTime >= validationInterval)
+                {
+                    // Take it out of the pool while checking it
+                    it.remove();
+                    checking.add(pooled);
+                }
+            }
+
+            it = borrowed.iterator();
+            while (it.hasNext())
+            {
+                PooledConnection pooled = it.next();
+                if (pooled.reclaim(now, abandonedTimeout))
+                {
+                    it.remove();
+                    abandoned.add(pooled);
+                }
+            }
+        }
+
+        if (abandoned.size() > 0)
+        {
+            log.info("Persistence: Closing " + abandoned.size() + " connection(s) that were never released");
+        }
+        for (PooledConnection pooled : abandoned)
+        {
+            discard(pooled);
+        }
+
+        for (PooledConnection pooled : expired)
+        {
+            discard(pooled);
+        }
+
+        for (PooledConnection pooled : checking)
+        {
+            if (validate(pooled))
+            {
+                release(pooled);
+            }
+            else
+            {
+                discard(pooled);
+            }
+        }
+    }
+
+    /**
+     * Hand a connection to the calling thread.
+     */
+    protected PooledConnection lend(PooledConnection pooled)
+    {
+        pooled.setOwner(Thread.currentThread());
+        pooled.touch();
+        synchronized (this)
+        {
+            borrowed.add(pooled);
+        }
+        return pooled;
+    }
+
+    protected PooledConnection open() throws SQLException
+    {
+        try
+        {
+            return new PooledConnection(this, DriverManager.getConnection(connectionString));
+        }
+        catch (SQLException ex)
+        {
+            synchronized (this)
+            {
+                openCount--;
+                notifyAll();
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Return a connection to the pool.
+     * 
+     * @param pooled
+     *            A connection borrowed from this pool
+     */
+    public void release(PooledConnection pooled)
+    {
+        synchronized (this)
+        {
+            borrowed.remove(pooled);
+            pooled.setOwner(null);
+            if (!closed)
+            {
+                idle.addFirst(pooled);
+                notifyAll();
+                return;
+            }
+        }
+        discard(pooled);
+    }
+
+    /**
+     * Set how long a thread may keep a connection without using it before
+     * the pool takes it back.
+     * 
+     * @param abandonedTimeout
+     *            The time, in milliseconds
+     */
+    public void setAbandonedTimeout(long abandonedTimeout)
+    {
+        this.abandonedTimeout = abandonedTimeout;
+    }
+
+    public void setBorrowTimeout(long borrowTimeout)
+    {
+        this.borrowTimeout = borrowTimeout;
+    }
+
+    public void setIdleTimeout(long idleTimeout)
+    {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public void setMaxSize(int maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+
+    public void setValidationInterval(long validationInterval)
+    {
+        this.validationInterval = validationInterval;
+    }
+
+    public void setValidationQuery(String validationQuery)
+    {
+        this.validationQuery = validationQuery;
+    }
+
+    /**
+     * Start validating idle connections in the background.
+     */
+    public synchronized void start()
+    {
+        if (maintenanceTask != null || closed)
+        {
+            return;
+        }
+
+        long period = Math.max(1000, Math.min(idleTimeout, validationInterval) / 2);
+        maintenanceTask = new TimerTask()
+        {
+            @Override
+            public void run()
+            {
+                maintain();
+            }
+        };
+        getMaintenanceTimer().schedule(maintenanceTask, period, period);
+    }
+
+    /**
+     * Check that a connection is still usable.
+     * 
+     * Connections used recently are assumed to be fine, otherwise the
+     * validation query is run against them.
+     * 
+     * @param pooled
+     *            The connection to check
+     * @return true if the connection can be used
+     */
+    public boolean validate(PooledConnection pooled)
+    {
+        try
+        {
+            if (pooled.getConnection().isClosed())
+            {
+                return false;
+            }
+        }
+        catch (SQLException ex)
+        {
+            return false;
+        }
+
+        if (pooled.getIdleTime(System.currentTimeMillis()) < validationInterval)
+        {
+            return true;
+        }
+
+        Statement statement = null;
+        try
+        {
+            statement = pooled.getConnection().createStatement();
+            statement.execute(validationQuery);
+            pooled.touch();
+            return true;
+        }
+        catch (SQLException ex)
+        {
+            log.info("Persistence: Dropping stale connection: " + ex.getMessage());
+            return false;
+        }
+        finally
+        {
+            if (statement != null)
+            {
+                try
+                {
+                    statement.close();
+                }
+                catch (SQLException ex)
+                {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.elmakers.mine.bukkit.data.sql;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * A JDBC connection owned by a ConnectionPool.
+ * 
+ * Tracks when the connection was last used, so the pool knows when it needs
+ * to be checked before use, or closed for being idle too long. While it is
+ * borrowed, it also tracks the thread that borrowed it, so the pool can take
+ * it back if that thread dies or stops using it without releasing it.
+ * 
+ * @author NathanWolf
+ * 
+ */
+public class PooledConnection
+{
+    protected final Connection     connection;
+    protected long                 lastUsed;
+    protected Thread               owner = null;
+    protected final ConnectionPool pool;
+
+    public PooledConnection(ConnectionPool pool, Connection connection)
+    {
+        this.pool = pool;
+        this.connection = connection;
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Close the underlying connection, ignoring any errors.
+     */
+    public void close()
+    {
+        try
+        {
+            connection.close();
+        }
+        catch (SQLException ex)
+        {
+        }
+    }
+
+    public Connection getConnection()
+    {
+        return connection;
+    }
+
+    public long getIdleTime(long now)
+    {
+        return now - lastUsed;
+    }
+
+    public long getLastUsed()
+    {
+        return lastUsed;
+    }
+
+    public synchronized Thread getOwner()
+    {
+        return owner;
+    }
+
+    public ConnectionPool getPool()
+    {
+        return pool;
+    }
+
+    /**
+     * Take the connection away from its owner, if the owner has died or
+     * hasn't used it for a while.
+     * 
+     * @param now
+     *            The current time, in milliseconds
+     * @param timeout
+     *            How long the owner may go without using the connection
+     * @return true if the connection was taken back
+     */
+    public synchronized boolean reclaim(long now, long timeout)
+    {
+        if (owner == null || (owner.isAlive() && now - lastUsed < timeout))
+        {
+            return false;
+        }
+        owner = null;
+        return true;
+    }
+
+    public synchronized void setOwner(Thread owner)
+    {
+        this.owner = owner;
+    }
+
+    public synchronized void touch()
+    {
+        lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Mark the connection as used by a thread, if that thread still owns it.
+     * 
+     * Checking and touching at once means the pool can't reclaim the
+     * connection just as its owner starts using it again.
+     * 
+     * @param thread
+     *            The thread using the connection
+     * @return false if the thread no longer owns this connection
+     */
+    public synchronized boolean touch(Thread thread)
+    {
+        if (owner != thread)
+        {
+            return false;
+        }
+        lastUsed = System.currentTimeMillis();
+        return true;
+    }
+}
@@ -10,6 +10,57 @@ import com.elmakers.mine.bukkit.data.DataType;
 
 public class SqlDataField extends DataField
 {
+    /**
+     * Read a numeric column without boxing it.
+     * 
+     * Call wasNull() on the result set afterwards to check for null values.
+     * 
+     * @param rs
+     *            The result set, on the row to read
+     * @param index
+     *            The column index, starting at 1
+     * @param dataType
+     *            The type of the column
+     * @return The value, or the raw long bits of a floating point value
+     * @throws SQLException
+     *             If the value can't be read as a number
+     */
+    public static long getNumber(ResultSet rs, int index, DataType dataType) throws SQLException
+    {
+        switch (dataType)
+        {
+            case DOUBLE:
+            case FLOAT:
+                return Double.doubleToRawLongBits(rs.getDouble(index));
+        }
+        return rs.getLong(index);
+    }
+
+    /**
+     * Convert a value to a query parameter, stored the same way that
+     * setValue() stores it.
+     * 
+     * @param value
+     *            The value to convert
+     * @return The parameter value
+     */
+    public static Object getParameter(Object value)
+    {
+        if (value instanceof Enum<?>)
+        {
+            return ((Enum<?>) value).ordinal();
+        }
+        if (value instanceof Date)
+        {
+            return (int) (((Date) value).getTime() / 1000);
+        }
+        if (value instanceof Boolean)
+        {
+            return ((Boolean) value) ? 1 : 0;
+        }
+        return value;
+    }
+
     public static void setValue(PreparedStatement ps, int fieldIndex, Object value, DataType dataType) throws SQLException
     {
         if (value == null)
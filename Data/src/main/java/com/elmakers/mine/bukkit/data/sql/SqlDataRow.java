@@ -3,13 +3,91 @@ package com.elmakers.mine.bukkit.data.sql;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 
+import com.elmakers.mine.bukkit.data.DataColumns;
 import com.elmakers.mine.bukkit.data.DataRow;
 import com.elmakers.mine.bukkit.data.DataTable;
 import com.elmakers.mine.bukkit.data.DataType;
 
 public class SqlDataRow extends DataRow
 {
+    /**
+     * Read the column layout of a result set.
+     * 
+     * If the table already has the same layout, the table's layout is used so
+     * that all of its rows share one.
+     * 
+     * @param table
+     *            The table the rows are being read into
+     * @param results
+     *            The result set to read
+     * @return The column layout of the results
+     * @throws SQLException
+     *             If the result set's metadata can't be read
+     */
+    public static DataColumns getColumns(DataTable table, ResultSet results) throws SQLException
+    {
+        ResultSetMetaData rowInfo = results.getMetaData();
+        int columnCount = rowInfo.getColumnCount();
+        List<String> names = new ArrayList<String>(columnCount);
+        List<DataType> types = new ArrayList<DataType>(columnCount);
+        for (int i = 1; i <= columnCount; i++)
+        {
+            names.add(rowInfo.getColumnName(i));
+            types.add(DataType.getTypeFromSqlType(rowInfo.getColumnType(i)));
+        }
+
+        DataColumns columns = new DataColumns(names, types);
+        if (columns.equals(table.getColumns()))
+        {
+            return table.getColumns();
+        }
+        table.setColumns(columns);
+        return columns;
+    }
+
+    /**
+     * Create a DataRow holding the current row of a ResultSet in an array.
+     * 
+     * Numeric columns are read as primitives, and only boxed if asked for as
+     * an Object.
+     * 
+     * @param table
+     *            The table this row belongs to
+     * @param columns
+     *            The column layout of the result set
+     * @param row
+     *            The SQL ResultSet to read from
+     * @throws SQLException
+     *             If the row can't be read
+     * @see #getColumns(DataTable, ResultSet)
+     */
+    public SqlDataRow(DataTable table, DataColumns columns, ResultSet row) throws SQLException
+    {
+        super(table, columns, new Object[columns.size()], columns.hasNumbers() ? new long[columns.size()] : null);
+
+        for (int i = 0; i < values.length; i++)
+        {
+            if (numbers != null && columns.isNumeric(i))
+            {
+                long number = SqlDataField.getNumber(row, i + 1, columns.getType(i));
+                if (row.wasNull())
+                {
+                    values[i] = null;
+                }
+                else
+                {
+                    values[i] = NUMBER;
+                    numbers[i] = number;
+                }
+                continue;
+            }
+            values[i] = row.getObject(i + 1);
+        }
+    }
+
     /**
      * Create a DataRow based on a SQL ResultSet
      * 
@@ -1,14 +1,24 @@
 package com.elmakers.mine.bukkit.data.sql;
 
+import java.sql.BatchUpdateException;
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
+import com.elmakers.com.bukkit.data.exception.InvalidDataException;
+import com.elmakers.mine.bukkit.data.DataColumns;
 import com.elmakers.mine.bukkit.data.DataField;
+import com.elmakers.mine.bukkit.data.DataQuery;
 import com.elmakers.mine.bukkit.data.DataRow;
+import com.elmakers.mine.bukkit.data.DataRowHandler;
 import com.elmakers.mine.bukkit.data.DataStore;
 import com.elmakers.mine.bukkit.data.DataTable;
 import com.elmakers.mine.bukkit.data.DataType;
@@ -24,6 +34,9 @@ public abstract class SqlStore extends DataStore
     protected static boolean driversLoaded    = false;
     protected static boolean logSqlStatements = false;
 
+    // Keep IN lists well under SQLite's limit of 999 parameters
+    protected static int     maxParameters    = 500;
+
     public static void logSqlStatement(String statement)
     {
         if (logSqlStatements)
@@ -32,21 +45,70 @@ public abstract class SqlStore extends DataStore
         }
     }
 
-    protected Connection connection = null;
+    protected int                                 batchSize         = 100;
+    protected int                                 fetchSize         = 100;
+    protected int                                 maxConnections    = 4;
+    protected ConnectionPool                      pool              = null;
+    protected boolean                             rollbackOnly      = false;
+    protected final ThreadLocal<PooledConnection> threadConnection  = new ThreadLocal<PooledConnection>();
+    protected int                                 transactionDepth  = 0;
+    protected Thread                              transactionThread = null;
 
     public SqlStore(String schema)
     {
         super(schema);
     }
 
+    /**
+     * Begin a transaction.
+     * 
+     * Only one thread may have a transaction open at a time- other threads
+     * will wait here until the current transaction ends.
+     */
+    @Override
+    public synchronized boolean beginTransaction()
+    {
+        Thread currentThread = Thread.currentThread();
+        while (transactionDepth > 0 && transactionThread != currentThread)
+        {
+            try
+            {
+                wait();
+            }
+            catch (InterruptedException e)
+            {
+                currentThread.interrupt();
+                return false;
+            }
+        }
+
+        if (transactionDepth == 0)
+        {
+            try
+            {
+                getConnection().setAutoCommit(false);
+            }
+            catch (SQLException ex)
+            {
+                log.warning("Persistence: Error starting transaction on " + schema + ": " + ex.getMessage());
+                return false;
+            }
+            rollbackOnly = false;
+            transactionThread = currentThread;
+        }
+        transactionDepth++;
+        return true;
+    }
+
     @Override
     public boolean clear(DataTable table)
     {
-        String deleteSql = "DELETE FROM \"" + table.getName() + "\"";
+        String deleteSql = "DELETE FROM " + quote(table.getName());
 
+        PreparedStatement deleteStatement = null;
         try
         {
-            PreparedStatement deleteStatement = connection.prepareStatement(deleteSql);
+            deleteStatement = getConnection().prepareStatement(deleteSql);
             logSqlStatement(deleteSql);
             deleteStatement.execute();
         }
@@ -56,10 +118,14 @@ public abstract class SqlStore extends DataStore
             log.info(deleteSql);
             return false;
         }
+        finally
+        {
+            close(deleteStatement);
+        }
 
         if (table.getRows().size() > 0)
         {
-            save(table);
+            return save(table);
         }
 
         return true;
@@ -82,114 +148,215 @@ public abstract class SqlStore extends DataStore
         }
 
         String tableName = table.getName();
-        String idField = idFields.get(0);
-        String deleteSql = "DELETE FROM \"" + tableName + "\" WHERE \"" + idField + "\" IN (";
+        String deleteQuery = "DELETE FROM " + quote(tableName) + " WHERE " + quote(idFields.get(0)) + " IN (";
 
-        boolean firstId = true;
-        for (int i = 0; i < ids.size(); i++)
+        // Delete in batches, so a large list doesn't go over the parameter
+        // limit
+        for (int start = 0; start < ids.size(); start += maxParameters)
         {
-            if (!firstId)
+            List<Object> batchIds = ids.subList(start, Math.min(ids.size(), start + maxParameters));
+            String deleteSql = deleteQuery;
+            for (int i = 0; i < batchIds.size(); i++)
             {
-                deleteSql += ", ";
+                if (i != 0)
+                {
+                    deleteSql += ", ";
+                }
+                deleteSql += "?";
             }
-            firstId = false;
-            deleteSql += "?";
-            rowCount++;
-        }
-        deleteSql += ")";
+            deleteSql += ")";
 
-        try
-        {
-            PreparedStatement deleteStatement = connection.prepareStatement(deleteSql);
+            PreparedStatement deleteStatement = null;
+            try
+            {
+                deleteStatement = getConnection().prepareStatement(deleteSql);
 
-            int index = 1;
-            for (Object id : ids)
+                int index = 1;
+                for (Object id : batchIds)
+                {
+                    deleteStatement.setObject(index, id);
+                    index++;
+                }
+                logSqlStatement(deleteSql);
+                deleteStatement.execute();
+            }
+            catch (SQLException ex)
             {
-                deleteStatement.setObject(index, id);
-                index++;
+                log.warning("Persistence: Error deleting ids " + tableName + ": " + ex.getMessage());
+                log.info(deleteSql);
+                return false;
             }
-            logSqlStatement(deleteSql);
-            deleteStatement.execute();
+            finally
+            {
+                close(deleteStatement);
+            }
+            rowCount += batchIds.size();
         }
-        catch (SQLException ex)
+
+        logStoreAccess("Persistence: deleted %d objects from " + schema + "." + tableName, rowCount);
+
+        if (table.getRows().size() > 0)
         {
-            log.warning("Persistence: Error deleting ids " + tableName + ": " + ex.getMessage());
-            log.info(deleteSql);
-            return false;
+            return save(table);
         }
 
-        if (table.getRows().size() > 0)
+        return true;
+    }
+
+    @Override
+    public synchronized boolean commit()
+    {
+        if (transactionDepth <= 0)
+        {
+            return false;
+        }
+        transactionDepth--;
+        if (transactionDepth > 0)
         {
-            save(table);
+            return !rollbackOnly;
         }
+        return endTransaction(!rollbackOnly);
+    }
 
-        logStoreAccess("Persistence: deleted %d objects from " + schema + "." + tableName, rowCount);
+    /**
+     * Check whether an error means the calling thread's connection has been
+     * lost, and if so drop it so the next connect() opens a new one.
+     * 
+     * @param ex
+     *            The error to check
+     */
+    protected void checkConnection(SQLException ex)
+    {
+        String state = ex.getSQLState();
+        if (state == null || !state.startsWith("08"))
+        {
+            return;
+        }
 
-        return true;
+        PooledConnection current = getPooledConnection();
+        if (current != null)
+        {
+            log.warning("Persistence: Lost connection to " + schema + ": " + ex.getMessage());
+            threadConnection.remove();
+            current.getPool().discard(current);
+        }
     }
 
+    /**
+     * Make sure the calling thread has a getConnection().
+     * 
+     * Each thread gets its own connection from the pool, which it keeps until
+     * it calls release(). If a thread dies, or leaves its connection unused
+     * for a while, the pool takes it back.
+     */
     @Override
     public boolean connect()
     {
-        if (connection != null)
+        PooledConnection current = getPooledConnection();
+        if (current != null)
         {
-            boolean closed = true;
-            try
-            {
-                closed = connection.isClosed();
-            }
-            catch (SQLException ex)
-            {
-                closed = true;
-            }
-            if (!closed)
+            ConnectionPool currentPool = current.getPool();
+            if (currentPool == pool && currentPool.validate(current))
             {
+                current.touch();
                 return true;
             }
+            threadConnection.remove();
+            currentPool.discard(current);
         }
 
-        // Try to load drivers if necessary
-        if (!driversLoaded)
+        ConnectionPool connectionPool = null;
+        synchronized (this)
         {
-            // Check to see if the driver is loaded
-            String jdbcClass = getDriverClassName();
-            try
-            {
-                Class.forName(jdbcClass);
-                driversLoaded = true;
-            }
-            catch (ClassNotFoundException e)
+            if (pool == null)
             {
-                driversLoaded = false;
+                // Try to load drivers if necessary
+                if (!driversLoaded)
+                {
+                    // Check to see if the driver is loaded
+                    String jdbcClass = getDriverClassName();
+                    try
+                    {
+                        Class.forName(jdbcClass);
+                        driversLoaded = true;
+                    }
+                    catch (ClassNotFoundException e)
+                    {
+                        driversLoaded = false;
+                    }
+                }
+
+                pool = createPool();
+                pool.start();
             }
+            connectionPool = pool;
         }
 
-        // Create or connect to the database
-
-        // TODO: user, password
-        String user = "";
-        String password = "";
-
         try
         {
-            connection = DriverManager.getConnection(getConnectionString(schema, user, password));
+            current = connectionPool.borrow();
         }
         catch (SQLException e)
         {
-            connection = null;
-            log.severe("Permissions: error connecting to sqllite db: " + e.getMessage());
+            log.severe("Persistence: error connecting to " + schema + ": " + e.getMessage());
+            return false;
         }
+        current.touch();
+        threadConnection.set(current);
 
         return isConnected() && onConnect();
     }
 
+    /**
+     * Count matching rows with SELECT COUNT(*).
+     */
+    @Override
+    public int count(DataTable table, DataQuery query)
+    {
+        String tableName = table.getName();
+        List<Object> parameters = new ArrayList<Object>();
+        String countQuery = "SELECT COUNT(*) FROM " + quote(tableName) + getWhereClause(query, parameters);
+        int count = -1;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try
+        {
+            ps = getConnection().prepareStatement(countQuery);
+            int index = 1;
+            for (Object parameter : parameters)
+            {
+                ps.setObject(index, parameter);
+                index++;
+            }
+            logSqlStatement(countQuery);
+            rs = ps.executeQuery();
+            if (rs.next())
+            {
+                count = rs.getInt(1);
+            }
+        }
+        catch (SQLException ex)
+        {
+            log.warning("Persistence: Error counting rows of " + schema + "." + tableName + ": " + ex.getMessage());
+            log.info(countQuery);
+            checkConnection(ex);
+        }
+        finally
+        {
+            close(rs);
+            close(ps);
+        }
+        return count;
+    }
+
     @Override
     public boolean create(DataTable table)
     {
         String tableName = table.getName();
-        String createStatement = "CREATE TABLE \"" + tableName + "\" (";
+        String createStatement = "CREATE TABLE " + quote(tableName) + " (";
         int fieldCount = 0;
         DataRow header = table.getHeader();
+        List<String> idFields = table.getIdFieldNames();
         for (DataField field : header.getFields())
         {
             if (fieldCount != 0)
@@ -198,10 +365,9 @@ public abstract class SqlStore extends DataStore
             }
             fieldCount++;
 
-            createStatement += "\"" + field.getName() + "\" " + getTypeName(field.getType());
+            createStatement += quote(field.getName()) + " " + getTypeName(field.getType(), idFields.contains(field.getName()));
         }
 
-        List<String> idFields = table.getIdFieldNames();
         createStatement += ", PRIMARY KEY (";
         boolean firstField = true;
         for (String id : idFields)
@@ -212,7 +378,7 @@ public abstract class SqlStore extends DataStore
             }
             firstField = false;
 
-            createStatement += "\"" + id + "\"";
+            createStatement += quote(id);
         }
         createStatement += "))";
 
@@ -225,7 +391,7 @@ public abstract class SqlStore extends DataStore
         logStoreAccess("Persistence: Created table " + schema + "." + tableName);
         try
         {
-            PreparedStatement ps = connection.prepareStatement(createStatement);
+            PreparedStatement ps = getConnection().prepareStatement(createStatement);
             logSqlStatement(createStatement);
             ps.execute();
         }
@@ -238,21 +404,52 @@ public abstract class SqlStore extends DataStore
         return true;
     }
 
+    /**
+     * Create the pool this store's connections come from.
+     * 
+     * Override to change the pool settings for a particular database.
+     * 
+     * @return A new connection pool
+     */
+    protected ConnectionPool createPool()
+    {
+        // TODO: user, password
+        String user = "";
+        String password = "";
+
+        ConnectionPool connectionPool = new ConnectionPool(getConnectionString(schema, user, password));
+        connectionPool.setMaxSize(maxConnections);
+        return connectionPool;
+    }
+
+    /**
+     * Close all connections.
+     * 
+     * Threads still holding a connection will have it closed the next time
+     * they connect.
+     */
     @Override
     public void disconnect()
     {
-        if (connection != null)
+        PooledConnection current = getPooledConnection();
+        if (current != null)
         {
-            try
-            {
-                connection.close();
-            }
-            catch (SQLException e)
-            {
+            threadConnection.remove();
+            current.getPool().discard(current);
+        }
 
+        synchronized (this)
+        {
+            if (pool != null)
+            {
+                pool.close();
+                pool = null;
             }
+            transactionDepth = 0;
+            transactionThread = null;
+            rollbackOnly = false;
+            notifyAll();
         }
-        connection = null;
     }
 
     @Override
@@ -260,10 +457,10 @@ public abstract class SqlStore extends DataStore
     {
         if (tableExists(tableName))
         {
-            String dropQuery = "DROP TABLE \"" + tableName + "\"";
+            String dropQuery = "DROP TABLE " + quote(tableName);
             try
             {
-                PreparedStatement ps = connection.prepareStatement(dropQuery);
+                PreparedStatement ps = getConnection().prepareStatement(dropQuery);
                 logSqlStatement(dropQuery);
                 ps.execute();
             }
@@ -278,165 +475,1196 @@ public abstract class SqlStore extends DataStore
         return true;
     }
 
-    public abstract String getConnectionString(String schema, String user, String password);
-
-    public abstract String getDriverClassName();
-
-    public abstract String getMasterTableName();
-
-    public abstract String getTypeName(DataType dataType);
-
-    public boolean isConnected()
+    /**
+     * Close a result set, ignoring any errors.
+     * 
+     * @param results
+     *            The result set to close, may be null
+     */
+    protected void close(ResultSet results)
     {
-        boolean isClosed = true;
+        if (results == null)
+        {
+            return;
+        }
         try
         {
-            isClosed = connection == null || connection.isClosed();
+            results.close();
         }
-        catch (SQLException e)
+        catch (SQLException ex)
         {
-            isClosed = true;
         }
-        return connection != null && !isClosed;
     }
 
-    @Override
-    public boolean load(DataTable table)
-    {
-        String tableName = table.getName();
-
-        // Select all columns instead of building a column list
-        // This lets me sort out missing columns instead of throwing SQL errors.
-        String selectQuery = "SELECT * FROM \"" + tableName + "\"";
-
-        int rowCount = load(table, selectQuery);
-        logStoreAccess("Persistence: loaded %d objects from " + schema + "." + tableName, rowCount);
-
-        return rowCount >= 0;
-    }
-
-    protected int load(DataTable table, String sqlQuery)
+    /**
+     * Close a statement, ignoring any errors.
+     * 
+     * @param statement
+     *            The statement to close, may be null
+     */
+    protected void close(Statement statement)
     {
-        int rowCount = 0;
+        if (statement == null)
+        {
+            return;
+        }
         try
         {
-            PreparedStatement ps = connection.prepareStatement(sqlQuery);
-            logSqlStatement(sqlQuery);
-            ResultSet rs = ps.executeQuery();
-
-            while (rs.next())
-            {
-                SqlDataRow row = new SqlDataRow(table, rs);
-                table.addRow(row);
-                rowCount++;
-            }
-            rs.close();
+            statement.close();
         }
         catch (SQLException ex)
         {
-            log.warning("Persistence: Error selecting from table " + table.getName() + ": " + ex.getMessage());
-            return -1;
         }
-
-        return rowCount;
     }
 
     /**
-     * Called on connect- override to perform special actions on connect.
+     * Finish the outermost transaction, restoring auto-commit.
      * 
-     * @return false if the connection failed.
+     * @param commit
+     *            true to commit, false to roll back
+     * @return true if the transaction was committed
      */
-    public boolean onConnect()
-    {
-        return true;
-    }
-
-    @Override
-    public boolean save(DataTable table)
+    protected boolean endTransaction(boolean commit)
     {
-        int rowCount = 0;
-
-        if (table.getRows().size() == 0)
-        {
-            return clear(table);
-        }
-
-        String tableName = table.getName();
-        String fieldList = "";
-        String valueList = "";
-        int fieldCount = 0;
-        DataRow header = table.getHeader();
-
-        for (DataField field : header.getFields())
+        boolean success = commit;
+        try
         {
-            if (fieldCount != 0)
+            if (commit)
             {
-                fieldList += ", ";
-                valueList += ", ";
+                getConnection().commit();
+            }
+            else
+            {
+                getConnection().rollback();
             }
-            fieldCount++;
-            fieldList += "\"" + field.getName() + "\"";
-            valueList += "?";
         }
-
-        if (fieldCount == 0)
+        catch (SQLException ex)
         {
-            log.warning("Persistence: class " + tableName + " has no fields");
-            return false;
+            log.warning("Persistence: Error ending transaction on " + schema + ": " + ex.getMessage());
+            success = false;
+            if (commit)
+            {
+                try
+                {
+                    getConnection().rollback();
+                }
+                catch (SQLException rollbackEx)
+                {
+                }
+            }
         }
-
-        String updateSql = "INSERT OR REPLACE INTO \"" + tableName + "\" (" + fieldList + ") VALUES (" + valueList + ")";
-        for (DataRow row : table.getRows())
+        finally
         {
+            rollbackOnly = false;
+            transactionThread = null;
+            notifyAll();
             try
             {
-                PreparedStatement updateStatement = connection.prepareStatement(updateSql);
-
-                int index = 1;
-                List<DataField> fields = row.getFields();
-                for (DataField field : fields)
-                {
-                    SqlDataField.setValue(updateStatement, index, field.getValue(), field.getType());
-                    index++;
-                }
-
-                rowCount++;
-                logSqlStatement(updateSql);
-                updateStatement.execute();
+                getConnection().setAutoCommit(true);
             }
             catch (SQLException ex)
             {
-                log.warning("Persistence: Error updating table " + tableName + ": " + ex.getMessage());
-                log.info(updateSql);
-                return false;
+                log.warning("Persistence: Error restoring auto-commit: " + ex.getMessage());
             }
-
         }
-
-        logStoreAccess("Persistence: saved %d objects to " + schema + "." + tableName, rowCount);
-
-        return true;
+        return success;
     }
 
-    @Override
-    public boolean tableExists(String tableName)
+    /**
+     * Execute a pending batch, reporting any failures for the rows it
+     * contained.
+     * 
+     * @param statement
+     *            The statement holding the batch
+     * @param tableName
+     *            The table being written, for error reporting
+     * @param firstRow
+     *            The index of the first row in this batch
+     * @param rowCount
+     *            The number of rows in this batch
+     * @return false if any row in the batch failed
+     */
+    protected boolean executeBatch(PreparedStatement statement, String tableName, int firstRow, int rowCount)
     {
-        String checkQuery = "SELECT name FROM \"" + getMasterTableName() + "\" WHERE type='table' AND name='" + tableName + "'";
-        boolean tableExists = false;
+        String batchRange = "rows " + firstRow + "-" + (firstRow + rowCount - 1);
         try
         {
-            PreparedStatement ps = connection.prepareStatement(checkQuery);
-            logSqlStatement(checkQuery);
-            ResultSet rs = ps.executeQuery();
-            tableExists = rs.next();
-            rs.close();
-        }
-        catch (SQLException ex)
+            int[] results = statement.executeBatch();
+            int failed = 0;
+            for (int result : results)
+            {
+                if (result == Statement.EXECUTE_FAILED)
+                {
+                    failed++;
+                }
+            }
+            if (failed > 0)
+            {
+                log.warning("Persistence: " + failed + " of " + rowCount + " " + batchRange + " failed to save to " + schema + "." + tableName);
+                return false;
+            }
+        }
+        catch (BatchUpdateException ex)
+        {
+            int completed = ex.getUpdateCounts() == null ? 0 : ex.getUpdateCounts().length;
+            log.warning("Persistence: Error saving " + batchRange + " to " + schema + "." + tableName + " after " + completed + " rows: " + ex.getMessage());
+            return false;
+        }
+        catch (SQLException ex)
+        {
+            log.warning("Persistence: Error saving " + batchRange + " to " + schema + "." + tableName + ": " + ex.getMessage());
+            checkConnection(ex);
+            return false;
+        }
+        finally
+        {
+            try
+            {
+                statement.clearBatch();
+            }
+            catch (SQLException ex)
+            {
+            }
+        }
+        return true;
+    }
+
+    public int getBatchSize()
+    {
+        return batchSize;
+    }
+
+    public abstract String getConnectionString(String schema, String user, String password);
+
+    public abstract String getDriverClassName();
+
+    public int getFetchSize()
+    {
+        return fetchSize;
+    }
+
+    @Override
+    public long getMaxId(DataTable table)
+    {
+        List<String> idFields = table.getIdFieldNames();
+        if (idFields.size() < 1)
+        {
+            return 0;
+        }
+
+        String tableName = table.getName();
+        String maxQuery = "SELECT MAX(" + quote(idFields.get(0)) + ") FROM " + quote(tableName);
+        long maxId = 0;
+        PreparedStatement ps = null;
+        try
+        {
+            ps = getConnection().prepareStatement(maxQuery);
+            logSqlStatement(maxQuery);
+            ResultSet rs = ps.executeQuery();
+            if (rs.next())
+            {
+                maxId = rs.getLong(1);
+            }
+            rs.close();
+        }
+        catch (SQLException ex)
+        {
+            log.warning("Persistence: Error getting max id of " + schema + "." + tableName + ": " + ex.getMessage());
+            log.info(maxQuery);
+        }
+        finally
+        {
+            close(ps);
+        }
+        return maxId;
+    }
+
+    /**
+     * Read a table's columns using the driver's metadata.
+     */
+    @Override
+    public DataTable getTableHeader(String tableName)
+    {
+        DataTable currentTable = new DataTable(tableName);
+        currentTable.createHeader();
+        DataRow headerRow = currentTable.getHeader();
+
+        ResultSet rs = null;
+        try
+        {
+            Connection connection = getConnection();
+            DatabaseMetaData metaData = connection.getMetaData();
+            rs = metaData.getColumns(connection.getCatalog(), null, tableName, null);
+            while (rs.next())
+            {
+                if (!tableName.equalsIgnoreCase(rs.getString("TABLE_NAME")))
+                {
+                    continue;
+                }
+
+                String fieldName = rs.getString("COLUMN_NAME");
+                DataType dataType = DataType.getTypeFromSqlType(rs.getInt("DATA_TYPE"));
+                if (fieldName == null)
+                {
+                    continue;
+                }
+
+                DataField newColumn = new DataField(fieldName, dataType);
+                headerRow.add(newColumn);
+            }
+        }
+        catch (SQLException ex)
+        {
+            log.warning("Persistence: Error reading columns of " + schema + "." + tableName + ": " + ex.getMessage());
+            checkConnection(ex);
+        }
+        finally
+        {
+            close(rs);
+        }
+
+        return currentTable;
+    }
+
+    public abstract String getTypeName(DataType dataType);
+
+    /**
+     * Get the column type for a field.
+     * 
+     * Override to use a different type for primary key columns.
+     * 
+     * @param dataType
+     *            The type of data in the field
+     * @param key
+     *            true if the field is part of the primary key
+     * @return The column type
+     */
+    public String getTypeName(DataType dataType, boolean key)
+    {
+        return getTypeName(dataType);
+    }
+
+    /**
+     * Build a statement that inserts rows, replacing any existing rows with
+     * the same primary key.
+     * 
+     * The default uses SQLite's INSERT OR REPLACE, override for other
+     * databases.
+     * 
+     * @param tableName
+     *            The table to insert into
+     * @param columns
+     *            The columns to set, in parameter order
+     * @param rowCount
+     *            The number of rows to insert, each with one parameter per
+     *            column
+     * @return The SQL statement
+     */
+    protected String getUpsertSql(String tableName, List<String> columns, int rowCount)
+    {
+        return "INSERT OR REPLACE INTO " + quote(tableName) + " (" + getColumnList(columns) + ") VALUES " + getValuesList(columns.size(), rowCount);
+    }
+
+    protected String getColumnList(List<String> columns)
+    {
+        String columnList = "";
+        for (String column : columns)
+        {
+            if (columnList.length() > 0)
+            {
+                columnList += ", ";
+            }
+            columnList += quote(column);
+        }
+        return columnList;
+    }
+
+    /**
+     * Get the LIMIT clause for a query.
+     * 
+     * The default uses SQLite's syntax, where a limit of -1 means no limit.
+     * 
+     * @param limit
+     *            The maximum number of rows, or -1 for no limit
+     * @param offset
+     *            The number of rows to skip
+     * @return The clause, with a leading space, or an empty string
+     */
+    protected String getLimitClause(int limit, int offset)
+    {
+        if (limit < 0 && offset <= 0)
+        {
+            return "";
+        }
+        String limitClause = " LIMIT " + (limit < 0 ? -1 : limit);
+        if (offset > 0)
+        {
+            limitClause += " OFFSET " + offset;
+        }
+        return limitClause;
+    }
+
+    protected String getOrderClause(DataQuery query)
+    {
+        String orderClause = "";
+        for (DataQuery.Order order : query.getOrders())
+        {
+            orderClause += orderClause.length() == 0 ? " ORDER BY " : ", ";
+            orderClause += quote(order.getColumn()) + (order.isAscending() ? " ASC" : " DESC");
+        }
+        return orderClause;
+    }
+
+    /**
+     * Get the WHERE clause for a query.
+     * 
+     * Each condition value becomes a parameter, converted to the way this
+     * store saves values of its type. Null values are compared with IS NULL.
+     * 
+     * @param query
+     *            The query
+     * @param parameters
+     *            A list to add the parameter values to
+     * @return The clause, with a leading space, or an empty string
+     */
+    protected String getWhereClause(DataQuery query, List<Object> parameters)
+    {
+        String whereClause = "";
+        for (DataQuery.Condition condition : query.getConditions())
+        {
+            whereClause += whereClause.length() == 0 ? " WHERE " : " AND ";
+            String column = quote(condition.getColumn());
+            Object value = condition.getValue();
+            if (value == null)
+            {
+                switch (condition.getOperator())
+                {
+                    case EQUAL:
+                        whereClause += column + " IS NULL";
+                        break;
+                    case NOT_EQUAL:
+                        whereClause += column + " IS NOT NULL";
+                        break;
+                    default:
+                        // Nothing is greater or less than null
+                        whereClause += "1 = 0";
+                }
+                continue;
+            }
+
+            whereClause += column + " " + condition.getOperator().getSql() + " ?";
+            parameters.add(SqlDataField.getParameter(value));
+        }
+        return whereClause;
+    }
+
+    protected String getValuesList(int columnCount, int rowCount)
+    {
+        String rowValues = "(";
+        for (int i = 0; i < columnCount; i++)
+        {
+            if (i != 0)
+            {
+                rowValues += ", ";
+            }
+            rowValues += "?";
+        }
+        rowValues += ")";
+
+        String valueList = rowValues;
+        for (int i = 1; i < rowCount; i++)
+        {
+            valueList += ", " + rowValues;
+        }
+        return valueList;
+    }
+
+    /**
+     * Get the calling thread's getConnection().
+     * 
+     * @return The connection, or null if this thread hasn't connected
+     */
+    protected Connection getConnection()
+    {
+        PooledConnection current = getPooledConnection();
+        if (current == null)
+        {
+            return null;
+        }
+        return current.getConnection();
+    }
+
+    @Override
+    public int getMaxConnections()
+    {
+        return maxConnections;
+    }
+
+    public ConnectionPool getPool()
+    {
+        return pool;
+    }
+
+    /**
+     * Get the calling thread's pooled connection, and mark it as used.
+     * 
+     * @return The connection, or null if this thread hasn't connected, or the
+     *         pool has taken its connection back
+     */
+    protected PooledConnection getPooledConnection()
+    {
+        PooledConnection current = threadConnection.get();
+        if (current != null && !current.touch(Thread.currentThread()))
+        {
+            // Left unused for too long, and reclaimed by the pool
+            threadConnection.remove();
+            return null;
+        }
+        return current;
+    }
+
+    public boolean isConnected()
+    {
+        Connection connection = getConnection();
+        boolean isClosed = true;
+        try
+        {
+            isClosed = connection == null || connection.isClosed();
+        }
+        catch (SQLException e)
+        {
+            isClosed = true;
+        }
+        return connection != null && !isClosed;
+    }
+
+    @Override
+    public boolean load(DataTable table)
+    {
+        String tableName = table.getName();
+
+        // Select all columns instead of building a column list
+        // This lets me sort out missing columns instead of throwing SQL errors.
+        String selectQuery = "SELECT * FROM " + quote(tableName);
+
+        int rowCount = load(table, selectQuery);
+        logStoreAccess("Persistence: loaded %d objects from " + schema + "." + tableName, rowCount);
+
+        return rowCount >= 0;
+    }
+
+    protected int load(DataTable table, String sqlQuery)
+    {
+        return load(table, sqlQuery, null);
+    }
+
+    protected int load(final DataTable table, String sqlQuery, List<Object> parameters)
+    {
+        try
+        {
+            return load(table, sqlQuery, parameters, new DataRowHandler()
+            {
+                public boolean handle(DataRow row)
+                {
+                    table.addRow(row);
+                    return true;
+                }
+            });
+        }
+        catch (InvalidDataException e)
+        {
+            log.warning("Persistence: Error reading rows from table " + table.getName() + ": " + e.getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Run a query, passing each row to a handler as it is read.
+     * 
+     * Rows are read in chunks of the fetch size, rather than reading the
+     * whole result into memory first.
+     * 
+     * @param table
+     *            The table the rows belong to. Rows are not added to it.
+     * @param sqlQuery
+     *            The query to run
+     * @param parameters
+     *            Query parameters, may be null
+     * @param handler
+     *            The handler to pass each row to
+     * @return The number of rows read, or -1 on error
+     * @throws InvalidDataException
+     *             If the handler rejected a row
+     */
+    protected int load(DataTable table, String sqlQuery, List<Object> parameters, DataRowHandler handler) throws InvalidDataException
+    {
+        int rowCount = 0;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try
+        {
+            ps = getConnection().prepareStatement(sqlQuery, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            ps.setFetchSize(fetchSize);
+            if (parameters != null)
+            {
+                int index = 1;
+                for (Object parameter : parameters)
+                {
+                    ps.setObject(index, parameter);
+                    index++;
+                }
+            }
+            logSqlStatement(sqlQuery);
+            rs = ps.executeQuery();
+
+            // All rows share one column layout, and keep just their values
+            DataColumns columns = SqlDataRow.getColumns(table, rs);
+            while (rs.next())
+            {
+                SqlDataRow row = new SqlDataRow(table, columns, rs);
+                rowCount++;
+                if (!handler.handle(row))
+                {
+                    break;
+                }
+            }
+        }
+        catch (SQLException ex)
+        {
+            log.warning("Persistence: Error selecting from table " + table.getName() + ": " + ex.getMessage());
+            checkConnection(ex);
+            return -1;
+        }
+        finally
+        {
+            close(rs);
+            close(ps);
+        }
+
+        return rowCount;
+    }
+
+    /**
+     * Stream a whole table to a handler.
+     * 
+     * The handler must not use this store from the same thread while rows are
+     * being read- some drivers, such as MySQL's, can't run another statement
+     * on a connection until a streamed result is finished.
+     */
+    @Override
+    public boolean load(DataTable table, DataRowHandler handler) throws InvalidDataException
+    {
+        String tableName = table.getName();
+        String selectQuery = "SELECT * FROM " + quote(tableName);
+
+        int rowCount = load(table, selectQuery, null, handler);
+        logStoreAccess("Persistence: streamed %d objects from " + schema + "." + tableName, rowCount);
+
+        return rowCount >= 0;
+    }
+
+    /**
+     * Run a query as a SELECT, so only the matching rows and columns are
+     * read.
+     */
+    @Override
+    public boolean load(DataTable table, DataQuery query)
+    {
+        String tableName = table.getName();
+        List<Object> parameters = new ArrayList<Object>();
+        String columns = query.getColumns().size() == 0 ? "*" : getColumnList(query.getColumns());
+        String selectQuery = "SELECT " + columns + " FROM " + quote(tableName) + getWhereClause(query, parameters) + getOrderClause(query) + getLimitClause(query.getLimit(), query.getOffset());
+
+        int rowCount = load(table, selectQuery, parameters);
+        logStoreAccess("Persistence: queried %d objects from " + schema + "." + tableName, rowCount);
+
+        return rowCount >= 0;
+    }
+
+    @Override
+    public boolean loadIds(DataTable table, List<Object> ids)
+    {
+        if (ids.size() == 0)
+        {
+            return true;
+        }
+
+        List<String> idFields = table.getIdFieldNames();
+        if (idFields.size() < 1)
+        {
+            return false;
+        }
+
+        String tableName = table.getName();
+        String selectQuery = "SELECT * FROM " + quote(tableName) + " WHERE " + quote(idFields.get(0)) + " IN (";
+
+        int rowCount = 0;
+        for (int start = 0; start < ids.size(); start += maxParameters)
+        {
+            List<Object> batchIds = ids.subList(start, Math.min(ids.size(), start + maxParameters));
+            String batchQuery = selectQuery;
+            for (int i = 0; i < batchIds.size(); i++)
+            {
+                if (i != 0)
+                {
+                    batchQuery += ", ";
+                }
+                batchQuery += "?";
+            }
+            batchQuery += ")";
+
+            int batchCount = load(table, batchQuery, batchIds);
+            if (batchCount < 0)
+            {
+                return false;
+            }
+            rowCount += batchCount;
+        }
+
+        logStoreAccess("Persistence: loaded %d objects by id from " + schema + "." + tableName, rowCount);
+
+        return true;
+    }
+
+    /**
+     * Called on connect- override to perform special actions on connect.
+     * 
+     * @return false if the connection failed.
+     */
+    public boolean onConnect()
+    {
+        return true;
+    }
+
+    /**
+     * Quote a table or column name.
+     * 
+     * The default uses standard SQL double quotes.
+     * 
+     * @param identifier
+     *            The name to quote
+     * @return The quoted name
+     */
+    public String quote(String identifier)
+    {
+        return "\"" + identifier + "\"";
+    }
+
+    /**
+     * Return the calling thread's connection to the pool.
+     * 
+     * The connection is kept if this thread has a transaction open.
+     */
+    @Override
+    public void release()
+    {
+        PooledConnection current = getPooledConnection();
+        if (current == null)
+        {
+            return;
+        }
+
+        synchronized (this)
+        {
+            if (transactionDepth > 0 && transactionThread == Thread.currentThread())
+            {
+                return;
+            }
+        }
+
+        threadConnection.remove();
+        current.touch();
+        current.getPool().release(current);
+    }
+
+    @Override
+    public boolean remove(DataTable table)
+    {
+        List<DataRow> rows = table.getRows();
+        if (rows.size() == 0)
+        {
+            return true;
+        }
+
+        String tableName = table.getName();
+        List<String> idFields = table.getIdFieldNames();
+        if (idFields.size() < 1)
+        {
+            log.warning("Persistence: Can't delete from " + schema + "." + tableName + ", it has no id fields");
+            return false;
+        }
+
+        // Null ids need IS NULL rather than a parameter, so group rows by the
+        // statement they need.
+        Map<String, List<DataRow>> deletes = new LinkedHashMap<String, List<DataRow>>();
+        for (DataRow row : rows)
+        {
+            String deleteSql = "DELETE FROM " + quote(tableName) + " WHERE ";
+            boolean firstId = true;
+            for (String idField : idFields)
+            {
+                if (!firstId)
+                {
+                    deleteSql += " AND ";
+                }
+                firstId = false;
+                DataField field = row.get(idField);
+                if (field == null || field.getValue() == null)
+                {
+                    deleteSql += quote(idField) + " IS NULL";
+                }
+                else
+                {
+                    deleteSql += quote(idField) + " = ?";
+                }
+            }
+
+            List<DataRow> deleteRows = deletes.get(deleteSql);
+            if (deleteRows == null)
+            {
+                deleteRows = new ArrayList<DataRow>();
+                deletes.put(deleteSql, deleteRows);
+            }
+            deleteRows.add(row);
+        }
+
+        if (!beginTransaction())
+        {
+            return false;
+        }
+
+        boolean success = true;
+        int rowCount = 0;
+        for (Map.Entry<String, List<DataRow>> delete : deletes.entrySet())
+        {
+            String deleteSql = delete.getKey();
+            logSqlStatement(deleteSql);
+            PreparedStatement deleteStatement = null;
+            try
+            {
+                deleteStatement = getConnection().prepareStatement(deleteSql);
+
+                int batchStart = 0;
+                int batchCount = 0;
+                for (DataRow row : delete.getValue())
+                {
+                    int index = 1;
+                    for (String idField : idFields)
+                    {
+                        DataField field = row.get(idField);
+                        if (field != null && field.getValue() != null)
+                        {
+                            SqlDataField.setValue(deleteStatement, index, field.getValue(), field.getType());
+                            index++;
+                        }
+                    }
+                    deleteStatement.addBatch();
+                    batchCount++;
+                    rowCount++;
+
+                    if (batchCount >= batchSize)
+                    {
+                        success = executeBatch(deleteStatement, tableName, batchStart, batchCount) && success;
+                        batchStart += batchCount;
+                        batchCount = 0;
+                    }
+                }
+
+                if (batchCount > 0)
+                {
+                    success = executeBatch(deleteStatement, tableName, batchStart, batchCount) && success;
+                }
+            }
+            catch (SQLException ex)
+            {
+                log.warning("Persistence: Error deleting from table " + tableName + ": " + ex.getMessage());
+                log.info(deleteSql);
+                success = false;
+            }
+            finally
+            {
+                close(deleteStatement);
+            }
+        }
+
+        if (success)
+        {
+            success = commit();
+        }
+        else
+        {
+            rollback();
+        }
+
+        if (success)
+        {
+            logStoreAccess("Persistence: deleted %d objects from " + schema + "." + tableName, rowCount);
+        }
+
+        return success;
+    }
+
+    @Override
+    public synchronized boolean rollback()
+    {
+        if (transactionDepth <= 0)
+        {
+            return false;
+        }
+        rollbackOnly = true;
+        transactionDepth--;
+        if (transactionDepth > 0)
+        {
+            return true;
+        }
+        endTransaction(false);
+        return true;
+    }
+
+    @Override
+    public boolean save(DataTable table)
+    {
+        int rowCount = 0;
+
+        if (table.getRows().size() == 0)
+        {
+            return clear(table);
+        }
+
+        String tableName = table.getName();
+        List<String> columns = new ArrayList<String>();
+        DataRow header = table.getHeader();
+        for (DataField field : header.getFields())
+        {
+            columns.add(field.getName());
+        }
+
+        if (columns.size() == 0)
+        {
+            log.warning("Persistence: class " + tableName + " has no fields");
+            return false;
+        }
+
+        // Send as many rows per statement as the parameter limit allows
+        int rowsPerStatement = 1;
+        if (supportsMultiRowInsert())
+        {
+            rowsPerStatement = Math.max(1, Math.min(batchSize, maxParameters / columns.size()));
+        }
+
+        if (!beginTransaction())
+        {
+            return false;
+        }
+
+        boolean success = true;
+        List<DataRow> rows = table.getRows();
+        PreparedStatement updateStatement = null;
+        String updateSql = null;
+        int statementRows = 0;
+        try
+        {
+            int batchStart = 0;
+            int batchCount = 0;
+            while (rowCount < rows.size())
+            {
+                int chunkRows = Math.min(rowsPerStatement, rows.size() - rowCount);
+                if (updateStatement == null || chunkRows != statementRows)
+                {
+                    if (batchCount > 0)
+                    {
+                        success = executeBatch(updateStatement, tableName, batchStart, batchCount) && success;
+                        batchStart += batchCount;
+                        batchCount = 0;
+                    }
+                    close(updateStatement);
+                    updateSql = getUpsertSql(tableName, columns, chunkRows);
+                    logSqlStatement(updateSql);
+                    updateStatement = getConnection().prepareStatement(updateSql);
+                    statementRows = chunkRows;
+                }
+
+                int index = 1;
+                for (DataRow row : rows.subList(rowCount, rowCount + chunkRows))
+                {
+                    List<DataField> fields = row.getFields();
+                    for (DataField field : fields)
+                    {
+                        SqlDataField.setValue(updateStatement, index, field.getValue(), field.getType());
+                        index++;
+                    }
+                }
+                updateStatement.addBatch();
+                batchCount += chunkRows;
+                rowCount += chunkRows;
+
+                if (batchCount >= batchSize)
+                {
+                    success = executeBatch(updateStatement, tableName, batchStart, batchCount) && success;
+                    batchStart += batchCount;
+                    batchCount = 0;
+                }
+            }
+
+            if (batchCount > 0)
+            {
+                success = executeBatch(updateStatement, tableName, batchStart, batchCount) && success;
+            }
+        }
+        catch (SQLException ex)
+        {
+            log.warning("Persistence: Error updating table " + tableName + ": " + ex.getMessage());
+            log.info(updateSql);
+            checkConnection(ex);
+            success = false;
+        }
+        finally
+        {
+            close(updateStatement);
+        }
+
+        if (success)
+        {
+            success = commit();
+        }
+        else
+        {
+            rollback();
+        }
+
+        if (!success)
+        {
+            return false;
+        }
+
+        logStoreAccess("Persistence: saved %d objects to " + schema + "." + tableName, rowCount);
+
+        return true;
+    }
+
+    /**
+     * Set the number of rows sent to the database in each batch when saving.
+     * 
+     * @param batchSize
+     *            The maximum number of rows per batch, must be at least 1
+     */
+    public void setBatchSize(int batchSize)
+    {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Set the number of rows read from the database at a time when loading.
+     * 
+     * @param fetchSize
+     *            The number of rows to fetch at a time, a hint to the driver
+     */
+    public void setFetchSize(int fetchSize)
+    {
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * Whether this database accepts more than one row in an INSERT's VALUES
+     * list.
+     * 
+     * SQLite supports this from version 3.7.11.
+     * 
+     * @return true if multi-row inserts can be used
+     */
+    public boolean supportsMultiRowInsert()
+    {
+        return true;
+    }
+
+    /**
+     * Check for a table using the driver's metadata, which works the same way
+     * for any database.
+     */
+    @Override
+    public boolean tableExists(String tableName)
+    {
+        boolean tableExists = false;
+        ResultSet rs = null;
+        try
+        {
+            Connection connection = getConnection();
+            DatabaseMetaData metaData = connection.getMetaData();
+            rs = metaData.getTables(connection.getCatalog(), null, tableName, new String[] { "TABLE" });
+            while (rs.next())
+            {
+                // Table name patterns may match more than the one table
+                if (tableName.equalsIgnoreCase(rs.getString("TABLE_NAME")))
+                {
+                    tableExists = true;
+                    break;
+                }
+            }
+        }
+        catch (SQLException ex)
         {
             log.severe("Persistence: Error getting table data: " + ex.getMessage());
-            log.info(checkQuery);
+            checkConnection(ex);
             return false;
         }
+        finally
+        {
+            close(rs);
+        }
         return tableExists;
     }
+
+    @Override
+    public boolean update(DataTable table)
+    {
+        List<DataRow> rows = table.getRows();
+        if (rows.size() == 0)
+        {
+            return true;
+        }
+
+        String tableName = table.getName();
+        List<String> idFields = table.getIdFieldNames();
+        if (idFields.size() < 1)
+        {
+            log.warning("Persistence: Can't update " + schema + "." + tableName + ", it has no id fields");
+            return false;
+        }
+
+        // Group rows by the set of columns they change, so each group can
+        // share one statement.
+        Map<String, List<DataRow>> updates = new LinkedHashMap<String, List<DataRow>>();
+        for (DataRow row : rows)
+        {
+            String setList = "";
+            for (DataField field : row.getFields())
+            {
+                if (idFields.contains(field.getName()))
+                {
+                    continue;
+                }
+                if (setList.length() > 0)
+                {
+                    setList += ", ";
+                }
+                setList += quote(field.getName()) + " = ?";
+            }
+            if (setList.length() == 0)
+            {
+                continue;
+            }
+
+            String updateSql = "UPDATE " + quote(tableName) + " SET " + setList + " WHERE ";
+            boolean firstId = true;
+            for (String idField : idFields)
+            {
+                if (!firstId)
+                {
+                    updateSql += " AND ";
+                }
+                firstId = false;
+                updateSql += quote(idField) + " = ?";
+            }
+
+            List<DataRow> updateRows = updates.get(updateSql);
+            if (updateRows == null)
+            {
+                updateRows = new ArrayList<DataRow>();
+                updates.put(updateSql, updateRows);
+            }
+            updateRows.add(row);
+        }
+
+        if (updates.size() == 0)
+        {
+            return true;
+        }
+
+        if (!beginTransaction())
+        {
+            return false;
+        }
+
+        boolean success = true;
+        int rowCount = 0;
+        for (Map.Entry<String, List<DataRow>> update : updates.entrySet())
+        {
+            String updateSql = update.getKey();
+            logSqlStatement(updateSql);
+            PreparedStatement updateStatement = null;
+            try
+            {
+                updateStatement = getConnection().prepareStatement(updateSql);
+
+                int batchStart = 0;
+                int batchCount = 0;
+                for (DataRow row : update.getValue())
+                {
+                    int index = 1;
+                    for (DataField field : row.getFields())
+                    {
+                        if (!idFields.contains(field.getName()))
+                        {
+                            SqlDataField.setValue(updateStatement, index, field.getValue(), field.getType());
+                            index++;
+                        }
+                    }
+                    for (String idField : idFields)
+                    {
+                        DataField field = row.get(idField);
+                        if (field == null)
+                        {
+                            updateStatement.setObject(index, null);
+                        }
+                        else
+                        {
+                            SqlDataField.setValue(updateStatement, index, field.getValue(), field.getType());
+                        }
+                        index++;
+                    }
+                    updateStatement.addBatch();
+                    batchCount++;
+                    rowCount++;
+
+                    if (batchCount >= batchSize)
+                    {
+                        success = executeBatch(updateStatement, tableName, batchStart, batchCount) && success;
+                        batchStart += batchCount;
+                        batchCount = 0;
+                    }
+                }
+
+                if (batchCount > 0)
+                {
+                    success = executeBatch(updateStatement, tableName, batchStart, batchCount) && success;
+                }
+            }
+            catch (SQLException ex)
+            {
+                log.warning("Persistence: Error updating table " + tableName + ": " + ex.getMessage());
+                log.info(updateSql);
+                success = false;
+            }
+            finally
+            {
+                close(updateStatement);
+            }
+        }
+
+        if (success)
+        {
+            success = commit();
+        }
+        else
+        {
+            rollback();
+        }
+
+        if (success)
+        {
+            logStoreAccess("Persistence: updated %d objects in " + schema + "." + tableName, rowCount);
+        }
+
+        return success;
+    }
 }
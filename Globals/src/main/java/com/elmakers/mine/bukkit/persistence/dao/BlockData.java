@@ -18,16 +18,6 @@ public class BlockData extends Persisted
 
     public static final BlockFace[] SIDES = new BlockFace[] { BlockFace.WEST, BlockFace.NORTH, BlockFace.SOUTH, BlockFace.EAST };
 
-    public static long getBlockId(Block block)
-    {
-        return block.getWorld().getName().hashCode() << 28 ^ Integer.valueOf(block.getX()).hashCode() << 13 ^ Integer.valueOf(block.getY()).hashCode() << 7 ^ Integer.valueOf(block.getZ()).hashCode();
-    }
-
-    public static long getBlockId(BlockData blockData)
-    {
-        return getBlockId(blockData.getBlock());
-    }
-
     public static BlockFace getReverseFace(BlockFace blockFace)
     {
         switch (blockFace)
@@ -71,6 +61,13 @@ public class BlockData extends Persisted
         materialData = block.getData();
     }
 
+    public BlockData(World world, int x, int y, int z, Material material, byte materialData)
+    {
+        location = new LocationData(world, x, y, z);
+        this.material = material;
+        this.materialData = materialData;
+    }
+
     public BlockData(BlockData copy)
     {
         location = copy.location;
@@ -0,0 +1,204 @@
+package com.elmakers.mine.bukkit.persistence.dao;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+/**
+ * Packs a block position into a single long, for use as a hash key.
+ * 
+ * X and Z are stored in 26 bits each, and Y in 12, all signed. This covers
+ * +/- 33 million blocks horizontally, and +/- 2048 vertically. Every position
+ * in that range has its own key, so two blocks never share one- unlike a
+ * hash, a key can be turned back into its coordinates.
+ * 
+ * Keys don't include the world. Worlds are given small interned ids instead,
+ * which stay the same for as long as the server is running.
+ * 
+ * Packing and unpacking doesn't create any objects.
+ * 
+ * @author NathanWolf
+ * 
+ */
+public class BlockKey
+{
+    public static final int                     MAX_XZ     = (1 << 25) - 1;
+    public static final int                     MAX_Y      = (1 << 11) - 1;
+    public static final int                     MIN_XZ     = -(1 << 25);
+    public static final int                     MIN_Y      = -(1 << 11);
+
+    protected static final int                  xShift     = 38;
+    protected static final long                 xzMask     = (1L << 26) - 1;
+    protected static final long                 yMask      = (1L << 12) - 1;
+    protected static final int                  zShift     = 12;
+
+    protected static volatile World[]           worlds     = new World[0];
+    protected static final Map<String, Integer> worldIds   = new HashMap<String, Integer>();
+    protected static volatile String[]          worldNames = new String[0];
+
+    /**
+     * Get a key's chunk, packed the same way as a block key with a Y of zero.
+     * 
+     * This is useful for grouping blocks by chunk without creating objects.
+     * 
+     * @param key
+     *            The block key
+     * @return A key for the chunk the block is in
+     */
+    public static long getChunkKey(long key)
+    {
+        return getKey(getX(key) >> 4, 0, getZ(key) >> 4);
+    }
+
+    public static long getKey(Block block)
+    {
+        return getKey(block.getX(), block.getY(), block.getZ());
+    }
+
+    /**
+     * Pack a block position.
+     * 
+     * Coordinates outside of the supported range wrap around, so check them
+     * with isValid() first if they may be that far out.
+     * 
+     * @param x
+     *            The block's X coordinate
+     * @param y
+     *            The block's Y coordinate
+     * @param z
+     *            The block's Z coordinate
+     * @return The block's key
+     */
+    public static long getKey(int x, int y, int z)
+    {
+        return (x & xzMask) << xShift | (z & xzMask) << zShift | y & yMask;
+    }
+
+    /**
+     * Get a key for a block next to, or near, another one.
+     */
+    public static long getRelative(long key, int dx, int dy, int dz)
+    {
+        return getKey(getX(key) + dx, getY(key) + dy, getZ(key) + dz);
+    }
+
+    /**
+     * Get a world that has been given an id.
+     * 
+     * @param worldId
+     *            The world's id
+     * @return The world, or null if none has been seen with that id
+     */
+    public static World getWorld(int worldId)
+    {
+        World[] current = worlds;
+        if (worldId < 0 || worldId >= current.length)
+        {
+            return null;
+        }
+        return current[worldId];
+    }
+
+    /**
+     * Get the id of a loaded world.
+     * 
+     * The last World object seen for each id is kept, so that getWorld() can
+     * return it.
+     * 
+     * @param world
+     *            The world
+     * @return The world's id
+     */
+    public static int getWorldId(World world)
+    {
+        World[] current = worlds;
+        for (int i = 0; i < current.length; i++)
+        {
+            if (current[i] == world)
+            {
+                return i;
+            }
+        }
+
+        synchronized (worldIds)
+        {
+            int worldId = getWorldId(world.getName());
+            World[] updated = new World[worldNames.length];
+            System.arraycopy(worlds, 0, updated, 0, worlds.length);
+            updated[worldId] = world;
+            worlds = updated;
+            return worldId;
+        }
+    }
+
+    /**
+     * Get the id of a world by name, giving it a new id if it doesn't have
+     * one yet.
+     * 
+     * @param worldName
+     *            The name of the world
+     * @return The world's id
+     */
+    public static int getWorldId(String worldName)
+    {
+        synchronized (worldIds)
+        {
+            Integer worldId = worldIds.get(worldName);
+            if (worldId != null)
+            {
+                return worldId;
+            }
+
+            String[] updated = new String[worldNames.length + 1];
+            System.arraycopy(worldNames, 0, updated, 0, worldNames.length);
+            updated[worldNames.length] = worldName;
+            worldIds.put(worldName, worldNames.length);
+            worldNames = updated;
+            return updated.length - 1;
+        }
+    }
+
+    /**
+     * Get the name of a world that has been given an id.
+     * 
+     * @param worldId
+     *            The world's id
+     * @return The world's name, or null if no world has that id
+     */
+    public static String getWorldName(int worldId)
+    {
+        String[] current = worldNames;
+        if (worldId < 0 || worldId >= current.length)
+        {
+            return null;
+        }
+        return current[worldId];
+    }
+
+    public static int getX(long key)
+    {
+        return (int) (key >> xShift);
+    }
+
+    public static int getY(long key)
+    {
+        return (int) (key << 52 >> 52);
+    }
+
+    public static int getZ(long key)
+    {
+        return (int) (key << 26 >> 38);
+    }
+
+    /**
+     * Check to see if a position can be packed into a key.
+     * 
+     * @return true if each coordinate is in range
+     */
+    public static boolean isValid(int x, int y, int z)
+    {
+        return x >= MIN_XZ && x <= MAX_XZ && z >= MIN_XZ && z <= MAX_XZ && y >= MIN_Y && y <= MAX_Y;
+    }
+}
@@ -2,9 +2,11 @@ package com.elmakers.mine.bukkit.persistence.dao;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
+import org.bukkit.Material;
+import org.bukkit.World;
 import org.bukkit.block.Block;
 import org.bukkit.util.BlockVector;
 
@@ -16,9 +18,13 @@ import com.elmakers.mine.bukkit.persisted.PersistField;
  * Implements a Collection of Blocks, for quick getting/putting while iterating
  * over a set or area of blocks.
  * 
- * This stores BlockData objects, which are hashable via their Persisted
- * inheritence, and their LocationData id (which itself has a hash function
- * based on world name and BlockVector's hash function)
+ * Blocks are packed into parallel arrays of BlockKeys, world ids, material ids
+ * and data, in the order they were added, with a LongIndex of keys for each
+ * world. Adding or checking for a Block doesn't create any objects, so large
+ * areas can be filled or searched without garbage.
+ * 
+ * BlockData objects are only created when iterating, or when the list is
+ * persisted.
  * 
  * @author NathanWolf
  * 
@@ -26,26 +32,60 @@ import com.elmakers.mine.bukkit.persisted.PersistField;
 @PersistClass(schema = "global", name = "blockList", contained = true)
 public class BlockList implements Collection<BlockData>
 {
+    class BlockIterator implements Iterator<BlockData>
+    {
+        protected int next = 0;
+
+        public boolean hasNext()
+        {
+            return next < size;
+        }
+
+        public BlockData next()
+        {
+            if (next >= size)
+            {
+                throw new NoSuchElementException();
+            }
+            return getBlockData(next++);
+        }
+
+        public void remove()
+        {
+            if (next == 0)
+            {
+                throw new IllegalStateException();
+            }
+            removeIndex(--next);
+        }
+    }
+
+    protected static final int defaultCapacity  = 16;
+
     /**
      * Default serial id, in case you want to serialize this (probably shouldn't
      * though!)
      * 
      * Persist it instead, once I've got that working.
      */
-    private static final long      serialVersionUID = 1L;
-
-    protected BoundingBox          area;
-
-    protected HashSet<Long>        blockIdMap;
-
-    // HashMap backing and easy persistence - need an extra list for this right
-    // now.
-    protected ArrayList<BlockData> blockList;
-    protected HashSet<BlockData>   blockMap;
-
-    protected int                  passesRemaining  = 1;
-    protected int                  timeRemaining    = 0;
-    protected int                  timeToLive       = 0;
+    private static final long  serialVersionUID = 1L;
+
+    protected BoundingBox      area;
+    protected LongIndex[]      blockIndexes;
+    protected long[]           blockKeys;
+    protected byte[]           materialData;
+    protected short[]          materials;
+    protected int              maxX;
+    protected int              maxY;
+    protected int              maxZ;
+    protected int              minX;
+    protected int              minY;
+    protected int              minZ;
+    protected int              passesRemaining  = 1;
+    protected int              size             = 0;
+    protected int              timeRemaining    = 0;
+    protected int              timeToLive       = 0;
+    protected short[]          worldIds;
 
     public BlockList()
     {
@@ -54,10 +94,21 @@ public class BlockList implements Collection<BlockData>
 
     public BlockList(BlockList other)
     {
-        for (BlockData block : other)
+        if (other.size > 0)
         {
-            BlockData newBlock = new BlockData(block);
-            add(newBlock);
+            allocate(other.size);
+            System.arraycopy(other.blockKeys, 0, blockKeys, 0, other.size);
+            System.arraycopy(other.materials, 0, materials, 0, other.size);
+            System.arraycopy(other.materialData, 0, materialData, 0, other.size);
+            System.arraycopy(other.worldIds, 0, worldIds, 0, other.size);
+            size = other.size;
+            minX = other.minX;
+            minY = other.minY;
+            minZ = other.minZ;
+            maxX = other.maxX;
+            maxY = other.maxY;
+            maxZ = other.maxZ;
+            reindex();
         }
         timeToLive = other.timeToLive;
         timeRemaining = other.timeRemaining;
@@ -66,54 +117,82 @@ public class BlockList implements Collection<BlockData>
 
     public boolean add(Block block)
     {
-        if (contains(block))
-        {
-            return true;
-        }
-
-        BlockData newBlock = new BlockData(block);
-        return add(newBlock);
+        add(BlockKey.getWorldId(block.getWorld()), BlockKey.getKey(block), block.getTypeId(), block.getData());
+        return true;
     }
 
     public boolean add(BlockData blockData)
     {
-        // First do a sanity check with the map
         // Currently, we don't replace blocks!
-        if (blockMap != null)
+        LocationData location = blockData.getLocation();
+        int worldId = getWorldId(location);
+        if (worldId < 0)
         {
-            if (blockMap.contains(blockData))
-            {
-                return true;
-            }
+            return false;
         }
-        else
+
+        long blockKey = BlockKey.getKey(location.getBlockX(), location.getBlockY(), location.getBlockZ());
+        Material material = blockData.getMaterial();
+        add(worldId, blockKey, material == null ? 0 : material.getId(), blockData.getMaterialData());
+        return true;
+    }
+
+    /**
+     * Add a block by its key, as it was.
+     * 
+     * Blocks that are already in this list are not replaced.
+     * 
+     * @param worldId
+     *            The block's world id, from BlockKey
+     * @param blockKey
+     *            The block's key
+     * @param materialId
+     *            The id of the block's material
+     * @param data
+     *            The block's data
+     */
+    public void add(int worldId, long blockKey, int materialId, byte data)
+    {
+        if (contains(worldId, blockKey))
         {
-            blockMap = new HashSet<BlockData>();
+            return;
         }
-
-        if (blockIdMap == null)
+        if (blockKeys == null)
         {
-            blockIdMap = new HashSet<Long>();
+            allocate(defaultCapacity);
         }
-
-        if (blockList == null)
+        else if (size == blockKeys.length)
         {
-            blockList = new ArrayList<BlockData>();
+            grow(size * 2);
         }
-        BlockVector blockLocation = blockData.getLocation().getPosition();
 
-        if (area == null)
+        int blockX = BlockKey.getX(blockKey);
+        int blockY = BlockKey.getY(blockKey);
+        int blockZ = BlockKey.getZ(blockKey);
+        if (size == 0)
         {
-            area = new BoundingBox(blockLocation, blockLocation);
+            minX = maxX = blockX;
+            minY = maxY = blockY;
+            minZ = maxZ = blockZ;
+            area = null;
         }
-        else
+        else if (blockX < minX || blockY < minY || blockZ < minZ || blockX > maxX || blockY > maxY || blockZ > maxZ)
         {
-            area = area.contain(blockLocation);
+            minX = Math.min(minX, blockX);
+            minY = Math.min(minY, blockY);
+            minZ = Math.min(minZ, blockZ);
+            maxX = Math.max(maxX, blockX);
+            maxY = Math.max(maxY, blockY);
+            maxZ = Math.max(maxZ, blockZ);
+            area = null;
         }
 
-        blockMap.add(blockData);
-        blockIdMap.add(BlockData.getBlockId(blockData));
-        return blockList.add(blockData);
+        blockKeys[size] = blockKey;
+        worldIds[size] = (short) worldId;
+        materials[size] = (short) materialId;
+        materialData[size] = data;
+        getIndex(worldId).put(blockKey, size);
+        size++;
     }
 
     public boolean addAll(Collection<? extends BlockData> blocks)
@@ -143,76 +222,276 @@ public class BlockList implements Collection<BlockData>
         return triggered;
     }
 
+    protected void allocate(int capacity)
+    {
+        blockIndexes = new LongIndex[0];
+        blockKeys = new long[capacity];
+        materials = new short[capacity];
+        materialData = new byte[capacity];
+        worldIds = new short[capacity];
+    }
+
     public void clear()
     {
-        if (blockList == null)
+        if (blockIndexes != null)
         {
-            return;
+            for (LongIndex index : blockIndexes)
+            {
+                if (index != null)
+                {
+                    index.clear();
+                }
+            }
         }
-        blockList.clear();
+        size = 0;
+        area = null;
     }
 
     public boolean contains(Block block)
     {
-        if (blockMap == null)
-        {
-            return false;
-        }
-
-        return blockIdMap.contains(BlockData.getBlockId(block));
+        return contains(BlockKey.getWorldId(block.getWorld()), BlockKey.getKey(block));
     }
 
     public boolean contains(BlockData blockData)
     {
-        if (blockMap == null || blockData == null)
-        {
-            return false;
-        }
+        return indexOf(blockData) >= 0;
+    }
 
-        return blockMap.contains(blockData);
+    /**
+     * Check for a block by its key.
+     * 
+     * @param worldId
+     *            The block's world id, from BlockKey
+     * @param blockKey
+     *            The block's key
+     * @return true if the block is in this list
+     */
+    public boolean contains(int worldId, long blockKey)
+    {
+        return indexOf(worldId, blockKey) >= 0;
     }
 
     public boolean contains(Object arg0)
     {
-        // Fall back to map
-        return blockMap.contains(arg0) || blockIdMap.contains(arg0);
+        return indexOf(arg0) >= 0;
     }
 
     public boolean containsAll(Collection<?> arg0)
     {
-        if (blockMap == null)
+        for (Object o : arg0)
         {
-            return false;
+            if (!contains(o))
+            {
+                return false;
+            }
         }
-        return blockMap.containsAll(arg0);
+        return true;
     }
 
     // Collection interface- would be great if I could just extend HashSet and
     // have this "just work"
     // TODO : Make that happen in Persistence!
 
-    // For now, this is here to keep the map up to date, and to pass through to
-    // the blockList.
-
     @PersistField(contained = true)
     public BoundingBox getArea()
     {
+        if (area == null && size > 0)
+        {
+            area = new BoundingBox(new BlockVector(minX, minY, minZ), new BlockVector(maxX, maxY, maxZ));
+        }
         return area;
     }
 
+    /**
+     * Create a BlockData for one of the blocks in this list.
+     */
+    protected BlockData getBlockData(int index)
+    {
+        long blockKey = blockKeys[index];
+        World world = BlockKey.getWorld(worldIds[index]);
+        if (world != null)
+        {
+            return new BlockData(world, BlockKey.getX(blockKey), BlockKey.getY(blockKey), BlockKey.getZ(blockKey), Material.getMaterial(materials[index]), materialData[index]);
+        }
+
+        // The world isn't loaded, so find its data by name
+        LocationData location = new LocationData();
+        location.setWorldData(location.getPersistence().get(BlockKey.getWorldName(worldIds[index]), WorldData.class));
+        location.setPosition(new BlockVector(BlockKey.getX(blockKey), BlockKey.getY(blockKey), BlockKey.getZ(blockKey)));
+        BlockData blockData = new BlockData();
+        blockData.setLocation(location);
+        blockData.setMaterial(Material.getMaterial(materials[index]));
+        blockData.setMaterialData(materialData[index]);
+        return blockData;
+    }
+
+    /**
+     * Get the key of one of the blocks in this list.
+     * 
+     * Blocks are kept in the order they were added.
+     * 
+     * @param index
+     *            The block's index, from 0 to size() - 1
+     * @return The block's BlockKey
+     */
+    public long getBlockKey(int index)
+    {
+        return blockKeys[index];
+    }
+
     @PersistField(name = "blocks")
     public ArrayList<BlockData> getBlockList()
     {
+        if (size == 0)
+        {
+            return null;
+        }
+        ArrayList<BlockData> blockList = new ArrayList<BlockData>(size);
+        for (int i = 0; i < size; i++)
+        {
+            blockList.add(getBlockData(i));
+        }
         return blockList;
     }
 
-    public boolean isEmpty()
+    /**
+     * Get the index of a world's blocks, creating it if needed.
+     */
+    protected LongIndex getIndex(int worldId)
     {
-        if (blockList == null)
+        if (worldId >= blockIndexes.length)
+        {
+            LongIndex[] indexes = new LongIndex[worldId + 1];
+            System.arraycopy(blockIndexes, 0, indexes, 0, blockIndexes.length);
+            blockIndexes = indexes;
+        }
+        if (blockIndexes[worldId] == null)
+        {
+            blockIndexes[worldId] = new LongIndex(blockKeys.length);
+        }
+        return blockIndexes[worldId];
+    }
+
+    /**
+     * Get the material data of one of the blocks in this list.
+     * 
+     * @param index
+     *            The block's index, from 0 to size() - 1
+     * @return The block's data, as it was
+     */
+    public byte getMaterialData(int index)
+    {
+        return materialData[index];
+    }
+
+    /**
+     * Get the material id of one of the blocks in this list.
+     * 
+     * @param index
+     *            The block's index, from 0 to size() - 1
+     * @return The id of the block's material, as it was
+     */
+    public int getMaterialId(int index)
+    {
+        return materials[index];
+    }
+
+    /**
+     * Get the world id of one of the blocks in this list.
+     * 
+     * @param index
+     *            The block's index, from 0 to size() - 1
+     * @return The block's world id, from BlockKey
+     */
+    public int getWorldId(int index)
+    {
+        return worldIds[index];
+    }
+
+    /**
+     * Get the world id of a location, by its world's name, so that locations
+     * in worlds that aren't loaded can still be added.
+     * 
+     * @param location
+     *            The location to look up
+     * @return The world id, or -1 if the location has no world
+     */
+    protected static int getWorldId(LocationData location)
+    {
+        WorldData worldData = location == null ? null : location.getWorldData();
+        if (worldData == null || worldData.getName() == null)
+        {
+            return -1;
+        }
+        return worldData.getWorldId();
+    }
+
+    protected void grow(int capacity)
+    {
+        long[] newBlockKeys = new long[capacity];
+        short[] newMaterials = new short[capacity];
+        byte[] newMaterialData = new byte[capacity];
+        short[] newWorldIds = new short[capacity];
+
+        System.arraycopy(blockKeys, 0, newBlockKeys, 0, size);
+        System.arraycopy(materials, 0, newMaterials, 0, size);
+        System.arraycopy(materialData, 0, newMaterialData, 0, size);
+        System.arraycopy(worldIds, 0, newWorldIds, 0, size);
+
+        blockKeys = newBlockKeys;
+        materials = newMaterials;
+        materialData = newMaterialData;
+        worldIds = newWorldIds;
+    }
+
+    /**
+     * Find a block by its key.
+     * 
+     * @param worldId
+     *            The block's world id, from BlockKey
+     * @param blockKey
+     *            The block's key
+     * @return The index of the block, or -1 if it isn't in this list
+     */
+    protected int indexOf(int worldId, long blockKey)
+    {
+        if (blockIndexes == null || worldId >= blockIndexes.length || blockIndexes[worldId] == null)
         {
-            return true;
+            return -1;
         }
-        return blockList.isEmpty();
+        return blockIndexes[worldId].get(blockKey);
+    }
+
+    /**
+     * Find a block in this list.
+     * 
+     * @param o
+     *            A Block or BlockData
+     * @return The index of the block, or -1 if it isn't in this list
+     */
+    protected int indexOf(Object o)
+    {
+        if (o instanceof Block)
+        {
+            Block block = (Block) o;
+            return indexOf(BlockKey.getWorldId(block.getWorld()), BlockKey.getKey(block));
+        }
+        if (o instanceof BlockData)
+        {
+            LocationData location = ((BlockData) o).getLocation();
+            int worldId = getWorldId(location);
+            if (worldId < 0)
+            {
+                return -1;
+            }
+            return indexOf(worldId, BlockKey.getKey(location.getBlockX(), location.getBlockY(), location.getBlockZ()));
+        }
+        return -1;
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
     }
 
     public boolean isExpired()
@@ -222,39 +501,109 @@ public class BlockList implements Collection<BlockData>
 
     public Iterator<BlockData> iterator()
     {
-        if (blockList == null)
+        return new BlockIterator();
+    }
+
+    /**
+     * Rebuild the block indexes after blocks have moved.
+     */
+    protected void reindex()
+    {
+        clear();
+        int count = size;
+        for (int i = 0; i < count; i++)
         {
-            return null;
+            getIndex(worldIds[i]).put(blockKeys[i], i);
         }
-        return blockList.iterator();
+        size = count;
     }
 
     public boolean remove(Object arg0)
     {
         // Note that we never shrink the BB!
-        if (blockList == null)
+        int index = indexOf(arg0);
+        if (index < 0)
         {
             return false;
         }
-        return blockList.remove(arg0);
+        removeIndex(index);
+        return true;
     }
 
     public boolean removeAll(Collection<?> arg0)
     {
-        if (blockList == null)
+        return removeAll(arg0, false);
+    }
+
+    /**
+     * Remove the blocks that are, or aren't, in a collection.
+     * 
+     * Blocks are moved down over the removed ones in one pass, and then the
+     * indexes are rebuilt.
+     * 
+     * @param blocks
+     *            The blocks to check for
+     * @param retain
+     *            If true, remove the blocks that aren't in the collection
+     * @return true if any blocks were removed
+     */
+    protected boolean removeAll(Collection<?> blocks, boolean retain)
+    {
+        if (size == 0)
         {
             return false;
         }
-        return blockList.removeAll(arg0);
-    }
 
-    public boolean retainAll(Collection<?> arg0)
-    {
-        if (blockList == null)
+        boolean[] found = new boolean[size];
+        for (Object o : blocks)
+        {
+            int index = indexOf(o);
+            if (index >= 0)
+            {
+                found[index] = true;
+            }
+        }
+
+        int kept = 0;
+        for (int i = 0; i < size; i++)
+        {
+            if (found[i] != retain)
+            {
+                continue;
+            }
+            if (kept != i)
+            {
+                blockKeys[kept] = blockKeys[i];
+                materials[kept] = materials[i];
+                materialData[kept] = materialData[i];
+                worldIds[kept] = worldIds[i];
+            }
+            kept++;
+        }
+
+        if (kept == size)
         {
             return false;
         }
-        return blockList.retainAll(arg0);
+        size = kept;
+        reindex();
+        return true;
+    }
+
+    protected void removeIndex(int index)
+    {
+        int moved = size - index - 1;
+        System.arraycopy(blockKeys, index + 1, blockKeys, index, moved);
+        System.arraycopy(materials, index + 1, materials, index, moved);
+        System.arraycopy(materialData, index + 1, materialData, index, moved);
+        System.arraycopy(worldIds, index + 1, worldIds, index, moved);
+        size--;
+        reindex();
+    }
+
+    public boolean retainAll(Collection<?> arg0)
+    {
+        return removeAll(arg0, true);
     }
 
     public void setArea(BoundingBox area)
@@ -264,17 +613,19 @@ public class BlockList implements Collection<BlockData>
 
     public void setBlockList(ArrayList<BlockData> blockList)
     {
-        this.blockList = blockList;
+        BoundingBox persistedArea = area;
+        clear();
         if (blockList != null)
         {
-            blockMap = new HashSet<BlockData>();
-            blockIdMap = new HashSet<Long>();
             for (BlockData block : blockList)
             {
-                blockMap.add(block);
-                blockIdMap.add(BlockData.getBlockId(block));
+                add(block);
             }
         }
+        if (persistedArea != null)
+        {
+            area = persistedArea;
+        }
     }
 
     public void setRepetitions(int repeat)
@@ -290,36 +641,34 @@ public class BlockList implements Collection<BlockData>
 
     public int size()
     {
-        if (blockList == null)
-        {
-            return 0;
-        }
-        return blockList.size();
+        return size;
     }
 
     public Object[] toArray()
     {
+        ArrayList<BlockData> blockList = getBlockList();
         if (blockList == null)
         {
-            return null;
+            return new Object[0];
         }
         return blockList.toArray();
     }
 
     public <T> T[] toArray(T[] arg0)
     {
+        ArrayList<BlockData> blockList = getBlockList();
         if (blockList == null)
         {
-            return null;
+            blockList = new ArrayList<BlockData>();
         }
         return blockList.toArray(arg0);
     }
 
     public boolean undo()
     {
-        for (BlockData block : this)
+        for (int i = 0; i < size; i++)
         {
-            if (!block.undo())
+            if (!undo(i))
             {
                 return false;
             }
@@ -327,4 +676,32 @@ public class BlockList implements Collection<BlockData>
 
         return true;
     }
+
+    /**
+     * Put one of the blocks in this list back the way it was.
+     * 
+     * @param index
+     *            The block to restore
+     * @return false if the block's chunk isn't loaded
+     */
+    public boolean undo(int index)
+    {
+        World world = BlockKey.getWorld(worldIds[index]);
+        long blockKey = blockKeys[index];
+        int blockX = BlockKey.getX(blockKey);
+        int blockZ = BlockKey.getZ(blockKey);
+        if (world == null || !world.isChunkLoaded(blockX >> 4, blockZ >> 4))
+        {
+            return false;
+        }
+
+        Block block = world.getBlockAt(blockX, BlockKey.getY(blockKey), blockZ);
+        if (block.getTypeId() != materials[index] || block.getData() != materialData[index])
+        {
+            block.setTypeId(materials[index]);
+            block.setData(materialData[index]);
+        }
+
+        return true;
+    }
 }
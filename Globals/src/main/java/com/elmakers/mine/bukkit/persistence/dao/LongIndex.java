@@ -0,0 +1,199 @@
+package com.elmakers.mine.bukkit.persistence.dao;
+
+/**
+ * A hash map of long keys to int values, such as array indexes, that doesn't
+ * box its keys or values.
+ * 
+ * Keys are stored in a single array using open addressing and linear
+ * probing, so finding or adding a key doesn't allocate anything- except when
+ * the table fills past half and is doubled, or empties below an eighth and is
+ * halved.
+ * 
+ * Values must not be negative.
+ * 
+ * @author NathanWolf
+ * 
+ */
+public class LongIndex
+{
+    public static final int    MISSING         = -1;
+
+    protected static final int defaultCapacity = 16;
+
+    /**
+     * Spread the bits of a key, so that keys that differ only in their high
+     * bits don't all land in the same slot.
+     */
+    protected static int hash(long key)
+    {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ h >>> 32);
+    }
+
+    protected long[] keys;
+    protected int    mask;
+    protected int    size = 0;
+    protected int[]  values;
+
+    public LongIndex()
+    {
+        this(defaultCapacity);
+    }
+
+    /**
+     * Create an index big enough for a number of keys.
+     * 
+     * @param expected
+     *            The number of keys to hold before growing
+     */
+    public LongIndex(int expected)
+    {
+        int capacity = defaultCapacity;
+        while (capacity < expected * 2)
+        {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    protected void allocate(int capacity)
+    {
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        for (int i = 0; i < capacity; i++)
+        {
+            values[i] = MISSING;
+        }
+    }
+
+    public void clear()
+    {
+        for (int i = 0; i < values.length; i++)
+        {
+            values[i] = MISSING;
+        }
+        size = 0;
+    }
+
+    public boolean contains(long key)
+    {
+        return get(key) != MISSING;
+    }
+
+    /**
+     * Find the slot a key is in, or the empty slot it would go in.
+     */
+    protected int find(long key)
+    {
+        int slot = hash(key) & mask;
+        while (values[slot] != MISSING && keys[slot] != key)
+        {
+            slot = slot + 1 & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Look up a key.
+     * 
+     * @param key
+     *            The key to find
+     * @return The key's value, or MISSING
+     */
+    public int get(long key)
+    {
+        return values[find(key)];
+    }
+
+    /**
+     * Add a key, or change its value.
+     * 
+     * @param key
+     *            The key to add
+     * @param value
+     *            The key's value, zero or more
+     * @return The key's previous value, or MISSING if it was just added
+     */
+    public int put(long key, int value)
+    {
+        int slot = find(key);
+        int previous = values[slot];
+        keys[slot] = key;
+        values[slot] = value;
+        if (previous == MISSING)
+        {
+            size++;
+            if (size * 2 > values.length)
+            {
+                resize(values.length * 2);
+            }
+        }
+        return previous;
+    }
+
+    /**
+     * Remove a key.
+     * 
+     * The keys after it are moved back into the gap, so that lookups never
+     * need to skip over removed keys.
+     * 
+     * @param key
+     *            The key to remove
+     * @return The key's value, or MISSING if it wasn't in the index
+     */
+    public int remove(long key)
+    {
+        int slot = find(key);
+        int previous = values[slot];
+        if (previous == MISSING)
+        {
+            return MISSING;
+        }
+
+        int gap = slot;
+        int next = gap + 1 & mask;
+        while (values[next] != MISSING)
+        {
+            // Only move keys that belong at or before the gap
+            int home = hash(keys[next]) & mask;
+            if ((next - home & mask) >= (next - gap & mask))
+            {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+            next = next + 1 & mask;
+        }
+        values[gap] = MISSING;
+        size--;
+
+        // Give memory back once most keys are gone
+        if (values.length > defaultCapacity && size * 8 < values.length)
+        {
+            resize(values.length / 2);
+        }
+        return previous;
+    }
+
+    protected void resize(int capacity)
+    {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldValues.length; i++)
+        {
+            if (oldValues[i] != MISSING)
+            {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    public int size()
+    {
+        return size;
+    }
+}
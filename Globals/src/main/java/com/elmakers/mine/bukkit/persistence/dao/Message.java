@@ -2,6 +2,7 @@ package com.elmakers.mine.bukkit.persistence.dao;
 
 import org.bukkit.command.CommandSender;
 
+import com.elmakers.mine.bukkit.persisted.IndexType;
 import com.elmakers.mine.bukkit.persisted.PersistClass;
 import com.elmakers.mine.bukkit.persisted.PersistField;
 import com.elmakers.mine.bukkit.persisted.Persisted;
@@ -172,7 +173,7 @@ public class Message extends Persisted
         this.messageId = messageId;
     }
 
-    @PersistField
+    @PersistField(index = IndexType.HASH)
     public void setPlugin(PluginData plugin)
     {
         this.plugin = plugin;
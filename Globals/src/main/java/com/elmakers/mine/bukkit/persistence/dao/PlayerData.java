@@ -10,6 +10,7 @@ import org.bukkit.entity.Player;
 
 import com.elmakers.mine.bukkit.permission.PermissionHandler;
 import com.elmakers.mine.bukkit.permission.dao.ProfileData;
+import com.elmakers.mine.bukkit.persisted.LoadMode;
 import com.elmakers.mine.bukkit.persisted.PersistClass;
 import com.elmakers.mine.bukkit.persisted.PersistField;
 import com.elmakers.mine.bukkit.persisted.Persisted;
@@ -30,7 +31,7 @@ import com.elmakers.mine.bukkit.persisted.Persisted;
  * 
  */
 
-@PersistClass(name = "player", schema = "global")
+@PersistClass(name = "player", schema = "global", loadMode = LoadMode.LAZY, cacheTimeout = 3600)
 public class PlayerData extends Persisted
 {
     private static PermissionHandler permissions = null;
@@ -7,6 +7,7 @@ import java.util.List;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 
+import com.elmakers.mine.bukkit.persisted.IndexType;
 import com.elmakers.mine.bukkit.persisted.PersistClass;
 import com.elmakers.mine.bukkit.persisted.PersistField;
 import com.elmakers.mine.bukkit.persisted.Persisted;
@@ -486,7 +487,7 @@ public class PluginCommand extends Persisted implements
         this.permissionType = permissionType;
     }
 
-    @PersistField
+    @PersistField(index = IndexType.HASH)
     public void setPlugin(PluginData plugin)
     {
         this.plugin = plugin;
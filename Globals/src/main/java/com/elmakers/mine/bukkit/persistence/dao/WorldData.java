@@ -25,6 +25,8 @@ public class WorldData extends Persisted
 
     protected World       world;
 
+    protected int         worldId = -1;
+
     public WorldData()
     {
 
@@ -90,6 +92,21 @@ public class WorldData extends Persisted
         return world;
     }
 
+    /**
+     * Get this world's interned id, for use with BlockKey.
+     * 
+     * @return A small id for this world, which won't change while the server
+     *         is running
+     */
+    public int getWorldId()
+    {
+        if (worldId < 0)
+        {
+            worldId = BlockKey.getWorldId(name);
+        }
+        return worldId;
+    }
+
     public void setEnvironmentType(Environment environmentType)
     {
         this.environmentType = environmentType;
@@ -98,6 +115,7 @@ public class WorldData extends Persisted
     public void setName(String name)
     {
         this.name = name;
+        worldId = -1;
     }
 
     public void setSpawn(BlockVector spawn)
@@ -2,9 +2,6 @@ package com.elmakers.mine.bukkit.data.sql;
 
 import java.util.List;
 
-import com.elmakers.mine.bukkit.data.DataField;
-import com.elmakers.mine.bukkit.data.DataRow;
-import com.elmakers.mine.bukkit.data.DataTable;
 import com.elmakers.mine.bukkit.data.DataType;
 
 public class MySQLStore extends SqlStore
@@ -21,12 +18,16 @@ public class MySQLStore extends SqlStore
         this.server = server;
         this.user = user;
         this.password = password;
+
+        // Connector/J reads the whole result into memory unless the fetch
+        // size is MIN_VALUE, which makes it stream rows one at a time.
+        this.fetchSize = Integer.MIN_VALUE;
     }
 
     @Override
     public String getConnectionString(String schema, String user, String password)
     {
-        return "jdbc:mysql://" + server + "/" + schema + "?user=" + user + "&password=" + password;
+        return "jdbc:mysql://" + server + "/" + schema + "?user=" + this.user + "&password=" + this.password;
     }
 
     @Override
@@ -35,63 +36,18 @@ public class MySQLStore extends SqlStore
         return "com.mysql.jdbc.Driver";
     }
 
+    /**
+     * MySQL has no "no limit" value, so use the largest possible limit when
+     * only an offset is given.
+     */
     @Override
-    public String getMasterTableName()
-    {
-        return "information_schema.tables";
-    }
-
-    @Override
-    public DataTable getTableHeader(String tableName)
+    protected String getLimitClause(int limit, int offset)
     {
-        DataTable currentTable = new DataTable(tableName);
-        currentTable.createHeader();
-        DataRow headerRow = currentTable.getHeader();
-
-        DataTable pragmaTable = new DataTable("pragma");
-        String pragmaSql = "PRAGMA TABLE_INFO(\"" + tableName + "\")";
-        load(pragmaTable, pragmaSql);
-
-        List<DataRow> pragmaRows = pragmaTable.getRows();
-        for (DataRow row : pragmaRows)
+        if (limit < 0 && offset > 0)
         {
-            DataField nameField = row.get("name");
-            DataField typeField = row.get("type");
-
-            if (nameField == null || typeField == null)
-            {
-                continue;
-            }
-
-            String fieldName = (String) nameField.getValue();
-            String fieldType = (String) typeField.getValue();
-            DataType dataType = getTypeFromName(fieldType);
-
-            DataField newColumn = new DataField(fieldName, dataType);
-            headerRow.add(newColumn);
+            return " LIMIT 18446744073709551615 OFFSET " + offset;
         }
-
-        return currentTable;
-    }
-
-    // This is all really pointless since SqlLite doesn't even really type
-    // things :\
-    public DataType getTypeFromName(String typeName)
-    {
-        if (typeName.equalsIgnoreCase("INTEGER"))
-        {
-            return DataType.LONG;
-        }
-        else if (typeName.equalsIgnoreCase("REAL"))
-        {
-            return DataType.DOUBLE;
-        }
-        else if (typeName.equalsIgnoreCase("TEXT"))
-        {
-            return DataType.STRING;
-        }
-
-        return DataType.NULL;
+        return super.getLimitClause(limit, offset);
     }
 
     @Override
@@ -102,20 +58,63 @@ public class MySQLStore extends SqlStore
             case INTEGER:
                 return "INTEGER";
             case BYTE:
-                return "INTEGER";
+                return "TINYINT";
             case LONG:
-                return "INTEGER";
+                return "BIGINT";
             case BOOLEAN:
-                return "INTEGER";
+                return "TINYINT";
             case DATE:
-                return "INTEGER";
+                return "BIGINT";
             case DOUBLE:
-                return "REAL";
+                return "DOUBLE";
             case FLOAT:
-                return "REAL";
+                return "DOUBLE";
             case STRING:
                 return "TEXT";
         }
         return null;
     }
+
+    /**
+     * TEXT columns can't be used in a primary key, so key strings are
+     * VARCHARs.
+     */
+    @Override
+    public String getTypeName(DataType dataType, boolean key)
+    {
+        if (key && dataType == DataType.STRING)
+        {
+            return "VARCHAR(255)";
+        }
+        return getTypeName(dataType);
+    }
+
+    /**
+     * MySQL has no INSERT OR REPLACE. REPLACE would delete and re-insert the
+     * row, so update it in place instead.
+     */
+    @Override
+    protected String getUpsertSql(String tableName, List<String> columns, int rowCount)
+    {
+        String updateList = "";
+        for (String column : columns)
+        {
+            if (updateList.length() > 0)
+            {
+                updateList += ", ";
+            }
+            updateList += quote(column) + " = VALUES(" + quote(column) + ")";
+        }
+        return "INSERT INTO " + quote(tableName) + " (" + getColumnList(columns) + ") VALUES " + getValuesList(columns.size(), rowCount) + " ON DUPLICATE KEY UPDATE " + updateList;
+    }
+
+    /**
+     * MySQL only accepts double-quoted names in ANSI_QUOTES mode, so use
+     * backticks.
+     */
+    @Override
+    public String quote(String identifier)
+    {
+        return "`" + identifier + "`";
+    }
 }
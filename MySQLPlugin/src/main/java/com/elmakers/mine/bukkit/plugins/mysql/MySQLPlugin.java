@@ -1,6 +1,5 @@
 package com.elmakers.mine.bukkit.plugins.mysql;
 
-import java.io.File;
 import java.util.logging.Logger;
 
 import org.bukkit.plugin.PluginDescriptionFile;
@@ -11,7 +10,7 @@ import com.elmakers.mine.bukkit.data.DataStoreProvider;
 import com.elmakers.mine.bukkit.data.sql.MySQLStore;
 
 /**
- * A plugin to add a SQLite DataStore provider to the Persistence plugin
+ * A plugin to add a MySQL DataStore provider to the Persistence plugin
  * 
  * @author NathanWolf
  * 
@@ -36,14 +35,12 @@ public class MySQLPlugin extends JavaPlugin implements DataStoreProvider
 
     public DataStore createStore(String schema)
     {
-        File dataFolder = getDataFolder();
-        dataFolder.mkdirs();
-        return new MySQLStore(schema, user, server, password);
+        return new MySQLStore(schema, server, user, password);
     }
 
     public String getType()
     {
-        return "sqlite";
+        return "mysql";
     }
 
     public void intialize()
@@ -70,6 +67,7 @@ public class MySQLPlugin extends JavaPlugin implements DataStoreProvider
      */
     public void onEnable()
     {
+        intialize();
         PluginDescriptionFile pdfFile = this.getDescription();
         log.info(pdfFile.getName() + " version " + pdfFile.getVersion() + " is enabled");
     }
@@ -218,22 +218,32 @@ public class PermissionManager implements PermissionHandler
         {
             profiles = PermissionProfile.loadProfiles(this, server, reader);
             log.info("Persistence: loaded " + profiles.length + " profiles from " + permissionsFile.getName());
+
+            // Look up all of the profiles at once
+            List<String> profileNames = new ArrayList<String>(profiles.length);
             for (PermissionProfile profile : profiles)
             {
+                profileNames.add(profile.getName());
+            }
+            List<ProfileData> profileData = persistence.getMany(profileNames, ProfileData.class);
+
+            for (int i = 0; i < profiles.length; i++)
+            {
+                PermissionProfile profile = profiles[i];
                 String profileName = profile.getName();
                 if (profileName.equalsIgnoreCase("default"))
                 {
                     defaultProfile = profile;
                 }
-                ProfileData profileData = persistence.get(profileName, ProfileData.class);
-                if (profileData == null)
+                ProfileData data = profileData == null ? null : profileData.get(i);
+                if (data == null)
                 {
-                    profileData = new ProfileData(profileName);
-                    persistence.put(profileData);
+                    data = new ProfileData(profileName);
+                    persistence.put(data);
                 }
 
                 // / This is setting a transient instance
-                profileData.setProfile(profile);
+                data.setProfile(profile);
             }
         }
         catch (InvalidPermissionProfileException e)
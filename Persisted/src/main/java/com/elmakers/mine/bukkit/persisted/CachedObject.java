@@ -6,6 +6,7 @@ public class CachedObject
     private long    cacheTime;
     private boolean dirty;
     private Object  object;
+    private Object  savedState;
 
     public CachedObject(Object o)
     {
@@ -26,6 +27,18 @@ public class CachedObject
         return object;
     }
 
+    /**
+     * Get the state of this object as it was last loaded or saved.
+     * 
+     * This is used by Persistence to only write the data that has changed.
+     * 
+     * @return The saved state, or null if unknown
+     */
+    public Object getSavedState()
+    {
+        return savedState;
+    }
+
     public boolean isCached()
     {
         return cached;
@@ -41,6 +54,11 @@ public class CachedObject
         cached = c;
     }
 
+    public void setDirty()
+    {
+        dirty = true;
+    }
+
     public void setObject(Object o)
     {
         object = o;
@@ -48,6 +66,19 @@ public class CachedObject
         updateCacheTime();
     }
 
+    /**
+     * Record that this object has been accessed, for cache eviction.
+     */
+    public void touch()
+    {
+        updateCacheTime();
+    }
+
+    public void setSavedState(Object savedState)
+    {
+        this.savedState = savedState;
+    }
+
     public void setSaved()
     {
         dirty = false;
@@ -2,13 +2,19 @@ package com.elmakers.mine.bukkit.persisted;
 
 public class EntityInfo
 {
-    private boolean cached    = true;
+    private boolean  cached       = true;
 
-    private boolean contained = false;
+    private int      cacheTimeout = 0;
 
-    private String  name;
+    private boolean  contained    = false;
 
-    private String  schema;
+    private LoadMode loadMode     = LoadMode.PRELOAD;
+
+    private int      maxCached    = 0;
+
+    private String   name;
+
+    private String   schema;
 
     public EntityInfo(PersistClass defaults)
     {
@@ -16,6 +22,9 @@ public class EntityInfo
         name = defaults.name();
         contained = defaults.contained();
         cached = defaults.cached();
+        loadMode = defaults.loadMode();
+        maxCached = defaults.maxCached();
+        cacheTimeout = defaults.cacheTimeout();
     }
 
     public EntityInfo(String schema, String name)
@@ -24,6 +33,21 @@ public class EntityInfo
         this.name = name;
     }
 
+    public int getCacheTimeout()
+    {
+        return cacheTimeout;
+    }
+
+    public LoadMode getLoadMode()
+    {
+        return loadMode;
+    }
+
+    public int getMaxCached()
+    {
+        return maxCached;
+    }
+
     public String getName()
     {
         return name;
@@ -49,11 +73,26 @@ public class EntityInfo
         this.cached = cached;
     }
 
+    public void setCacheTimeout(int cacheTimeout)
+    {
+        this.cacheTimeout = cacheTimeout;
+    }
+
     public void setContained(boolean contained)
     {
         this.contained = contained;
     }
 
+    public void setLoadMode(LoadMode loadMode)
+    {
+        this.loadMode = loadMode;
+    }
+
+    public void setMaxCached(int maxCached)
+    {
+        this.maxCached = maxCached;
+    }
+
     public void setName(String name)
     {
         this.name = name;
@@ -2,21 +2,23 @@ package com.elmakers.mine.bukkit.persisted;
 
 public class FieldInfo
 {
-    private boolean auto      = false;
+    private boolean   auto      = false;
 
-    private boolean contained = false;
+    private boolean   contained = false;
 
-    private String  field;
+    private String    field;
 
-    private String  getter;
+    private String    getter;
 
-    private boolean id        = false;
+    private boolean   id        = false;
 
-    private String  name;
+    private IndexType index     = IndexType.NONE;
 
-    private boolean readonly  = false;
+    private String    name;
 
-    private String  setter;
+    private boolean   readonly  = false;
+
+    private String    setter;
 
     public FieldInfo()
     {
@@ -29,6 +31,7 @@ public class FieldInfo
         contained = fieldInfo.contained();
         readonly = fieldInfo.readonly();
         name = fieldInfo.name();
+        index = fieldInfo.index();
     }
 
     public FieldInfo(String name)
@@ -46,6 +49,11 @@ public class FieldInfo
         return getter;
     }
 
+    public IndexType getIndexType()
+    {
+        return index;
+    }
+
     public String getName()
     {
         return name;
@@ -101,6 +109,11 @@ public class FieldInfo
         this.id = id;
     }
 
+    public void setIndexType(IndexType index)
+    {
+        this.index = index;
+    }
+
     public void setName(String name)
     {
         this.name = name;
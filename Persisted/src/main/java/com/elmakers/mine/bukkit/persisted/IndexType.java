@@ -0,0 +1,31 @@
+package com.elmakers.mine.bukkit.persisted;
+
+/**
+ * The kind of secondary index to keep on a persisted field.
+ * 
+ * Indexed fields can be searched with Persistence.findBy without looking at
+ * every cached object.
+ * 
+ * @author NathanWolf
+ * @see PersistField#index()
+ * 
+ */
+public enum IndexType
+{
+    /**
+     * Index by value, for finding objects with a field equal to a value.
+     */
+    HASH,
+
+    /**
+     * Don't index this field.
+     */
+    NONE,
+
+    /**
+     * Index in sorted order, for finding equal values or a range of values.
+     * 
+     * The field must be a primitive, or Comparable.
+     */
+    SORTED
+}
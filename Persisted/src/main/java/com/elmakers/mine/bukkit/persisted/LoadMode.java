@@ -0,0 +1,21 @@
+package com.elmakers.mine.bukkit.persisted;
+
+/**
+ * Controls how a persisted class loads its data from the data store.
+ * 
+ * @author NathanWolf
+ * @see PersistClass#loadMode()
+ * 
+ */
+public enum LoadMode
+{
+    /**
+     * Load each entity the first time it is requested.
+     */
+    LAZY,
+
+    /**
+     * Load every entity the first time any entity is requested.
+     */
+    PRELOAD
+}
@@ -33,6 +33,19 @@ public @interface PersistClass
      */
     boolean cached() default true;
 
+    /**
+     * How long an entity may go unused before it is dropped from the cache,
+     * in seconds.
+     * 
+     * Only used by classes with LoadMode.LAZY, since an evicted entity will
+     * be re-loaded from the data store the next time it is requested.
+     * Modified entities are not evicted until they have been saved, so they
+     * may stay cached past this time until the next save.
+     * 
+     * @return The idle time, or 0 to keep entities cached indefinitely
+     */
+    int cacheTimeout() default 0;
+
     /**
      * Specify that a class may only be used when contained in another class.
      * 
@@ -42,6 +55,31 @@ public @interface PersistClass
      */
     boolean contained() default false;
 
+    /**
+     * How to load this entity from the data store.
+     * 
+     * By default, the whole table is loaded into the cache the first time any
+     * entity is requested. This is best for small lookup tables.
+     * 
+     * Large tables should use LoadMode.LAZY, which loads each entity by its id
+     * the first time it is requested. Use an id, rather than getAll, to look
+     * up lazy entities- getAll will load the entire table.
+     * 
+     * @return The load mode for this entity
+     */
+    LoadMode loadMode() default LoadMode.PRELOAD;
+
+    /**
+     * The maximum number of entities to keep in the cache.
+     * 
+     * Only used by classes with LoadMode.LAZY- the least recently used
+     * entities are evicted first.
+     * 
+     * @return The maximum cache size, or 0 for no limit
+     * @see #cacheTimeout()
+     */
+    int maxCached() default 0;
+
     /**
      * The name to use when storing this entity.
      * 
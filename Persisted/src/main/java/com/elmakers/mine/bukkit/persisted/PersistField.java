@@ -55,6 +55,18 @@ public @interface PersistField
      */
     boolean id() default false;
 
+    /**
+     * Specify that this field should be indexed.
+     * 
+     * Indexed fields can be searched quickly with Persistence.findBy, and
+     * sorted indexes with Persistence.findRange.
+     * 
+     * This is not valid for lists.
+     * 
+     * @return The type of index to keep for this field.
+     */
+    IndexType index() default IndexType.NONE;
+
     /**
      * Specify the column name to use for this field.
      * 
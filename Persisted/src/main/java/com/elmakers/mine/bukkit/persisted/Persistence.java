@@ -1,5 +1,6 @@
 package com.elmakers.mine.bukkit.persisted;
 
+import java.util.Collection;
 import java.util.List;
 
 import com.elmakers.mine.bukkit.persistence.exception.InvalidPersistedClassException;
@@ -7,6 +8,52 @@ import com.elmakers.mine.bukkit.persistence.exception.InvalidPersistedClassExcep
 public interface Persistence
 {
 
+    /**
+     * Find all instances of a type with a field equal to a value.
+     * 
+     * If the field has an index, only the matching objects are looked at.
+     * Otherwise, every instance is checked.
+     * 
+     * @param <T>
+     *            The base type of object. This is an invisible parameter, you
+     *            don't need to worry about it
+     * @param objectType
+     *            The type of object to search for
+     * @param fieldName
+     *            The name of the persisted field to search on
+     * @param value
+     *            The value to look for, which may be null
+     * @return The matching objects, or null if the type or field is invalid
+     * @see PersistField#index()
+     */
+    public abstract <T> List<T> findBy(Class<T> objectType, String fieldName, Object value);
+
+    /**
+     * Find all instances of a type with a field in a range of values.
+     * 
+     * The range includes the minimum value, but not the maximum. Objects with
+     * a null value are never included.
+     * 
+     * If the field has a sorted index, only the matching objects are looked
+     * at. Otherwise, every instance is checked.
+     * 
+     * @param <T>
+     *            The base type of object. This is an invisible parameter, you
+     *            don't need to worry about it
+     * @param objectType
+     *            The type of object to search for
+     * @param fieldName
+     *            The name of the persisted field to search on, which must be
+     *            a primitive or Comparable
+     * @param min
+     *            The lowest value to find, or null for no minimum
+     * @param max
+     *            The value to find up to, or null for no maximum
+     * @return The matching objects, or null if the type or field is invalid
+     * @see IndexType#SORTED
+     */
+    public abstract <T> List<T> findRange(Class<T> objectType, String fieldName, Object min, Object max);
+
     /**
      * Retrieve an instance of the specified type.
      * 
@@ -53,6 +100,43 @@ public interface Persistence
     
     public abstract <T> List<T> getAll(Class<T> objectType);
 
+    /**
+     * Retrieve several instances of the specified type by id.
+     * 
+     * This is the same as calling get() for each id, but any objects that
+     * need to be loaded from the data store are loaded together.
+     * 
+     * @param <T>
+     *            The base type of object. This is an invisible parameter, you
+     *            don't need to worry about it
+     * @param ids
+     *            The ids of the objects to lookup
+     * @param objectType
+     *            The type of object to search for
+     * @return The object for each id, in the same order as the ids, with null
+     *         for any that weren't found. Returns null if the type is invalid.
+     */
+    public abstract <T> List<T> getMany(Collection<?> ids, Class<T> objectType);
+
+    /**
+     * Retrieve several instances of the specified type by id, and find out
+     * which ones don't exist.
+     * 
+     * @param <T>
+     *            The base type of object. This is an invisible parameter, you
+     *            don't need to worry about it
+     * @param ids
+     *            The ids of the objects to lookup
+     * @param objectType
+     *            The type of object to search for
+     * @param missing
+     *            A list to add the ids that weren't found to
+     * @return The object for each id, in the same order as the ids, with null
+     *         for any that weren't found. Returns null if the type is invalid.
+     * @see #getMany(Collection, Class)
+     */
+    public abstract <T> List<T> getMany(Collection<?> ids, Class<T> objectType, List<Object> missing);
+
     /**
      * Retrieve or create a persisted class, using the annotations built into
      * the class.
@@ -0,0 +1,402 @@
+package com.elmakers.mine.bukkit.persistence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import com.elmakers.com.bukkit.data.exception.InvalidDataException;
+import com.elmakers.mine.bukkit.data.DataStore;
+import com.elmakers.mine.bukkit.persisted.PersistedReference;
+
+/**
+ * Loads the caches of a set of persisted classes up front, several at a time.
+ * 
+ * Normally, a class is loaded the first time it is used. Warming up loads
+ * every registered class before then, using a few threads.
+ * 
+ * Classes are loaded after the classes they reference, so that binding their
+ * references finds the referenced objects already cached. Classes that
+ * reference each other are loaded together, one after the other, on a single
+ * thread.
+ * 
+ * Lazy classes only load their objects when they are referenced, which may
+ * happen while a class that references them is loading. Two classes that
+ * reference the same lazy class are never loaded at the same time, so a lazy
+ * class is only ever loading on one thread.
+ * 
+ * Each loader thread uses its own connection, so fewer threads are used than
+ * a data store has connections, leaving one free for saving. Loaders release
+ * their connections when they finish each class.
+ * 
+ * The caller should wait for the warm-up to finish before using any of the
+ * classes.
+ * 
+ * @author NathanWolf
+ * 
+ */
+public class CacheWarmer
+{
+    class WarmUp implements Callable<WarmUp>
+    {
+        public final List<PersistentClass> classes;
+        public final Set<PersistentClass>  lazyClasses = new HashSet<PersistentClass>();
+        public final long[]                times;
+
+        public WarmUp(List<PersistentClass> classes)
+        {
+            this.classes = classes;
+            this.times = new long[classes.size()];
+            for (PersistentClass persistedClass : classes)
+            {
+                lazyClasses.addAll(getLazyReferences(persistedClass));
+            }
+        }
+
+        public WarmUp call()
+        {
+            for (int i = 0; i < times.length; i++)
+            {
+                PersistentClass persistedClass = classes.get(i);
+                DataStore store = persistedClass.getDefaultStore();
+                long start = System.nanoTime();
+                try
+                {
+                    persistedClass.checkLoadCache(store);
+                }
+                catch (InvalidDataException e)
+                {
+                    log.warning("Persistence: Failed to load " + getName(persistedClass) + ": " + e.getMessage());
+                }
+                catch (RuntimeException e)
+                {
+                    // Don't let one broken class stop the rest loading
+                    log.warning("Persistence: Error loading " + getName(persistedClass) + ": " + e);
+                }
+                finally
+                {
+                    if (store != null)
+                    {
+                        store.release();
+                    }
+                }
+                times[i] = System.nanoTime() - start;
+            }
+            return this;
+        }
+    }
+
+    protected static Logger log = Persistence.getLogger();
+
+    /**
+     * Add the classes a class references to a set.
+     * 
+     * Contained objects are stored with the class, so the classes that they
+     * reference are added instead.
+     * 
+     * @param persistedClass
+     *            The class to check
+     * @param references
+     *            The set to add referenced classes to
+     */
+    protected static void addReferences(PersistentClass persistedClass, Set<PersistentClass> references)
+    {
+        for (PersistedField field : persistedClass.getPersistedFields())
+        {
+            if (!(field instanceof PersistedReference))
+            {
+                continue;
+            }
+            PersistentClass referenceType = field.getReferenceType();
+            if (referenceType == null || referenceType == persistedClass)
+            {
+                continue;
+            }
+            if (referenceType.hasContainer())
+            {
+                addReferences(referenceType, references);
+            }
+            else
+            {
+                references.add(referenceType);
+            }
+        }
+    }
+
+    protected static String getName(PersistentClass persistedClass)
+    {
+        return persistedClass.getSchemaName() + "." + persistedClass.getTableName();
+    }
+
+    protected final Map<PersistentClass, Set<PersistentClass>> dependencies   = new LinkedHashMap<PersistentClass, Set<PersistentClass>>();
+    protected final Map<PersistentClass, Set<PersistentClass>> lazyReferences = new LinkedHashMap<PersistentClass, Set<PersistentClass>>();
+    protected final Map<PersistentClass, Long>                 loadTimes      = new LinkedHashMap<PersistentClass, Long>();
+    protected final int                                        threads;
+
+    /**
+     * Prepare to warm up all of the classes in a list of schemas.
+     * 
+     * @param schemas
+     *            The schemas to load
+     * @param threads
+     *            The most classes to load at once
+     */
+    public CacheWarmer(List<Schema> schemas, int threads)
+    {
+        // Leave a connection free in each store for saving
+        for (Schema schema : schemas)
+        {
+            DataStore store = schema.getStore();
+            int maxConnections = store == null ? 0 : store.getMaxConnections();
+            if (maxConnections > 0)
+            {
+                threads = Math.min(threads, maxConnections - 1);
+            }
+        }
+        this.threads = Math.max(1, threads);
+
+        Set<PersistentClass> classes = new LinkedHashSet<PersistentClass>();
+        for (Schema schema : schemas)
+        {
+            for (PersistentClass persistedClass : schema.getPersistedClasses())
+            {
+                if (!persistedClass.isContainedClass())
+                {
+                    classes.add(persistedClass);
+                }
+            }
+        }
+
+        // Only wait for classes that are being warmed up
+        for (PersistentClass persistedClass : classes)
+        {
+            Set<PersistentClass> references = new HashSet<PersistentClass>();
+            addReferences(persistedClass, references);
+            references.retainAll(classes);
+            dependencies.put(persistedClass, references);
+        }
+    }
+
+    /**
+     * Get the time it took to load each class.
+     * 
+     * @return The load time of each class, in nanoseconds
+     */
+    public Map<PersistentClass, Long> getLoadTimes()
+    {
+        return loadTimes;
+    }
+
+    /**
+     * Get all of the lazy classes that loading a class may load objects from.
+     * 
+     * @param persistedClass
+     *            The class to check
+     * @return The lazy classes the class references, directly or through
+     *         other lazy classes
+     */
+    protected Set<PersistentClass> getLazyReferences(PersistentClass persistedClass)
+    {
+        Set<PersistentClass> lazy = lazyReferences.get(persistedClass);
+        if (lazy != null)
+        {
+            return lazy;
+        }
+
+        lazy = new HashSet<PersistentClass>();
+        List<PersistentClass> check = new ArrayList<PersistentClass>();
+        check.add(persistedClass);
+        while (check.size() > 0)
+        {
+            PersistentClass checkClass = check.remove(check.size() - 1);
+            Set<PersistentClass> references = dependencies.get(checkClass);
+            if (references == null)
+            {
+                continue;
+            }
+            for (PersistentClass reference : references)
+            {
+                if (reference.isLazy() && lazy.add(reference))
+                {
+                    check.add(reference);
+                }
+            }
+        }
+        lazyReferences.put(persistedClass, lazy);
+        return lazy;
+    }
+
+    /**
+     * Check to see if a class can be loaded while others are loading.
+     * 
+     * @return true if the class shares no lazy references with the running
+     *         warm-ups
+     */
+    protected boolean isIndependent(PersistentClass persistedClass, List<WarmUp> running)
+    {
+        Set<PersistentClass> lazy = getLazyReferences(persistedClass);
+        for (WarmUp warmUp : running)
+        {
+            for (PersistentClass lazyClass : lazy)
+            {
+                if (warmUp.lazyClasses.contains(lazyClass))
+                {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Log the load time of each class, slowest first.
+     */
+    protected void report(long elapsed)
+    {
+        List<Map.Entry<PersistentClass, Long>> times = new ArrayList<Map.Entry<PersistentClass, Long>>(loadTimes.entrySet());
+        Collections.sort(times, new Comparator<Map.Entry<PersistentClass, Long>>()
+        {
+            public int compare(Map.Entry<PersistentClass, Long> entry, Map.Entry<PersistentClass, Long> other)
+            {
+                return other.getValue().compareTo(entry.getValue());
+            }
+        });
+
+        long serial = 0;
+        for (Map.Entry<PersistentClass, Long> entry : times)
+        {
+            long time = entry.getValue();
+            serial += time;
+            log.info("Persistence: Loaded " + getName(entry.getKey()) + " in " + TimeUnit.NANOSECONDS.toMillis(time) + "ms");
+        }
+        log.info("Persistence: Warmed up " + times.size() + " classes in " + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms using " + threads + " threads (" + TimeUnit.NANOSECONDS.toMillis(serial) + "ms of loading)");
+    }
+
+    /**
+     * Load every class, and wait for them to finish.
+     * 
+     * If the timeout passes, no more classes are started, but the classes
+     * that are already loading are waited for- they can't be safely stopped.
+     * 
+     * @param timeout
+     *            The longest to wait, in milliseconds
+     * @return true if every class was loaded in time
+     */
+    public boolean warm(long timeout)
+    {
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "Persistence Loader");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        CompletionService<WarmUp> completion = new ExecutorCompletionService<WarmUp>(executor);
+
+        long start = System.nanoTime();
+        long deadline = System.currentTimeMillis() + timeout;
+        Set<PersistentClass> pending = new LinkedHashSet<PersistentClass>(dependencies.keySet());
+        Set<PersistentClass> loaded = new HashSet<PersistentClass>();
+        List<WarmUp> running = new ArrayList<WarmUp>();
+        Map<Future<WarmUp>, WarmUp> futures = new HashMap<Future<WarmUp>, WarmUp>();
+        boolean success = true;
+        try
+        {
+            while (pending.size() > 0 || running.size() > 0)
+            {
+                // Start every class whose references are loaded
+                List<PersistentClass> started = new ArrayList<PersistentClass>();
+                for (PersistentClass persistedClass : pending)
+                {
+                    if (running.size() >= threads)
+                    {
+                        break;
+                    }
+                    if (loaded.containsAll(dependencies.get(persistedClass)) && isIndependent(persistedClass, running))
+                    {
+                        WarmUp warmUp = new WarmUp(Collections.singletonList(persistedClass));
+                        futures.put(completion.submit(warmUp), warmUp);
+                        running.add(warmUp);
+                        started.add(persistedClass);
+                    }
+                }
+                pending.removeAll(started);
+
+                // Anything left is waiting on a reference cycle, load it all
+                // together.
+                if (running.size() == 0)
+                {
+                    WarmUp warmUp = new WarmUp(new ArrayList<PersistentClass>(pending));
+                    futures.put(completion.submit(warmUp), warmUp);
+                    running.add(warmUp);
+                    pending.clear();
+                }
+
+                long wait = deadline - System.currentTimeMillis();
+                Future<WarmUp> done = wait > 0 ? completion.poll(wait, TimeUnit.MILLISECONDS) : null;
+                if (done == null)
+                {
+                    log.warning("Persistence: Warm-up timed out, " + pending.size() + " classes will load when used");
+                    for (int i = 0; i < running.size(); i++)
+                    {
+                        completion.take();
+                    }
+                    return false;
+                }
+
+                WarmUp warmUp = futures.remove(done);
+                running.remove(warmUp);
+
+                // Classes that failed will load when used, let the classes
+                // that reference them carry on
+                loaded.addAll(warmUp.classes);
+                try
+                {
+                    done.get();
+                    for (int i = 0; i < warmUp.times.length; i++)
+                    {
+                        loadTimes.put(warmUp.classes.get(i), warmUp.times[i]);
+                    }
+                }
+                catch (ExecutionException e)
+                {
+                    success = false;
+                    for (PersistentClass persistedClass : warmUp.classes)
+                    {
+                        log.warning("Persistence: Error loading " + getName(persistedClass) + ": " + e.getCause());
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        report(System.nanoTime() - start);
+        return success;
+    }
+}
@@ -0,0 +1,205 @@
+package com.elmakers.mine.bukkit.persistence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.elmakers.mine.bukkit.data.DataStore;
+import com.elmakers.mine.bukkit.data.DataTable;
+import com.elmakers.mine.bukkit.persisted.CachedObject;
+
+/**
+ * A copy of the pending changes to a persisted class, ready to be written to
+ * a data store.
+ * 
+ * Taking a snapshot marks the cached objects as saved. If writing the snapshot
+ * fails, restore() will mark them dirty again so the next save retries them.
+ * 
+ * @author NathanWolf
+ * 
+ */
+public class EntitySnapshot
+{
+    protected static Logger         log            = Persistence.getLogger();
+
+    protected DataTable             classTable     = null;
+    protected List<DataTable>       listAdditions  = new ArrayList<DataTable>();
+    protected List<List<Object>>    listIds        = new ArrayList<List<Object>>();
+    protected List<DataTable>       listRemovals   = new ArrayList<DataTable>();
+    protected List<DataTable>       listTables     = new ArrayList<DataTable>();
+    protected final PersistentClass persistedClass;
+    protected List<CachedObject>    removedObjects = new ArrayList<CachedObject>();
+    protected List<Object>          removedIds     = new ArrayList<Object>();
+    protected DataTable             removedTable   = null;
+    protected List<CachedObject>    savedObjects   = new ArrayList<CachedObject>();
+    protected DataTable             updateTable    = null;
+
+    /**
+     * Write a set of snapshots to a store in a single transaction.
+     * 
+     * If any part of the write fails, the whole transaction is rolled back and
+     * all of the snapshots are restored.
+     * 
+     * @param store
+     *            The store to write to
+     * @param snapshots
+     *            The snapshots to write
+     * @return true if success
+     */
+    public static boolean write(DataStore store, List<EntitySnapshot> snapshots)
+    {
+        if (snapshots.size() == 0)
+        {
+            return true;
+        }
+
+        boolean success = false;
+        boolean inTransaction = false;
+        try
+        {
+            inTransaction = store != null && store.connect() && store.beginTransaction();
+            success = inTransaction;
+            if (success)
+            {
+                for (EntitySnapshot snapshot : snapshots)
+                {
+                    if (!snapshot.write(store))
+                    {
+                        success = false;
+                        break;
+                    }
+                }
+            }
+
+            if (success)
+            {
+                // Committing ends the transaction, even if it fails
+                inTransaction = false;
+                success = store.commit();
+            }
+        }
+        catch (RuntimeException ex)
+        {
+            log.warning("Persistence: Error saving changes, they will be retried: " + ex);
+            success = false;
+        }
+        finally
+        {
+            // Don't leave a transaction open, every later save would be
+            // nested in it
+            if (inTransaction && !success)
+            {
+                store.rollback();
+            }
+
+            // Let the connection go back to the pool, this is often called
+            // from the background writer.
+            if (store != null)
+            {
+                store.release();
+            }
+
+            for (EntitySnapshot snapshot : snapshots)
+            {
+                if (success)
+                {
+                    snapshot.persistedClass.saved(snapshot);
+                }
+                else
+                {
+                    snapshot.restore();
+                }
+            }
+        }
+
+        return success;
+    }
+
+    public EntitySnapshot(PersistentClass persistedClass)
+    {
+        this.persistedClass = persistedClass;
+    }
+
+    public PersistentClass getPersistedClass()
+    {
+        return persistedClass;
+    }
+
+    public int getRowCount()
+    {
+        return savedObjects.size() + removedObjects.size();
+    }
+
+    public boolean isEmpty()
+    {
+        return savedObjects.size() == 0 && removedObjects.size() == 0;
+    }
+
+    /**
+     * Mark all objects in this snapshot as needing to be saved again.
+     * 
+     * Call this if write() fails, or the transaction it was written in is
+     * rolled back.
+     */
+    public void restore()
+    {
+        persistedClass.restore(this);
+    }
+
+    /**
+     * Write this snapshot to a store.
+     * 
+     * This does not begin or end a transaction, the caller should wrap one or
+     * more snapshots in a transaction.
+     * 
+     * @param store
+     *            The store to write to
+     * @return true if success
+     */
+    public boolean write(DataStore store)
+    {
+        boolean success = true;
+
+        // Drop removed objects
+        if (removedIds.size() > 0)
+        {
+            success = store.clearIds(removedTable, removedIds) && success;
+        }
+
+        // Save new objects
+        if (classTable != null && classTable.getRows().size() > 0)
+        {
+            success = store.save(classTable) && success;
+        }
+
+        // Update changed columns of existing objects
+        if (updateTable != null && updateTable.getRows().size() > 0)
+        {
+            success = store.update(updateTable) && success;
+        }
+
+        // Replace changed lists, this also clears the lists of removed objects
+        for (int i = 0; i < listTables.size(); i++)
+        {
+            List<Object> ids = listIds.get(i);
+            if (ids.size() > 0)
+            {
+                success = store.clearIds(listTables.get(i), ids) && success;
+            }
+
+            // Lists with only a few changes just get their changed rows written
+            DataTable removals = listRemovals.get(i);
+            if (removals.getRows().size() > 0)
+            {
+                success = store.remove(removals) && success;
+            }
+            DataTable additions = listAdditions.get(i);
+            if (additions.getRows().size() > 0)
+            {
+                success = store.save(additions) && success;
+            }
+        }
+
+        return success;
+    }
+}
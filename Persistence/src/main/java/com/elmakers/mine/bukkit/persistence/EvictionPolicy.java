@@ -0,0 +1,41 @@
+package com.elmakers.mine.bukkit.persistence;
+
+import java.util.List;
+
+import com.elmakers.mine.bukkit.persisted.CachedObject;
+
+/**
+ * Decides which objects a persisted class should drop from its cache.
+ * 
+ * @author NathanWolf
+ * @see PersistentClass#setEvictionPolicy(EvictionPolicy)
+ * 
+ */
+public interface EvictionPolicy
+{
+    /**
+     * Choose the cached objects to evict.
+     * 
+     * @param candidates
+     *            The objects that may be evicted- these are all saved, and
+     *            have no pending writes
+     * @param cacheSize
+     *            The total number of objects in the cache, including those
+     *            that may not be evicted
+     * @param now
+     *            The current time, in milliseconds
+     * @return The objects to evict
+     */
+    public List<CachedObject> getEvictions(List<CachedObject> candidates, int cacheSize, long now);
+
+    /**
+     * Check to see if the cache has grown large enough that it should be
+     * evicted from immediately, rather than waiting for the next periodic
+     * eviction.
+     * 
+     * @param cacheSize
+     *            The number of objects in the cache
+     * @return true to evict now
+     */
+    public boolean isFull(int cacheSize);
+}
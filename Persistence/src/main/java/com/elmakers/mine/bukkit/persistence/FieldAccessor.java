@@ -0,0 +1,239 @@
+package com.elmakers.mine.bukkit.persistence;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Reads and writes a single persisted field of an object.
+ * 
+ * Accessors are created once, when a class is bound, so that the reflection
+ * lookups and access checks aren't repeated for every row that is loaded or
+ * saved.
+ * 
+ * Fields of type int, long and double have their own accessors, which read
+ * and write the field without boxing when the primitive methods are used.
+ * 
+ * @author NathanWolf
+ * 
+ */
+public abstract class FieldAccessor
+{
+    static class DoubleFieldAccessor extends ObjectFieldAccessor
+    {
+        public DoubleFieldAccessor(Field field)
+        {
+            super(field);
+        }
+
+        @Override
+        public double getDouble(Object o) throws IllegalAccessException
+        {
+            return field.getDouble(o);
+        }
+
+        @Override
+        public void setDouble(Object o, double value) throws IllegalAccessException
+        {
+            field.setDouble(o, value);
+        }
+    }
+
+    static class IntFieldAccessor extends ObjectFieldAccessor
+    {
+        public IntFieldAccessor(Field field)
+        {
+            super(field);
+        }
+
+        @Override
+        public int getInt(Object o) throws IllegalAccessException
+        {
+            return field.getInt(o);
+        }
+
+        @Override
+        public void setInt(Object o, int value) throws IllegalAccessException
+        {
+            field.setInt(o, value);
+        }
+    }
+
+    static class LongFieldAccessor extends ObjectFieldAccessor
+    {
+        public LongFieldAccessor(Field field)
+        {
+            super(field);
+        }
+
+        @Override
+        public long getLong(Object o) throws IllegalAccessException
+        {
+            return field.getLong(o);
+        }
+
+        @Override
+        public void setLong(Object o, long value) throws IllegalAccessException
+        {
+            field.setLong(o, value);
+        }
+    }
+
+    static class MethodAccessor extends FieldAccessor
+    {
+        protected final Method getter;
+        protected final Method setter;
+
+        public MethodAccessor(Method getter, Method setter)
+        {
+            this.getter = getter;
+            this.setter = setter;
+            makeAccessible(getter);
+            makeAccessible(setter);
+        }
+
+        @Override
+        public Object get(Object o) throws IllegalAccessException, InvocationTargetException
+        {
+            return getter.invoke(o);
+        }
+
+        @Override
+        public boolean isWritable()
+        {
+            return setter != null;
+        }
+
+        @Override
+        public void set(Object o, Object value) throws IllegalAccessException, InvocationTargetException
+        {
+            setter.invoke(o, value);
+        }
+    }
+
+    static class ObjectFieldAccessor extends FieldAccessor
+    {
+        protected final Field field;
+
+        public ObjectFieldAccessor(Field field)
+        {
+            this.field = field;
+            makeAccessible(field);
+        }
+
+        @Override
+        public Object get(Object o) throws IllegalAccessException
+        {
+            return field.get(o);
+        }
+
+        @Override
+        public boolean isWritable()
+        {
+            return true;
+        }
+
+        @Override
+        public void set(Object o, Object value) throws IllegalAccessException
+        {
+            field.set(o, value);
+        }
+    }
+
+    /**
+     * Create an accessor for a field.
+     * 
+     * @param field
+     *            The field to access
+     * @return An accessor for the field
+     */
+    public static FieldAccessor create(Field field)
+    {
+        Class<?> type = field.getType();
+        if (type == int.class)
+        {
+            return new IntFieldAccessor(field);
+        }
+        if (type == long.class)
+        {
+            return new LongFieldAccessor(field);
+        }
+        if (type == double.class)
+        {
+            return new DoubleFieldAccessor(field);
+        }
+        return new ObjectFieldAccessor(field);
+    }
+
+    /**
+     * Create an accessor for a getter and setter pair.
+     * 
+     * @param getter
+     *            The getter method
+     * @param setter
+     *            The setter method, or null if read-only
+     * @return An accessor using the getter and setter
+     */
+    public static FieldAccessor create(Method getter, Method setter)
+    {
+        return new MethodAccessor(getter, setter);
+    }
+
+    /**
+     * Turn off access checks, so non-public members can be used, and public
+     * members don't need to be checked on every call.
+     * 
+     * If a security manager won't allow this, the normal checks are used.
+     */
+    protected static void makeAccessible(AccessibleObject member)
+    {
+        if (member == null)
+        {
+            return;
+        }
+        try
+        {
+            member.setAccessible(true);
+        }
+        catch (SecurityException e)
+        {
+        }
+    }
+
+    public abstract Object get(Object o) throws IllegalAccessException, InvocationTargetException;
+
+    public double getDouble(Object o) throws IllegalAccessException, InvocationTargetException
+    {
+        return ((Number) get(o)).doubleValue();
+    }
+
+    public int getInt(Object o) throws IllegalAccessException, InvocationTargetException
+    {
+        return ((Number) get(o)).intValue();
+    }
+
+    public long getLong(Object o) throws IllegalAccessException, InvocationTargetException
+    {
+        return ((Number) get(o)).longValue();
+    }
+
+    public abstract boolean isWritable();
+
+    public abstract void set(Object o, Object value) throws IllegalAccessException, InvocationTargetException;
+
+    public void setDouble(Object o, double value) throws IllegalAccessException, InvocationTargetException
+    {
+        set(o, value);
+    }
+
+    public void setInt(Object o, int value) throws IllegalAccessException, InvocationTargetException
+    {
+        set(o, value);
+    }
+
+    public void setLong(Object o, long value) throws IllegalAccessException, InvocationTargetException
+    {
+        set(o, value);
+    }
+}
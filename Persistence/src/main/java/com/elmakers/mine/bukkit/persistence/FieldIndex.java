@@ -0,0 +1,283 @@
+package com.elmakers.mine.bukkit.persistence;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.elmakers.mine.bukkit.data.DataType;
+import com.elmakers.mine.bukkit.persisted.CachedObject;
+import com.elmakers.mine.bukkit.persisted.IndexType;
+
+/**
+ * A secondary index of the cached objects of a persisted class, by the value
+ * of one of their fields.
+ * 
+ * Indexes are kept up to date as objects are added to and removed from the
+ * cache. An object is re-indexed when it is put() again, which is also how
+ * Persistence knows to save it- so change a field, then put the object.
+ * 
+ * Hash indexes find objects equal to a value. Sorted indexes also find ranges
+ * of values.
+ * 
+ * @author NathanWolf
+ * @see IndexType
+ * 
+ */
+public class FieldIndex
+{
+    /**
+     * Convert a value to match the type of a field, so that an Integer can be
+     * used to find a long field, for instance.
+     * 
+     * @param field
+     *            The field being searched
+     * @param value
+     *            The value to convert
+     * @return The converted value
+     */
+    public static Object convertKey(PersistedField field, Object value)
+    {
+        return DataType.convertValue(value, field.getType());
+    }
+
+    /**
+     * Check to see if a value is in a range.
+     * 
+     * @param key
+     *            The value to check
+     * @param min
+     *            The lowest value in the range, or null for no minimum
+     * @param max
+     *            The value the range goes up to, or null for no maximum
+     * @return true if min <= key < max, false if key is null
+     */
+    @SuppressWarnings("unchecked")
+    public static boolean inRange(Object key, Object min, Object max)
+    {
+        if (key == null)
+        {
+            return false;
+        }
+        Comparable<Object> comparable = (Comparable<Object>) key;
+        if (min != null && comparable.compareTo(min) < 0)
+        {
+            return false;
+        }
+        if (max != null && comparable.compareTo(max) >= 0)
+        {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Check to see if a field can have a sorted index.
+     * 
+     * @param field
+     *            The field to check
+     * @return true for primitive and Comparable fields
+     */
+    public static boolean isSortable(PersistedField field)
+    {
+        if (field instanceof PersistedObject)
+        {
+            return false;
+        }
+        Class<?> fieldType = field.getType();
+        return DataType.isPrimitive(fieldType) || Comparable.class.isAssignableFrom(fieldType);
+    }
+
+    protected final Map<Object, Set<CachedObject>> entries;
+    protected final PersistedField                 field;
+    protected final Map<CachedObject, Object>      keys  = new HashMap<CachedObject, Object>();
+    protected final Set<CachedObject>              nulls = new HashSet<CachedObject>();
+    protected final IndexType                      type;
+
+    public FieldIndex(PersistedField field, IndexType type)
+    {
+        this.field = field;
+        this.type = type;
+        if (type == IndexType.SORTED)
+        {
+            entries = new TreeMap<Object, Set<CachedObject>>();
+        }
+        else
+        {
+            entries = new HashMap<Object, Set<CachedObject>>();
+        }
+    }
+
+    /**
+     * Add an object to this index, or re-index it if its value has changed.
+     * 
+     * @param cached
+     *            The cached object to index
+     */
+    public synchronized void add(CachedObject cached)
+    {
+        Object key = field.get(cached.getObject());
+        if (keys.containsKey(cached))
+        {
+            Object oldKey = keys.get(cached);
+            if (oldKey == null ? key == null : oldKey.equals(key))
+            {
+                return;
+            }
+            remove(cached);
+        }
+
+        keys.put(cached, key);
+        if (key == null)
+        {
+            nulls.add(cached);
+            return;
+        }
+
+        Set<CachedObject> objects = entries.get(key);
+        if (objects == null)
+        {
+            objects = new HashSet<CachedObject>();
+            entries.put(key, objects);
+        }
+        objects.add(cached);
+    }
+
+    public synchronized void clear()
+    {
+        entries.clear();
+        keys.clear();
+        nulls.clear();
+    }
+
+    /**
+     * Find all of the objects with a value.
+     * 
+     * @param value
+     *            The value to find, which may be null
+     * @param results
+     *            A list to add the matching objects to
+     */
+    public synchronized void find(Object value, List<CachedObject> results)
+    {
+        Object key = convertKey(field, value);
+        if (key == null)
+        {
+            results.addAll(nulls);
+            return;
+        }
+
+        Set<CachedObject> objects = entries.get(key);
+        if (objects != null)
+        {
+            results.addAll(objects);
+        }
+    }
+
+    /**
+     * Find all of the objects in a range of values.
+     * 
+     * This is only valid for sorted indexes.
+     * 
+     * @param min
+     *            The lowest value to find, or null for no minimum
+     * @param max
+     *            The value to find up to, or null for no maximum
+     * @param results
+     *            A list to add the matching objects to
+     */
+    public synchronized void findRange(Object min, Object max, List<CachedObject> results)
+    {
+        SortedMap<Object, Set<CachedObject>> range = (SortedMap<Object, Set<CachedObject>>) entries;
+        min = convertKey(field, min);
+        max = convertKey(field, max);
+        if (min != null && max != null)
+        {
+            range = range.subMap(min, max);
+        }
+        else if (min != null)
+        {
+            range = range.tailMap(min);
+        }
+        else if (max != null)
+        {
+            range = range.headMap(max);
+        }
+
+        for (Collection<CachedObject> objects : range.values())
+        {
+            results.addAll(objects);
+        }
+    }
+
+    public PersistedField getField()
+    {
+        return field;
+    }
+
+    public IndexType getType()
+    {
+        return type;
+    }
+
+    public boolean isSorted()
+    {
+        return type == IndexType.SORTED;
+    }
+
+    /**
+     * Remove an object from this index.
+     * 
+     * @param cached
+     *            The cached object to remove
+     */
+    public synchronized void remove(CachedObject cached)
+    {
+        if (!keys.containsKey(cached))
+        {
+            return;
+        }
+
+        Object key = keys.remove(cached);
+        if (key == null)
+        {
+            nulls.remove(cached);
+            return;
+        }
+
+        Set<CachedObject> objects = entries.get(key);
+        if (objects != null)
+        {
+            objects.remove(cached);
+            if (objects.size() == 0)
+            {
+                entries.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Re-index an object if its value has changed.
+     * 
+     * Objects that have been removed from this index are ignored.
+     * 
+     * @param cached
+     *            The cached object to update
+     */
+    public synchronized void update(CachedObject cached)
+    {
+        if (keys.containsKey(cached))
+        {
+            add(cached);
+        }
+    }
+
+    public synchronized int size()
+    {
+        return keys.size();
+    }
+}
@@ -0,0 +1,184 @@
+package com.elmakers.mine.bukkit.persistence;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The references and lists waiting to be bound while objects are loaded.
+ * 
+ * An object's references can't be set while it is being loaded, since the
+ * referenced objects may not be loaded yet- and may refer back to it. So
+ * they are deferred until the outermost load finishes, and then looked up,
+ * which may load other classes in turn.
+ * 
+ * Each thread has its own context, so separate classes and schemas can be
+ * loaded at the same time without binding each other's references. A load
+ * started by another load, on the same thread, shares its context.
+ * 
+ * @author NathanWolf
+ * 
+ */
+public class LoadContext
+{
+    static class DeferredList
+    {
+        public final PersistedList field;
+        public final List<Object>  ids;
+        public final Object        instance;
+
+        public DeferredList(PersistedList field, Object instance, List<Object> ids)
+        {
+            this.field = field;
+            this.instance = instance;
+            this.ids = ids;
+        }
+    }
+
+    static class DeferredReference
+    {
+        public final PersistedObject field;
+        public final Object          object;
+        public final Object          referenceId;
+
+        public DeferredReference(PersistedObject field, Object object, Object referenceId)
+        {
+            this.field = field;
+            this.object = object;
+            this.referenceId = referenceId;
+        }
+    }
+
+    private static final ThreadLocal<LoadContext> current = new ThreadLocal<LoadContext>();
+
+    /**
+     * Get the load context for the current thread.
+     * 
+     * @return The current context, or a new one if nothing is being loaded
+     */
+    public static LoadContext get()
+    {
+        LoadContext context = current.get();
+        if (context == null)
+        {
+            context = new LoadContext();
+            current.set(context);
+        }
+        return context;
+    }
+
+    protected int                           listDepth      = 0;
+    protected final List<DeferredList>      lists          = new ArrayList<DeferredList>();
+    protected int                           referenceDepth = 0;
+    protected final List<DeferredReference> references     = new ArrayList<DeferredReference>();
+
+    public void beginLists()
+    {
+        listDepth++;
+    }
+
+    public void beginReferences()
+    {
+        referenceDepth++;
+    }
+
+    /**
+     * Set a list of references once the current load is done.
+     * 
+     * If lists aren't being deferred, the list is set right away.
+     * 
+     * @param field
+     *            The list field
+     * @param instance
+     *            The object that owns the list
+     * @param ids
+     *            The ids of the objects in the list
+     */
+    public void deferList(PersistedList field, Object instance, List<Object> ids)
+    {
+        if (listDepth == 0)
+        {
+            release();
+            field.bindReferences(instance, ids);
+            return;
+        }
+        lists.add(new DeferredList(field, instance, ids));
+    }
+
+    /**
+     * Set a reference once the current load is done.
+     * 
+     * If references aren't being deferred, the reference is set right away.
+     * 
+     * @param field
+     *            The reference field
+     * @param o
+     *            The object that owns the reference
+     * @param referenceId
+     *            The id of the referenced object
+     */
+    public void deferReference(PersistedObject field, Object o, Object referenceId)
+    {
+        if (referenceDepth == 0)
+        {
+            release();
+            field.bindReference(o, referenceId);
+            return;
+        }
+        references.add(new DeferredReference(field, o, referenceId));
+    }
+
+    /**
+     * Finish deferring lists. When the outermost load is done, the deferred
+     * lists are bound.
+     */
+    public void endLists()
+    {
+        listDepth--;
+        if (listDepth > 0)
+        {
+            return;
+        }
+
+        List<DeferredList> bind = new ArrayList<DeferredList>(lists);
+        lists.clear();
+        release();
+        for (DeferredList list : bind)
+        {
+            list.field.bindReferences(list.instance, list.ids);
+        }
+    }
+
+    /**
+     * Finish deferring references. When the outermost load is done, the
+     * deferred references are bound.
+     */
+    public void endReferences()
+    {
+        referenceDepth--;
+        if (referenceDepth > 0)
+        {
+            return;
+        }
+
+        List<DeferredReference> bind = new ArrayList<DeferredReference>(references);
+        references.clear();
+        release();
+        for (DeferredReference reference : bind)
+        {
+            reference.field.bindReference(reference.object, reference.referenceId);
+        }
+    }
+
+    /**
+     * Stop using this context once nothing is being loaded.
+     * 
+     * Binding may load other classes, which will use a new context.
+     */
+    protected void release()
+    {
+        if (listDepth == 0 && referenceDepth == 0 && current.get() == this)
+        {
+            current.remove();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.elmakers.mine.bukkit.persistence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.elmakers.mine.bukkit.persisted.CachedObject;
+
+/**
+ * Evicts objects that have not been used for a while, and the least recently
+ * used objects once the cache grows past a maximum size.
+ * 
+ * When over its maximum size, this will evict down to 90% of the maximum, so
+ * that a growing cache doesn't need to be sorted on every insert.
+ * 
+ * @author NathanWolf
+ * 
+ */
+public class LruEvictionPolicy implements EvictionPolicy
+{
+    static class LeastRecentFirst implements Comparator<CachedObject>
+    {
+        public int compare(CachedObject a, CachedObject b)
+        {
+            long aTime = a.getCacheTime();
+            long bTime = b.getCacheTime();
+            return aTime < bTime ? -1 : (aTime == bTime ? 0 : 1);
+        }
+    }
+
+    protected static final LeastRecentFirst leastRecentFirst = new LeastRecentFirst();
+
+    protected final long                    idleTime;
+    protected final int                     maxEntries;
+
+    /**
+     * Create a new LRU policy.
+     * 
+     * @param maxEntries
+     *            The maximum number of cached objects, or 0 for no limit
+     * @param idleTime
+     *            The time an object may go unused before it is evicted, in
+     *            milliseconds, or 0 for no limit
+     */
+    public LruEvictionPolicy(int maxEntries, long idleTime)
+    {
+        this.maxEntries = maxEntries;
+        this.idleTime = idleTime;
+    }
+
+    public List<CachedObject> getEvictions(List<CachedObject> candidates, int cacheSize, long now)
+    {
+        List<CachedObject> evictions = new ArrayList<CachedObject>();
+        int targetSize = cacheSize;
+        if (maxEntries > 0 && cacheSize > maxEntries)
+        {
+            targetSize = maxEntries - maxEntries / 10;
+        }
+        int overflow = cacheSize - targetSize;
+
+        if (overflow <= 0)
+        {
+            if (idleTime <= 0)
+            {
+                return evictions;
+            }
+
+            // Only need to check idle times
+            for (CachedObject cached : candidates)
+            {
+                if (now - cached.getCacheTime() > idleTime)
+                {
+                    evictions.add(cached);
+                }
+            }
+            return evictions;
+        }
+
+        List<CachedObject> sorted = new ArrayList<CachedObject>(candidates);
+        Collections.sort(sorted, leastRecentFirst);
+        for (CachedObject cached : sorted)
+        {
+            boolean idle = idleTime > 0 && now - cached.getCacheTime() > idleTime;
+            if (evictions.size() >= overflow && !idle)
+            {
+                break;
+            }
+            evictions.add(cached);
+        }
+
+        return evictions;
+    }
+
+    public long getIdleTime()
+    {
+        return idleTime;
+    }
+
+    public int getMaxEntries()
+    {
+        return maxEntries;
+    }
+
+    public boolean isFull(int cacheSize)
+    {
+        return maxEntries > 0 && cacheSize > maxEntries;
+    }
+}
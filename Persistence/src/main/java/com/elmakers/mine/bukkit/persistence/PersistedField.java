@@ -65,7 +65,7 @@ public class PersistedField
 
         try
         {
-            c.getField(fieldName);
+            field = c.getField(fieldName);
         }
         catch (SecurityException e)
         {
@@ -276,32 +276,38 @@ public class PersistedField
         return pField;
     }
 
-    protected PersistedField        container = null;
+    protected FieldAccessor         accessor   = null;
 
-    protected Field                 field     = null;
+    protected PersistedField        container  = null;
 
-    protected FieldInfo             fieldInfo = null;
+    protected Object[]              enumValues = null;
 
-    protected Method                getter    = null;
+    protected Field                 field      = null;
 
-    protected String                name      = null;
+    protected FieldInfo             fieldInfo  = null;
+
+    protected Method                getter     = null;
+
+    protected String                name       = null;
 
     protected final PersistentClass owningClass;
 
-    protected Method                setter    = null;
+    protected Method                setter     = null;
 
     protected PersistedField(FieldInfo fieldInfo, Field field, PersistentClass owningClass)
     {
         this.name = fieldInfo.getName();
         if (name == null || name.length() == 0)
         {
-            name = getFieldFromMethod(getter);
+            name = field.getName();
         }
         this.field = field;
         this.getter = null;
         this.setter = null;
         this.fieldInfo = fieldInfo;
         this.owningClass = owningClass;
+        this.accessor = FieldAccessor.create(field);
+        this.enumValues = field.getType().getEnumConstants();
     }
 
     protected PersistedField(FieldInfo fieldInfo, Method getter, Method setter, PersistentClass owningClass)
@@ -316,6 +322,8 @@ public class PersistedField
         this.field = null;
         this.fieldInfo = fieldInfo;
         this.owningClass = owningClass;
+        this.accessor = FieldAccessor.create(getter, setter);
+        this.enumValues = getter.getReturnType().getEnumConstants();
     }
 
     public PersistedField(PersistedField copy)
@@ -326,6 +334,8 @@ public class PersistedField
         this.name = copy.name;
         this.fieldInfo = copy.fieldInfo;
         this.owningClass = copy.owningClass;
+        this.accessor = copy.accessor;
+        this.enumValues = copy.enumValues;
     }
 
     public void bind() throws InvalidPersistedClassException
@@ -347,36 +357,18 @@ public class PersistedField
             return null;
         }
 
-        Object result = null;
-        if (getter != null)
+        try
         {
-            try
-            {
-                result = getter.invoke(o);
-            }
-            catch (InvocationTargetException e)
-            {
-                result = null;
-            }
-            catch (IllegalAccessException e)
-            {
-                result = null;
-            }
+            return accessor.get(o);
         }
-
-        if (result == null && field != null)
+        catch (InvocationTargetException e)
         {
-            try
-            {
-                result = field.get(o);
-            }
-            catch (IllegalAccessException e)
-            {
-                result = null;
-            }
+            return null;
+        }
+        catch (IllegalAccessException e)
+        {
+            return null;
         }
-
-        return result;
     }
 
     public PersistedField getConcreteField()
@@ -406,12 +398,49 @@ public class PersistedField
         return name;
     }
 
+    /**
+     * Get the value of this field as it is stored.
+     * 
+     * @param o
+     *            The object to read
+     * @return The value to store
+     */
+    public Object getDataValue(Object o)
+    {
+        return get(o);
+    }
+
     public DataType getDataType()
     {
         Class<?> fieldType = getType();
         return DataType.getTypeFromClass(fieldType);
     }
 
+    /**
+     * Look up a value of an enum field by its ordinal.
+     * 
+     * The enum's values are looked up once, since getEnumConstants() makes a
+     * new copy of them every time it is called.
+     * 
+     * @param ordinal
+     *            The stored ordinal
+     * @return The enum value
+     * @throws InvalidDataException
+     *             If this is not an enum field, or the ordinal is out of range
+     */
+    public Object getEnumValue(int ordinal) throws InvalidDataException
+    {
+        if (enumValues == null)
+        {
+            throw new InvalidDataException("Field " + getName() + " is not an enum");
+        }
+        if (ordinal < 0 || ordinal >= enumValues.length)
+        {
+            throw new InvalidDataException("Invalid ordinal " + ordinal + " for field " + getName());
+        }
+        return enumValues[ordinal];
+    }
+
     public FieldInfo getFieldInfo()
     {
         return fieldInfo;
@@ -422,6 +451,27 @@ public class PersistedField
         return name;
     }
 
+    /**
+     * Read an int field without boxing it, if possible.
+     * 
+     * @param o
+     *            The object to read from
+     * @return The field's value
+     * @throws InvalidDataException
+     *             If the field can't be read, or is not a number
+     */
+    public int getInt(Object o) throws InvalidDataException
+    {
+        try
+        {
+            return accessor.getInt(o);
+        }
+        catch (Throwable e)
+        {
+            throw new InvalidDataException(e);
+        }
+    }
+
     public PersistentClass getReferenceType()
     {
         return null;
@@ -477,6 +527,21 @@ public class PersistedField
         return fieldInfo.isReadOnly();
     }
 
+    /**
+     * Set a field from a single column of data.
+     * 
+     * @param dataField
+     *            The column data for this field
+     * @param o
+     *            The object to update
+     * @throws InvalidDataException
+     *             If the value can't be set
+     */
+    public void load(DataField dataField, Object o) throws InvalidDataException
+    {
+        loadValue(dataField.getValue(), o);
+    }
+
     public void load(DataRow row, Object o) throws InvalidDataException
     {
         DataField dataField = row.get(getDataName());
@@ -485,8 +550,28 @@ public class PersistedField
         // TODO: Log print here?
         if (dataField != null)
         {
-            set(o, dataField.getValue(getType()));
+            load(dataField, o);
+        }
+    }
+
+    /**
+     * Set a field from a stored value.
+     * 
+     * @param value
+     *            The value as it was stored
+     * @param o
+     *            The object to update
+     * @throws InvalidDataException
+     *             If the value can't be set
+     */
+    public void loadValue(Object value, Object o) throws InvalidDataException
+    {
+        if (enumValues != null && value instanceof Number)
+        {
+            set(o, getEnumValue(((Number) value).intValue()));
+            return;
         }
+        set(o, DataType.convertValue(value, getType()));
     }
 
     public void populateHeader(DataTable dataTable)
@@ -508,7 +593,7 @@ public class PersistedField
         Object data = null;
         if (o != null)
         {
-            data = get(o);
+            data = getDataValue(o);
         }
         DataField field = new DataField(getDataName(), getDataType(), data);
         field.setIdField(isIdField());
@@ -518,7 +603,7 @@ public class PersistedField
 
     public <T> boolean set(Object o, T value) throws InvalidDataException
     {
-        if (setter == null)
+        if (!accessor.isWritable())
         {
             if (isReadOnly())
             {
@@ -532,28 +617,13 @@ public class PersistedField
             throw new InvalidDataException("Attempt to set null to primitive type for field " + getName());
         }
 
-        if (setter != null)
+        try
         {
-            try
-            {
-                setter.invoke(o, value);
-            }
-            catch (Throwable e)
-            {
-                throw new InvalidDataException(e);
-            }
+            accessor.set(o, value);
         }
-
-        if (field != null)
+        catch (Throwable e)
         {
-            try
-            {
-                field.set(o, value);
-            }
-            catch (Throwable e)
-            {
-                throw new InvalidDataException(e);
-            }
+            throw new InvalidDataException(e);
         }
         return true;
     }
@@ -562,4 +632,70 @@ public class PersistedField
     {
         this.container = container;
     }
+
+    /**
+     * Set a double field without boxing the value, if possible.
+     * 
+     * @param o
+     *            The object to update
+     * @param value
+     *            The new value
+     * @throws InvalidDataException
+     *             If the value can't be set
+     */
+    public void setDouble(Object o, double value) throws InvalidDataException
+    {
+        try
+        {
+            accessor.setDouble(o, value);
+        }
+        catch (Throwable e)
+        {
+            throw new InvalidDataException(e);
+        }
+    }
+
+    /**
+     * Set an int field without boxing the value, if possible.
+     * 
+     * @param o
+     *            The object to update
+     * @param value
+     *            The new value
+     * @throws InvalidDataException
+     *             If the value can't be set
+     */
+    public void setInt(Object o, int value) throws InvalidDataException
+    {
+        try
+        {
+            accessor.setInt(o, value);
+        }
+        catch (Throwable e)
+        {
+            throw new InvalidDataException(e);
+        }
+    }
+
+    /**
+     * Set a long field without boxing the value, if possible.
+     * 
+     * @param o
+     *            The object to update
+     * @param value
+     *            The new value
+     * @throws InvalidDataException
+     *             If the value can't be set
+     */
+    public void setLong(Object o, long value) throws InvalidDataException
+    {
+        try
+        {
+            accessor.setLong(o, value);
+        }
+        catch (Throwable e)
+        {
+            throw new InvalidDataException(e);
+        }
+    }
 }
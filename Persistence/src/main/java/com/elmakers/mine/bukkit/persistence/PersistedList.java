@@ -5,6 +5,7 @@ import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 
@@ -31,52 +32,16 @@ import com.elmakers.mine.bukkit.persistence.exception.InvalidPersistedClassExcep
  */
 public class PersistedList extends PersistedField implements PersistedReference
 {
-    class DeferredReferenceList
-    {
-        public List<Object>  idList;
-        public PersistedList referenceList;
-
-        public DeferredReferenceList(PersistedList listField)
-        {
-            referenceList = listField;
-        }
-    }
-
-    private static final List<PersistedList> deferredLists   = new ArrayList<PersistedList>();
-    private static int                       deferStackDepth = 0;
-
-    public static void beginDefer()
-    {
-        deferStackDepth++;
-    }
-
-    public static void endDefer()
-    {
-        deferStackDepth--;
-        if (deferStackDepth > 0)
-        {
-            return;
-        }
-
-        List<PersistedList> lists = new ArrayList<PersistedList>();
-        lists.addAll(deferredLists);
-        deferredLists.clear();
-        for (PersistedList list : lists)
-        {
-            list.bindDeferredInstances();
-        }
-    }
+    protected DataType        listDataType;
 
-    private final HashMap<Object, DeferredReferenceList> deferredInstanceMap = new HashMap<Object, DeferredReferenceList>();
-
-    protected DataType                                   listDataType;
-
-    protected Class<?>                                   listType;
+    protected Class<?>        listType;
 
     // Only valid for Lists of Objects
-    protected PersistentClass                            referenceType       = null;
+    protected PersistentClass referenceType    = null;
+
+    protected float           rewriteThreshold = 0.5f;
 
-    protected String                                     tableName;
+    protected String          tableName;
 
     public PersistedList(FieldInfo fieldInfo, Field field, PersistentClass owningClass)
     {
@@ -149,37 +114,40 @@ public class PersistedList extends PersistedField implements PersistedReference
         }
     }
 
-    public void bindDeferredInstances()
+    /**
+     * Look up a deferred list of references, now that loading is done.
+     * 
+     * @param instance
+     *            The object that owns the list
+     * @param ids
+     *            The ids of the objects in the list
+     * @see LoadContext
+     */
+    protected void bindReferences(Object instance, List<Object> ids)
     {
-
-        for (Object instance : deferredInstanceMap.keySet())
+        List<Object> references = new ArrayList<Object>();
+        for (Object id : ids)
         {
-            List<Object> references = new ArrayList<Object>();
-            DeferredReferenceList ref = deferredInstanceMap.get(instance);
-            for (Object id : ref.idList)
-            {
-                if (id == null)
-                {
-                    references.add(null);
-                }
-                else
-                {
-                    Object reference = ref.referenceList.referenceType.get(id);
-                    references.add(reference);
-                }
-            }
-
-            try
+            if (id == null)
             {
-                ref.referenceList.set(instance, references);
+                references.add(null);
             }
-            catch (InvalidDataException e)
+            else
             {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+                Object reference = referenceType.get(id);
+                references.add(reference);
             }
         }
-        deferredInstanceMap.clear();
+
+        try
+        {
+            set(instance, references);
+        }
+        catch (InvalidDataException e)
+        {
+            // TODO Auto-generated catch block
+            e.printStackTrace();
+        }
     }
 
     @Override
@@ -222,6 +190,115 @@ public class PersistedList extends PersistedField implements PersistedReference
         return genericType;
     }
 
+    /**
+     * Work out which rows of a list have been added or removed since it was
+     * last saved.
+     * 
+     * List tables have no ordering column, so rows come back in the order
+     * they were written. An incremental write is only possible when the
+     * current list is the saved list with some rows taken out and new rows
+     * appended to the end. Otherwise, or if there are too many changes, the
+     * whole list should be re-written.
+     * 
+     * @param savedRows
+     *            The list's values as they were last saved
+     * @param rows
+     *            The list's current rows. Added rows are moved from here to
+     *            the additions table.
+     * @param additions
+     *            The table to add new rows to
+     * @param removals
+     *            The table to add removed rows to. Each removed row is matched
+     *            on all of its columns.
+     * @return false if the whole list should be re-written instead
+     */
+    public boolean diff(List<List<Object>> savedRows, List<DataRow> rows, DataTable additions, DataTable removals)
+    {
+        if (savedRows == null || rows.size() == 0)
+        {
+            return false;
+        }
+
+        List<List<Object>> currentRows = PersistedState.getValues(rows);
+        HashMap<List<Object>, Integer> remaining = new HashMap<List<Object>, Integer>();
+        for (List<Object> row : currentRows)
+        {
+            Integer count = remaining.get(row);
+            remaining.put(row, count == null ? 1 : count + 1);
+        }
+
+        // Keep saved rows that are still in the list, in their saved order
+        List<List<Object>> kept = new ArrayList<List<Object>>();
+        List<List<Object>> removed = new ArrayList<List<Object>>();
+        for (List<Object> row : savedRows)
+        {
+            Integer count = remaining.get(row);
+            if (count != null && count > 0)
+            {
+                remaining.put(row, count - 1);
+                kept.add(row);
+            }
+            else
+            {
+                removed.add(row);
+            }
+        }
+
+        int changes = removed.size() + currentRows.size() - kept.size();
+        if (changes > rewriteThreshold * Math.max(savedRows.size(), currentRows.size()))
+        {
+            return false;
+        }
+
+        if (!currentRows.subList(0, kept.size()).equals(kept))
+        {
+            return false;
+        }
+
+        // Deleting a row deletes every copy of it, so a removed row must not
+        // also be kept.
+        for (List<Object> row : removed)
+        {
+            if (kept.contains(row))
+            {
+                return false;
+            }
+        }
+
+        List<DataField> columns = rows.get(0).getFields();
+        for (List<Object> values : removed)
+        {
+            DataRow removedRow = new DataRow(removals);
+            for (int i = 0; i < columns.size(); i++)
+            {
+                DataField column = columns.get(i);
+                Object value = values.get(i);
+                if (column.getType() == DataType.DATE && value instanceof Long)
+                {
+                    value = new Date((Long) value);
+                }
+                removedRow.add(new DataField(column.getName(), column.getType(), value));
+            }
+            removals.addRow(removedRow);
+        }
+        if (removals.getIdFieldNames().size() == 0)
+        {
+            for (DataField column : columns)
+            {
+                removals.addIdFieldName(column.getName());
+            }
+        }
+
+        List<DataRow> addedRows = rows.subList(kept.size(), rows.size());
+        for (DataRow row : addedRows)
+        {
+            additions.addRow(row);
+        }
+        rows.clear();
+
+        return true;
+    }
+
     public DataType getListDataType()
     {
         return listDataType;
@@ -249,6 +326,11 @@ public class PersistedList extends PersistedField implements PersistedReference
         return referenceType;
     }
 
+    public float getRewriteThreshold()
+    {
+        return rewriteThreshold;
+    }
+
     public String getTableName()
     {
         return tableName;
@@ -260,12 +342,7 @@ public class PersistedList extends PersistedField implements PersistedReference
         return listDataType == DataType.OBJECT;
     }
 
-    public void load(DataTable subTable, List<Object> instances) throws InvalidDataException
-    {
-        load(subTable, instances, null);
-    }
-
-    public void load(DataTable subTable, List<Object> instances, PersistedField container) throws InvalidDataException
+    public void load(DataTable subTable, List<Object> instances, LoadContext context) throws InvalidDataException
     {
         // Load data for all lists in all instances at once, mapping to
         // correct instances based on the id column.
@@ -304,15 +381,13 @@ public class PersistedList extends PersistedField implements PersistedReference
         // Add the data from each row to the proper instances' list
         for (DataRow row : subTable.getRows())
         {
-            DataField entityIdField = row.get(entityIdName);
-            Object entityId = entityIdField.getValue();
+            Object entityId = row.getValue(entityIdName);
             List<Object> list = objectLists.get(entityId);
             if (list != null)
             {
                 if (referenceType == null)
                 {
-                    DataField dataField = row.get(dataIdName);
-                    Object data = dataField.getValue();
+                    Object data = row.getValue(dataIdName);
                     list.add(data);
                 }
                 else if (isContained())
@@ -332,8 +407,7 @@ public class PersistedList extends PersistedField implements PersistedReference
                 }
                 else
                 {
-                    DataField dataIdField = row.get(dataIdName);
-                    Object dataId = dataIdField.getValue();
+                    Object dataId = row.getValue(dataIdName);
                     list.add(dataId);
                 }
             }
@@ -351,19 +425,7 @@ public class PersistedList extends PersistedField implements PersistedReference
             }
             else
             {
-                DeferredReferenceList list = deferredInstanceMap.get(instance);
-                if (list == null)
-                {
-                    list = new DeferredReferenceList(this);
-                    deferredInstanceMap.put(instance, list);
-                }
-                list.idList = listData;
-
-                // Make sure this list gets touched next deferred load
-                if (!deferredLists.contains(this))
-                {
-                    deferredLists.add(this);
-                }
+                context.deferList(this, instance, listData);
             }
         }
     }
@@ -425,6 +487,18 @@ public class PersistedList extends PersistedField implements PersistedReference
         populate(headerRow, null, null, container);
     }
 
+    /**
+     * Set how much of a list can change before it is re-written in full,
+     * rather than writing only the added and removed rows.
+     * 
+     * @param rewriteThreshold
+     *            The fraction of rows that can change, 0 to always re-write
+     */
+    public void setRewriteThreshold(float rewriteThreshold)
+    {
+        this.rewriteThreshold = rewriteThreshold;
+    }
+
     public void save(DataTable table, Object instance)
     {
         if (instance == null)
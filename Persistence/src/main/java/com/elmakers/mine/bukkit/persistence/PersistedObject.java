@@ -2,8 +2,6 @@ package com.elmakers.mine.bukkit.persistence;
 
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
-import java.util.ArrayList;
-import java.util.List;
 
 import com.elmakers.com.bukkit.data.exception.InvalidDataException;
 import com.elmakers.mine.bukkit.data.DataField;
@@ -28,64 +26,6 @@ import com.elmakers.mine.bukkit.persistence.exception.InvalidPersistedClassExcep
 public class PersistedObject extends PersistedField implements
         PersistedReference
 {
-    class DeferredReference
-    {
-        public Object          object;
-        public PersistedObject referenceField;
-        public Object          referenceId;
-
-        public DeferredReference(PersistedObject field, Object o, Object id)
-        {
-            referenceField = field;
-            object = o;
-            referenceId = id;
-        }
-    }
-
-    private final static List<DeferredReference> deferredReferences = new ArrayList<DeferredReference>();
-
-    private static int                           deferStackDepth    = 0;
-
-    public static void beginDefer()
-    {
-        deferStackDepth++;
-    }
-
-    public static void endDefer()
-    {
-        deferStackDepth--;
-        if (deferStackDepth > 0)
-        {
-            return;
-        }
-
-        List<DeferredReference> undefer = new ArrayList<DeferredReference>();
-        undefer.addAll(deferredReferences);
-        deferredReferences.clear();
-
-        for (DeferredReference ref : undefer)
-        {
-            Object reference = ref.referenceField.referenceType.get(ref.referenceId);
-            try
-            {
-                ref.referenceField.set(ref.object, reference);
-            }
-            catch (InvalidDataException e)
-            {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            }
-
-            // Re-add to cache so that we can cache by the new id
-            // Unless this is a contained object, in which case it has no id!
-            if (!ref.referenceField.hasContainer())
-            {
-                ref.referenceField.owningClass.addToCache(ref.object);
-            }
-        }
-
-    }
-
     protected PersistentClass referenceType = null;
 
     public PersistedObject(FieldInfo fieldInfo, Field field, PersistentClass owningClass)
@@ -155,6 +95,36 @@ public class PersistedObject extends PersistedField implements
         }
     }
 
+    /**
+     * Look up a deferred reference, now that loading is done.
+     * 
+     * @param o
+     *            The object that owns the reference
+     * @param referenceId
+     *            The id of the referenced object
+     * @see LoadContext
+     */
+    protected void bindReference(Object o, Object referenceId)
+    {
+        Object reference = referenceType.get(referenceId);
+        try
+        {
+            set(o, reference);
+        }
+        catch (InvalidDataException e)
+        {
+            // TODO Auto-generated catch block
+            e.printStackTrace();
+        }
+
+        // Re-add to cache so that we can cache by the new id
+        // Unless this is a contained object, in which case it has no id!
+        if (!hasContainer())
+        {
+            owningClass.addToCache(o);
+        }
+    }
+
     @Override
     public PersistedObject clone()
     {
@@ -190,6 +160,20 @@ public class PersistedObject extends PersistedField implements
         return dataName;
     }
 
+    /**
+     * References are stored as the id of the referenced object.
+     */
+    @Override
+    public Object getDataValue(Object o)
+    {
+        Object reference = get(o);
+        if (reference == null || referenceType == null)
+        {
+            return null;
+        }
+        return referenceType.getIdData(reference);
+    }
+
     @Override
     public DataType getDataType()
     {
@@ -225,7 +209,7 @@ public class PersistedObject extends PersistedField implements
             Object newInstance = null;
             try
             {
-                referenceType.createInstance(row);
+                newInstance = referenceType.createInstance(row);
             }
             catch (InvalidDataException e)
             {
@@ -235,19 +219,32 @@ public class PersistedObject extends PersistedField implements
         }
 
         DataField dataField = row.get(getDataName());
-        Object referenceId = null;
         if (dataField != null)
         {
-            referenceId = dataField.getValue();
+            load(dataField, o);
         }
+        else
+        {
+            set(o, null);
+        }
+    }
 
+    /**
+     * Look up a reference from its id.
+     * 
+     * References are always deferred, since the referenced object may not be
+     * loaded yet.
+     */
+    @Override
+    public void loadValue(Object referenceId, Object o) throws InvalidDataException
+    {
         if (referenceId == null)
         {
             set(o, referenceId);
         }
         else
         {
-            deferredReferences.add(new DeferredReference(this, o, referenceId));
+            LoadContext.get().deferReference(this, o, referenceId);
         }
     }
 
@@ -289,11 +286,7 @@ public class PersistedObject extends PersistedField implements
         Object referenceId = null;
         if (o != null)
         {
-            Object reference = get(o);
-            if (reference != null)
-            {
-                referenceId = referenceType.getIdData(reference);
-            }
+            referenceId = getDataValue(o);
         }
 
         DataField field = new DataField(getDataName(), getDataType(), referenceId);
@@ -0,0 +1,90 @@
+package com.elmakers.mine.bukkit.persistence;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.elmakers.mine.bukkit.data.DataField;
+import com.elmakers.mine.bukkit.data.DataRow;
+
+/**
+ * The values of a persisted object, as they were last loaded from or written
+ * to the data store.
+ * 
+ * This is compared against an object's current values on save, so that only
+ * changed columns and lists are written.
+ * 
+ * @author NathanWolf
+ * 
+ */
+public class PersistedState
+{
+    /**
+     * Copy the values of a row, in column order.
+     * 
+     * Mutable values, such as Dates, are copied so that later changes to the
+     * object don't change the saved state.
+     * 
+     * @param row
+     *            The row to copy
+     * @return The row's values
+     */
+    public static List<Object> getValues(DataRow row)
+    {
+        List<DataField> fields = row.getFields();
+        List<Object> values = new ArrayList<Object>(fields.size());
+        for (DataField field : fields)
+        {
+            Object value = field.getValue();
+            if (value instanceof Date)
+            {
+                value = ((Date) value).getTime();
+            }
+            values.add(value);
+        }
+        return values;
+    }
+
+    /**
+     * Copy the values of a set of rows.
+     * 
+     * @param rows
+     *            The rows to copy
+     * @return A list of row values
+     * @see #getValues(DataRow)
+     */
+    public static List<List<Object>> getValues(List<DataRow> rows)
+    {
+        List<List<Object>> values = new ArrayList<List<Object>>(rows.size());
+        for (DataRow row : rows)
+        {
+            values.add(getValues(row));
+        }
+        return values;
+    }
+
+    protected final Map<PersistedList, List<List<Object>>> lists = new HashMap<PersistedList, List<List<Object>>>();
+    protected final List<Object>                           values;
+
+    public PersistedState(List<Object> values)
+    {
+        this.values = values;
+    }
+
+    public List<List<Object>> getList(PersistedList list)
+    {
+        return lists.get(list);
+    }
+
+    public List<Object> getValues()
+    {
+        return values;
+    }
+
+    public void setList(PersistedList list, List<List<Object>> rows)
+    {
+        lists.put(list, rows);
+    }
+}
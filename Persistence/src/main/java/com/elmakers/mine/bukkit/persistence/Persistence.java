@@ -1,6 +1,7 @@
 package com.elmakers.mine.bukkit.persistence;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -65,6 +66,8 @@ public class Persistence implements
 
     private final Server                                        server;
 
+    private final WriteBehindQueue                              writer            = new WriteBehindQueue();
+
     /**
      * Persistence is a singleton, so we hide the constructor.
      * 
@@ -143,6 +146,68 @@ public class Persistence implements
         }
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.elmakers.mine.bukkit.persisted.Persistence#findBy(java.lang.Class,
+     * java.lang.String, java.lang.Object)
+     */
+    public <T> List<T> findBy(Class<T> objectType, String fieldName, Object value)
+    {
+        PersistentClass persistedClass = null;
+        try
+        {
+            persistedClass = getPersistedClass(objectType);
+        }
+        catch (InvalidPersistedClassException e)
+        {
+            log.warning("Persistence: Can't search " + objectType.getName() + "." + fieldName + ": " + e.getMessage());
+        }
+        if (persistedClass == null)
+        {
+            return null;
+        }
+
+        List<T> list = new ArrayList<T>();
+        if (!persistedClass.findBy(fieldName, value, list))
+        {
+            return null;
+        }
+        return list;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.elmakers.mine.bukkit.persisted.Persistence#findRange(java.lang.Class,
+     * java.lang.String, java.lang.Object, java.lang.Object)
+     */
+    public <T> List<T> findRange(Class<T> objectType, String fieldName, Object min, Object max)
+    {
+        PersistentClass persistedClass = null;
+        try
+        {
+            persistedClass = getPersistedClass(objectType);
+        }
+        catch (InvalidPersistedClassException e)
+        {
+            log.warning("Persistence: Can't search a range of " + objectType.getName() + "." + fieldName + ": " + e.getMessage());
+        }
+        if (persistedClass == null)
+        {
+            return null;
+        }
+
+        List<T> list = new ArrayList<T>();
+        if (!persistedClass.findRange(fieldName, min, max, list))
+        {
+            return null;
+        }
+        return list;
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -224,6 +289,45 @@ public class Persistence implements
         return list;
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.elmakers.mine.bukkit.persistence.IPersistence#getMany(java.util.Collection
+     * , java.lang.Class)
+     */
+    public <T> List<T> getMany(Collection<?> ids, Class<T> objectType)
+    {
+        return getMany(ids, objectType, null);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * com.elmakers.mine.bukkit.persistence.IPersistence#getMany(java.util.Collection
+     * , java.lang.Class, java.util.List)
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> getMany(Collection<?> ids, Class<T> objectType, List<Object> missing)
+    {
+        PersistentClass persistedClass = null;
+        try
+        {
+            persistedClass = getPersistedClass(objectType);
+        }
+        catch (InvalidPersistedClassException e)
+        {
+            log.warning("Persistence: Can't get " + objectType.getName() + " objects: " + e.getMessage());
+        }
+        if (persistedClass == null)
+        {
+            return null;
+        }
+
+        return (List<T>) persistedClass.getMany(ids, missing);
+    }
+
     /**
      * Retrieve or create a persisted class, using the annotations built into
      * the class.
@@ -399,6 +503,36 @@ public class Persistence implements
         persistedClass.putAll(objects);
     }
 
+    /**
+     * Start a query on the instances of a persisted class.
+     * 
+     * @param <T>
+     *            The base type of object. This is an invisible parameter, you
+     *            don't need to worry about it
+     * @param objectType
+     *            The type of object to search for
+     * @return A new query, or null if the type can't be persisted
+     * @see Query
+     */
+    public <T> Query<T> query(Class<T> objectType)
+    {
+        PersistentClass persistedClass = null;
+        try
+        {
+            persistedClass = getPersistedClass(objectType);
+        }
+        catch (InvalidPersistedClassException e)
+        {
+            log.warning("Persistence: Can't query " + objectType.getName() + ": " + e.getMessage());
+        }
+        if (persistedClass == null)
+        {
+            return null;
+        }
+
+        return new Query<T>(persistedClass, objectType);
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -427,19 +561,113 @@ public class Persistence implements
     }
 
     /**
-     * Force a save of all cached data.
+     * Drop unused objects from the cache of each persisted class that has an
+     * eviction policy.
+     * 
+     * Modified objects are never evicted before they have been saved, so call
+     * this after save().
+     * 
+     * @return The number of objects evicted
+     */
+    public int evict()
+    {
+        int evicted = 0;
+        for (PersistentClass persistedClass : persistedClassMap.values())
+        {
+            evicted += persistedClass.evict();
+        }
+        return evicted;
+    }
+
+    /**
+     * Save all cached data, and wait for it to be written.
      * 
      * This only saves dirty data- unmodified data is not saved back to the
-     * database. Persistence calls save() internally on server shutdown, player
-     * login, and player logout. So, calling save is not mandatory- you only
-     * need to use it to force an immediate save.
+     * database. Use this instead of save() when you need to be sure the data
+     * is in the data store when this call returns.
+     * 
+     */
+    public void flush()
+    {
+        save();
+        waitForWrites();
+    }
+
+    /**
+     * Queue a save of all cached data.
+     * 
+     * This only saves dirty data- unmodified data is not saved back to the
+     * database. Persistence saves periodically and on server shutdown. So,
+     * calling save is not mandatory- you only need to use it to force an
+     * immediate save.
+     * 
+     * Modified data is copied immediately, and then written to the data store
+     * in the background. Each schema is saved in its own transaction- if any
+     * part of a schema fails to save, none of it is written, and it will be
+     * retried on the next save.
+     * 
+     * This should be called from the main server thread.
      * 
      */
     public void save()
     {
-        for (PersistentClass persistedClass : persistedClassMap.values())
+        for (Schema schema : schemaMap.values())
         {
-            persistedClass.save();
+            if (writer.isShutdown())
+            {
+                schema.save();
+            }
+            else
+            {
+                writer.save(schema);
+            }
         }
     }
+
+    /**
+     * Save all cached data, wait for it to be written, and stop the
+     * background writer.
+     * 
+     * Any further saves will be written immediately, on the calling thread.
+     * 
+     * @param timeout
+     *            The maximum time to wait for pending saves, in milliseconds
+     */
+    public void shutdown(long timeout)
+    {
+        save();
+        writer.shutdown(timeout);
+    }
+
+    /**
+     * Load every registered persisted class now, several at a time, rather
+     * than waiting for each to be used.
+     * 
+     * This blocks until the classes are loaded, and should be called before
+     * anything else uses Persistence- from onEnable, for instance. The time
+     * it took to load each class is logged.
+     * 
+     * @param threads
+     *            The most classes to load at once
+     * @param timeout
+     *            The longest to wait before giving up on starting any more
+     *            classes, in milliseconds
+     * @return true if every class was loaded in time
+     * @see CacheWarmer
+     */
+    public boolean warmUp(int threads, long timeout)
+    {
+        CacheWarmer warmer = new CacheWarmer(getSchemaList(), threads);
+        return warmer.warm(timeout);
+    }
+
+    /**
+     * Wait for any queued saves to be written to their data stores.
+     * 
+     * This does not save any new changes.
+     */
+    public void waitForWrites()
+    {
+        writer.waitForWrites();
+    }
 }
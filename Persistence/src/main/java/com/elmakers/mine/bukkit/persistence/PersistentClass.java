@@ -1,11 +1,17 @@
 package com.elmakers.mine.bukkit.persistence;
 
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
@@ -13,13 +19,17 @@ import org.bukkit.Server;
 
 import com.elmakers.com.bukkit.data.exception.InvalidDataException;
 import com.elmakers.mine.bukkit.data.DataField;
+import com.elmakers.mine.bukkit.data.DataQuery;
 import com.elmakers.mine.bukkit.data.DataRow;
+import com.elmakers.mine.bukkit.data.DataRowHandler;
 import com.elmakers.mine.bukkit.data.DataStore;
 import com.elmakers.mine.bukkit.data.DataTable;
 import com.elmakers.mine.bukkit.data.DataType;
 import com.elmakers.mine.bukkit.persisted.CachedObject;
 import com.elmakers.mine.bukkit.persisted.EntityInfo;
 import com.elmakers.mine.bukkit.persisted.FieldInfo;
+import com.elmakers.mine.bukkit.persisted.IndexType;
+import com.elmakers.mine.bukkit.persisted.LoadMode;
 import com.elmakers.mine.bukkit.persisted.MigrationInfo;
 import com.elmakers.mine.bukkit.persisted.PersistField;
 import com.elmakers.mine.bukkit.persisted.PersistedClass;
@@ -39,44 +49,107 @@ import com.elmakers.mine.bukkit.persistence.exception.InvalidPersistedClassExcep
  */
 public class PersistentClass implements PersistedClass
 {
+    /**
+     * Creates and caches an object for each row it is given, remembering the
+     * new objects so their list data can be loaded afterward.
+     * 
+     * The object for every row, new or already cached, is kept in row order.
+     */
+    class InstanceLoader implements DataRowHandler
+    {
+        public final String       idName      = idField.getDataName();
+        public final List<Object> instanceIds = new ArrayList<Object>();
+        public final List<Object> instances   = new ArrayList<Object>();
+        public final List<Object> results     = new ArrayList<Object>();
+
+        public boolean handle(DataRow row) throws InvalidDataException
+        {
+            // cache by concrete (data) is from the store
+            // as well as the actual id
+            // This covers the case of "object as id", when that
+            // Object may not be loaded yet
+            Object concreteId = row.getValue(idName);
+            CachedObject existing = concreteId == null ? null : concreteIdMap.get(concreteId);
+            if (existing != null)
+            {
+                results.add(existing.getObject());
+                return true;
+            }
+
+            Object newInstance = createInstance(row);
+
+            if (newInstance != null)
+            {
+                if (idField.isAutogenerated())
+                {
+                    int id = idField.getInt(newInstance);
+                    if (id > maxId)
+                    {
+                        maxId = id;
+                    }
+                }
+
+                addToCache(newInstance, concreteId);
+                instances.add(newInstance);
+                instanceIds.add(concreteId);
+                results.add(newInstance);
+            }
+            return true;
+        }
+    }
+
     enum LoadState
     {
         LOADED, LOADING, UNLOADED,
     }
 
-    protected static Logger             log             = Persistence.getLogger();
-    protected Map<Object, CachedObject> cacheMap        = new ConcurrentHashMap<Object, CachedObject>();
+    protected static Logger              log             = Persistence.getLogger();
+    protected Map<Object, CachedObject>  cacheMap        = new ConcurrentHashMap<Object, CachedObject>();
 
-    protected boolean                   cacheObjects    = false;
-    protected Map<Object, CachedObject> concreteIdMap   = new ConcurrentHashMap<Object, CachedObject>();
+    protected boolean                    cacheObjects    = false;
+    protected Map<Object, CachedObject>  concreteIdMap   = new ConcurrentHashMap<Object, CachedObject>();
+    protected Constructor<?>             constructor     = null;
 
-    protected boolean                   contained       = false;
-    protected PersistedField            container       = null;
-    protected boolean                   dirty           = false;
+    protected boolean                    contained       = false;
+    protected PersistedField             container       = null;
+    protected boolean                    dirty           = false;
 
-    protected EntityInfo                entityInfo      = null;
+    protected EntityInfo                 entityInfo      = null;
+    protected EvictionPolicy             evictionPolicy  = null;
+    // Don't evict on insert until the cache grows to this size again
+    protected int                        evictionSize    = 0;
 
-    protected List<PersistedList>       externalFields  = new ArrayList<PersistedList>();
+    protected List<PersistedList>        externalFields  = new ArrayList<PersistedList>();
     // TODO: Make sure these are ok non-concurrent? Should never be writing to
     // these after startup!
-    protected List<PersistedField>      fields          = new ArrayList<PersistedField>();
-    protected PersistedField            idField         = null;
-    protected List<PersistedField>      internalFields  = new ArrayList<PersistedField>();
-
-    protected LoadState                 loadState       = LoadState.UNLOADED;
-    protected long                      maxId           = 1;
-    protected MigrationInfo             migrationInfo   = null;
-
-    protected String                    name            = null;
-    protected Class<? extends Object>   persistClass    = null;
-
-    protected final Persistence         persistence;
-    protected List<PersistedReference>  referenceFields = new ArrayList<PersistedReference>();
-    protected Map<Object, CachedObject> removedMap      = new ConcurrentHashMap<Object, CachedObject>();
-
-    protected Schema                    schema          = null;
-
-    protected String                    schemaName      = null;
+    protected List<PersistedField>       fields          = new ArrayList<PersistedField>();
+    protected boolean                    fullyLoaded     = false;
+    protected PersistedField             idField         = null;
+    // Secondary indexes, by field name
+    protected Map<String, FieldIndex>    indexes         = new HashMap<String, FieldIndex>();
+    // Loaded objects to re-index once their references have been resolved
+    protected List<CachedObject>         indexQueue      = new ArrayList<CachedObject>();
+    protected List<PersistedField>       internalFields  = new ArrayList<PersistedField>();
+
+    protected LoadState                  loadState       = LoadState.UNLOADED;
+    protected long                       maxId           = 1;
+    protected MigrationInfo              migrationInfo   = null;
+    // Ids of lazy-loaded objects known not to be in the data store
+    protected Map<Object, Boolean>       missingIds      = new ConcurrentHashMap<Object, Boolean>();
+
+    protected String                     name            = null;
+    // Counts of queued writes for each saved object, these can't be evicted
+    protected Map<CachedObject, Integer> pendingWrites   = new HashMap<CachedObject, Integer>();
+    protected Class<? extends Object>    persistClass    = null;
+
+    protected final Persistence          persistence;
+    protected List<PersistedReference>   referenceFields = new ArrayList<PersistedReference>();
+    protected Map<Object, CachedObject>  removedMap      = new ConcurrentHashMap<Object, CachedObject>();
+    protected RowPlan                    rowPlan         = null;
+
+    protected Schema                     schema          = null;
+
+    protected String                     schemaName      = null;
 
     public PersistentClass(Persistence persistence, EntityInfo entityInfo)
     {
@@ -94,6 +167,7 @@ public class PersistentClass implements PersistedClass
         this.schemaName = copy.schemaName;
         this.entityInfo = copy.entityInfo;
         this.persistClass = copy.persistClass;
+        this.constructor = copy.constructor;
 
         // TODO: Make sure it's ok to share fields!
         for (PersistedField field : copy.fields)
@@ -163,6 +237,20 @@ public class PersistentClass implements PersistedClass
             internalFields.add(field);
         }
 
+        IndexType indexType = fieldInfo.getIndexType();
+        if (indexType != null && indexType != IndexType.NONE && !contained)
+        {
+            if (field instanceof PersistedList)
+            {
+                throw new InvalidPersistedClassException(this, "List field " + field.getName() + " can't be indexed");
+            }
+            if (indexType == IndexType.SORTED && !FieldIndex.isSortable(field))
+            {
+                throw new InvalidPersistedClassException(this, "Field " + field.getName() + " can't have a sorted index, it is not Comparable");
+            }
+            indexes.put(field.getName(), new FieldIndex(field, indexType));
+        }
+
         field.setContainer(container);
 
         fields.add(field);
@@ -260,6 +348,14 @@ public class PersistentClass implements PersistedClass
         if (concreteId != null)
         {
             concreteIdMap.put(concreteId, cached);
+            missingIds.remove(concreteId);
+        }
+        index(cached);
+
+        int cacheSize = cacheMap.size();
+        if (evictionPolicy != null && cacheSize >= evictionSize && evictionPolicy.isFull(cacheSize))
+        {
+            evict();
         }
 
         return cached;
@@ -282,6 +378,31 @@ public class PersistentClass implements PersistedClass
             throw new InvalidPersistedClassException(this, "Non-cached objects no supported, yet");
         }
 
+        int maxCached = entityInfo.getMaxCached();
+        int cacheTimeout = entityInfo.getCacheTimeout();
+        if (maxCached > 0 || cacheTimeout > 0)
+        {
+            if (isLazy())
+            {
+                evictionPolicy = new LruEvictionPolicy(maxCached, cacheTimeout * 1000L);
+            }
+            else
+            {
+                log.warning("Persistence: " + schemaName + "." + name + " must be lazy-loaded to evict from its cache");
+            }
+        }
+
+        // Look up the constructor once, rather than on every new instance
+        try
+        {
+            constructor = persistClass.getDeclaredConstructor();
+            FieldAccessor.makeAccessible(constructor);
+        }
+        catch (NoSuchMethodException e)
+        {
+            constructor = null;
+        }
+
         /*
          * Find fields, getters and setters
          */
@@ -330,6 +451,18 @@ public class PersistentClass implements PersistedClass
         return true;
     }
 
+    protected void beginWrite(List<CachedObject> objects)
+    {
+        synchronized (pendingWrites)
+        {
+            for (CachedObject cached : objects)
+            {
+                Integer count = pendingWrites.get(cached);
+                pendingWrites.put(cached, count == null ? 1 : count + 1);
+            }
+        }
+    }
+
     public void bindReferences()
     {
         for (PersistedField field : fields)
@@ -344,6 +477,76 @@ public class PersistentClass implements PersistedClass
                 e.printStackTrace();
             }
         }
+
+        // All field names can be resolved now
+        rowPlan = new RowPlan(internalFields);
+    }
+
+    /**
+     * Check to see if a query can be run by the data store as things are,
+     * without writing changes or loading anything into the cache.
+     * 
+     * @param dataQuery
+     *            The query, or null if it can't be run by a data store
+     * @param store
+     *            The store to run it in
+     * @return true if the store can run the query now
+     */
+    protected boolean canRunInStore(DataQuery dataQuery, DataStore store)
+    {
+        // Changes can only be written from the main thread
+        if (dataQuery == null || loadState != LoadState.LOADED || hasUnsavedChanges())
+        {
+            return false;
+        }
+        return store != null && store.connect();
+    }
+
+    /**
+     * Load any objects that aren't cached, for methods that need to look at
+     * every object.
+     */
+    protected void checkFullyLoaded()
+    {
+        if (isLazy() && !fullyLoaded && loadState == LoadState.LOADED)
+        {
+            try
+            {
+                loadCache(getDefaultStore());
+            }
+            catch (InvalidDataException e)
+            {
+                log.warning("Persistence: Error loading all of " + schemaName + "." + name + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Re-index objects that have been loaded since the last search.
+     * 
+     * References aren't resolved until all of the objects being loaded have
+     * been created, so loaded objects are indexed again before searching.
+     */
+    protected void checkIndexQueue()
+    {
+        List<CachedObject> queued = null;
+        synchronized (indexQueue)
+        {
+            if (indexQueue.size() == 0)
+            {
+                return;
+            }
+            queued = new ArrayList<CachedObject>(indexQueue);
+            indexQueue.clear();
+        }
+
+        for (CachedObject cached : queued)
+        {
+            for (FieldIndex index : indexes.values())
+            {
+                index.update(cached);
+            }
+        }
     }
 
     protected void checkLoadCache()
@@ -369,7 +572,14 @@ public class PersistentClass implements PersistedClass
                 if (store.connect())
                 {
                     validateTables(store);
-                    loadCache();
+                    if (isLazy())
+                    {
+                        loadMaxId(store);
+                    }
+                    else
+                    {
+                        loadCache(store);
+                    }
                     loadState = LoadState.LOADED;
                 }
             }
@@ -385,18 +595,98 @@ public class PersistentClass implements PersistedClass
     {
         cacheMap.clear();
         concreteIdMap.clear();
+        missingIds.clear();
+        for (FieldIndex index : indexes.values())
+        {
+            index.clear();
+        }
+        synchronized (indexQueue)
+        {
+            indexQueue.clear();
+        }
+        fullyLoaded = false;
         loadState = LoadState.UNLOADED;
     }
 
+    /**
+     * Count the objects that match a query.
+     * 
+     * @param query
+     *            The query to run
+     * @return The number of matching objects, or -1 on error
+     * @see Query#count()
+     */
+    protected int count(Query<?> query)
+    {
+        return count(query, false);
+    }
+
+    /**
+     * Count the objects that match a query.
+     * 
+     * @param query
+     *            The query to run
+     * @param storeOnly
+     *            true to only run the query in the data store, without
+     *            touching the cache, so it can be run off of the main thread
+     * @return The number of matching objects, or -1 on error, or if storeOnly
+     *         is set and the store can't run the query right now
+     * @see Query#countInStore()
+     */
+    protected int count(Query<?> query, boolean storeOnly)
+    {
+        if (storeOnly)
+        {
+            DataQuery dataQuery = query.getDataQuery(null);
+            DataStore store = getDefaultStore();
+            if (!canRunInStore(dataQuery, store))
+            {
+                return -1;
+            }
+            return store.count(getClassTable(), dataQuery);
+        }
+
+        checkLoadCache();
+        DataQuery dataQuery = query.getDataQuery(null);
+        DataStore store = getDefaultStore();
+        if (dataQuery == null || !store.connect() || !flush(store))
+        {
+            checkFullyLoaded();
+            checkIndexQueue();
+            int count = 0;
+            for (CachedObject cached : cacheMap.values())
+            {
+                if (query.matches(cached.getObject()))
+                {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        return store.count(getClassTable(), dataQuery);
+    }
+
     protected Object createInstance(DataRow row) throws InvalidDataException
     {
         Object newObject = null;
 
         try
         {
-            newObject = persistClass.newInstance();
+            if (constructor != null)
+            {
+                newObject = constructor.newInstance();
+            }
+            else
+            {
+                newObject = persistClass.newInstance();
+            }
             load(row, newObject);
         }
+        catch (InvocationTargetException ex)
+        {
+            throw new InvalidDataException(row.getTable(), row, ex.getCause());
+        }
         catch (IllegalAccessException ex)
         {
             throw new InvalidDataException(row.getTable(), row, ex);
@@ -408,133 +698,408 @@ public class PersistentClass implements PersistedClass
         return newObject;
     }
 
-    public Object get(Object id)
+    /**
+     * Drop objects from the cache, as chosen by this class's eviction policy.
+     * 
+     * Only objects that have been saved, and have no writes waiting in the
+     * background, will be evicted. Modified objects will be evicted on a later
+     * pass, once they have been saved.
+     * 
+     * If modified objects keep the cache full, inserts won't trigger another
+     * pass until the cache has grown by another tenth.
+     * 
+     * @return The number of objects evicted
+     */
+    public int evict()
     {
-        checkLoadCache();
-        PersistedField idField = getIdField();
-        if (idField == null)
+        if (evictionPolicy == null || loadState != LoadState.LOADED)
         {
-            return null;
+            return 0;
         }
 
-        Object result = getById(idField, cacheMap, id);
-        if (result == null)
+        List<CachedObject> candidates = new ArrayList<CachedObject>();
+        synchronized (pendingWrites)
         {
-            idField = idField.getConcreteField();
-            result = getById(idField, concreteIdMap, id);
+            for (CachedObject cached : cacheMap.values())
+            {
+                if (!cached.isDirty() && !pendingWrites.containsKey(cached))
+                {
+                    candidates.add(cached);
+                }
+            }
         }
 
-        return result;
-    }
-
-    public Object get(Object id, Object defaultValue)
-    {
-        checkLoadCache();
-        Object result = get(id);
-        if (result != null)
+        List<CachedObject> evictions = evictionPolicy.getEvictions(candidates, cacheMap.size(), System.currentTimeMillis());
+        int remaining = cacheMap.size() - evictions.size();
+        evictionSize = remaining + remaining / 10 + 1;
+        if (evictions.size() == 0)
         {
-            return result;
+            return 0;
         }
 
-        if (defaultValue == null)
+        Set<CachedObject> evicted = new HashSet<CachedObject>(evictions);
+        removeCached(cacheMap, evicted);
+        removeCached(concreteIdMap, evicted);
+        for (CachedObject cached : evictions)
         {
-            return null;
+            unindex(cached);
         }
+        fullyLoaded = false;
 
-        CachedObject cached = addToCache(defaultValue);
-        return cached.getObject();
+        return evictions.size();
     }
 
-    @SuppressWarnings("unchecked")
-    public <T> void getAll(List<T> objects)
+    protected void endWrite(List<CachedObject> objects)
     {
-        checkLoadCache();
-        for (CachedObject cachedObject : cacheMap.values())
+        synchronized (pendingWrites)
         {
-            Object object = cachedObject.getObject();
-            if (persistClass.isAssignableFrom(object.getClass()))
+            for (CachedObject cached : objects)
             {
-                objects.add((T) object);
+                Integer count = pendingWrites.get(cached);
+                if (count == null || count <= 1)
+                {
+                    pendingWrites.remove(cached);
+                }
+                else
+                {
+                    pendingWrites.put(cached, count - 1);
+                }
             }
         }
     }
 
-    protected Object getById(PersistedField idField, Map<Object, CachedObject> fromCache, Object id)
+    /**
+     * Find all cached objects with a field equal to a value.
+     * 
+     * @param fieldName
+     *            The name of the field to search on
+     * @param value
+     *            The value to find
+     * @param objects
+     *            A list to add the matching objects to
+     * @return false if there is no such field
+     */
+    @SuppressWarnings("unchecked")
+    public <T> boolean findBy(String fieldName, Object value, List<T> objects)
     {
-        if (idField == null || id == null)
+        PersistedField field = getIndexableField(fieldName);
+        if (field == null)
         {
-            return null;
+            return false;
         }
-        if (id.getClass().isAssignableFrom(idField.getType()))
+
+        checkLoadCache();
+        checkFullyLoaded();
+        checkIndexQueue();
+
+        FieldIndex index = indexes.get(field.getName());
+        if (index != null)
         {
-            CachedObject cached = fromCache.get(id);
-            if (cached != null)
+            List<CachedObject> found = new ArrayList<CachedObject>();
+            index.find(value, found);
+            for (CachedObject cached : found)
             {
-                return cached.getObject();
+                cached.touch();
+                objects.add((T) cached.getObject());
             }
+            return true;
         }
-        else
-        {
-            // Try to do some fancy casting.
-            // This is mainly here to avoid the Integer/int problem.
 
-            DataField requestId = new DataField(id);
-            id = requestId.getValue(idField.getType());
-
-            CachedObject cached = fromCache.get(id);
-            if (cached != null)
+        Object key = FieldIndex.convertKey(field, value);
+        for (CachedObject cached : cacheMap.values())
+        {
+            Object object = cached.getObject();
+            Object fieldValue = field.get(object);
+            if (key == null ? fieldValue == null : key.equals(fieldValue))
             {
-                return cached.getObject();
+                objects.add((T) object);
             }
         }
-
-        return null;
-    }
-
-    protected DataTable getClassTable()
-    {
-        DataTable classTable = new DataTable(getTableName());
-        return classTable;
+        return true;
     }
 
-    public PersistedField getConcreteIdField()
+    /**
+     * Find all cached objects with a field in a range of values.
+     * 
+     * @param fieldName
+     *            The name of the field to search on
+     * @param min
+     *            The lowest value to find, or null for no minimum
+     * @param max
+     *            The value to find up to, or null for no maximum
+     * @param objects
+     *            A list to add the matching objects to
+     * @return false if there is no such field, or it is not Comparable
+     */
+    @SuppressWarnings("unchecked")
+    public <T> boolean findRange(String fieldName, Object min, Object max, List<T> objects)
     {
-        if (idField == null)
+        PersistedField field = getIndexableField(fieldName);
+        if (field == null)
         {
-            return null;
+            return false;
+        }
+        if (!FieldIndex.isSortable(field))
+        {
+            log.warning("Persistence: Can't search a range of " + getName() + "." + fieldName + ", it is not Comparable");
+            return false;
         }
-        return idField.getConcreteField();
-    }
 
-    public String getContainedIdName()
-    {
-        String idName = getTableName();
-        if (idField != null)
+        checkLoadCache();
+        checkFullyLoaded();
+        checkIndexQueue();
+
+        FieldIndex index = indexes.get(field.getName());
+        if (index != null && index.isSorted())
         {
-            idName = PersistedField.getContainedName(idName, idField.getDataName());
+            List<CachedObject> found = new ArrayList<CachedObject>();
+            index.findRange(min, max, found);
+            for (CachedObject cached : found)
+            {
+                cached.touch();
+                objects.add((T) cached.getObject());
+            }
+            return true;
         }
-        return idName;
-    }
 
-    public String getContainedIdName(PersistedField container)
-    {
-        String idName = container.getDataName();
-        if (idField != null)
+        min = FieldIndex.convertKey(field, min);
+        max = FieldIndex.convertKey(field, max);
+        for (CachedObject cached : cacheMap.values())
         {
-            idName = PersistedField.getContainedName(idName, idField.getDataName());
+            Object object = cached.getObject();
+            if (FieldIndex.inRange(field.get(object), min, max))
+            {
+                objects.add((T) object);
+            }
         }
-        return idName;
+        return true;
     }
 
-    public DataStore getDefaultStore()
+    public Object get(Object id)
     {
-        if (schema == null)
+        checkLoadCache();
+        PersistedField idField = getIdField();
+        if (idField == null)
+        {
+            return null;
+        }
+
+        Object result = getCached(id);
+        if (result == null && isLazy() && !fullyLoaded && loadState == LoadState.LOADED)
+        {
+            result = loadById(id);
+        }
+
+        return result;
+    }
+
+    public Object get(Object id, Object defaultValue)
+    {
+        checkLoadCache();
+        Object result = get(id);
+        if (result != null)
+        {
+            return result;
+        }
+
+        if (defaultValue == null)
+        {
+            return null;
+        }
+
+        CachedObject cached = addToCache(defaultValue);
+        return cached.getObject();
+    }
+
+    /**
+     * Write any unsaved changes to this class, so that a query run by the data
+     * store sees them.
+     * 
+     * Writes already queued in the background are waited for first.
+     * 
+     * @param store
+     *            The store to write to
+     * @return false if there are still changes the store doesn't have
+     */
+    protected boolean flush(DataStore store)
+    {
+        if (!hasUnsavedChanges())
+        {
+            return true;
+        }
+        if (hasPendingWrites())
+        {
+            persistence.waitForWrites();
+        }
+        if ((dirty || removedMap.size() > 0) && !save(store))
+        {
+            return false;
+        }
+        return !hasUnsavedChanges();
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> void getAll(List<T> objects)
+    {
+        checkLoadCache();
+        checkFullyLoaded();
+        for (CachedObject cachedObject : cacheMap.values())
+        {
+            Object object = cachedObject.getObject();
+            if (persistClass.isAssignableFrom(object.getClass()))
+            {
+                objects.add((T) object);
+            }
+        }
+    }
+
+    /**
+     * Look up an object in the cache, by id or by its stored id.
+     * 
+     * @param id
+     *            The id of the object
+     * @return The cached object, or null if not cached
+     */
+    protected Object getCached(Object id)
+    {
+        PersistedField idField = getIdField();
+        Object result = getById(idField, cacheMap, id);
+        if (result == null)
+        {
+            result = getById(idField.getConcreteField(), concreteIdMap, id);
+        }
+        return result;
+    }
+
+    /**
+     * Get all of the cached objects.
+     * 
+     * @return A copy of the cached objects
+     */
+    protected List<Object> getCachedObjects()
+    {
+        List<Object> objects = new ArrayList<Object>(cacheMap.size());
+        for (CachedObject cached : cacheMap.values())
+        {
+            objects.add(cached.getObject());
+        }
+        return objects;
+    }
+
+    protected Object getById(PersistedField idField, Map<Object, CachedObject> fromCache, Object id)
+    {
+        if (idField == null || id == null)
+        {
+            return null;
+        }
+        if (id.getClass().isAssignableFrom(idField.getType()))
+        {
+            CachedObject cached = fromCache.get(id);
+            if (cached != null)
+            {
+                cached.touch();
+                return cached.getObject();
+            }
+        }
+        else
+        {
+            // Try to do some fancy casting.
+            // This is mainly here to avoid the Integer/int problem.
+            id = DataType.convertValue(id, idField.getType());
+
+            CachedObject cached = fromCache.get(id);
+            if (cached != null)
+            {
+                cached.touch();
+                return cached.getObject();
+            }
+        }
+
+        return null;
+    }
+
+    protected DataTable getClassTable()
+    {
+        DataTable classTable = new DataTable(getTableName());
+        return classTable;
+    }
+
+    /**
+     * Convert an id, as passed to get(), to the id as it is stored in the
+     * data store.
+     * 
+     * @param id
+     *            The id or id object to convert
+     * @return The stored id value
+     */
+    protected Object getConcreteId(Object id)
+    {
+        if (id == null || idField == null)
+        {
+            return null;
+        }
+
+        PersistentClass referenceType = idField.getReferenceType();
+        if (referenceType != null)
+        {
+            if (referenceType.getType().isAssignableFrom(id.getClass()))
+            {
+                return referenceType.getIdData(id);
+            }
+            return referenceType.getConcreteId(id);
+        }
+
+        Class<?> idType = idField.getType();
+        if (!id.getClass().isAssignableFrom(idType))
+        {
+            id = DataType.convertValue(id, idType);
+        }
+        return id;
+    }
+
+    public PersistedField getConcreteIdField()
+    {
+        if (idField == null)
+        {
+            return null;
+        }
+        return idField.getConcreteField();
+    }
+
+    public String getContainedIdName()
+    {
+        String idName = getTableName();
+        if (idField != null)
+        {
+            idName = PersistedField.getContainedName(idName, idField.getDataName());
+        }
+        return idName;
+    }
+
+    public String getContainedIdName(PersistedField container)
+    {
+        String idName = container.getDataName();
+        if (idField != null)
+        {
+            idName = PersistedField.getContainedName(idName, idField.getDataName());
+        }
+        return idName;
+    }
+
+    public DataStore getDefaultStore()
+    {
+        if (schema == null)
         {
             return null;
         }
         return schema.getStore();
     }
 
+    public EvictionPolicy getEvictionPolicy()
+    {
+        return evictionPolicy;
+    }
+
     public EntityInfo getEntityInfo()
     {
         return entityInfo;
@@ -555,6 +1120,26 @@ public class PersistentClass implements PersistedClass
         return value;
     }
 
+    /**
+     * Find a field that can be searched on by name.
+     * 
+     * @param fieldName
+     *            The name of the field
+     * @return The field, or null if there is no such field, or it is a list
+     */
+    protected PersistedField getIndexableField(String fieldName)
+    {
+        for (PersistedField field : internalFields)
+        {
+            if (field.getName().equals(fieldName))
+            {
+                return field;
+            }
+        }
+        log.warning("Persistence: " + getName() + " has no field " + fieldName + " to search on");
+        return null;
+    }
+
     /**
      * getIdData will recurse down objects-as-id reference chains. This is for
      * persisting in the data store.
@@ -588,6 +1173,74 @@ public class PersistentClass implements PersistedClass
         return value;
     }
 
+    /**
+     * Build a row holding only the changed values of an object, plus its id.
+     * 
+     * @param updateTable
+     *            The table the row will be added to
+     * @param row
+     *            The full row of current values
+     * @param values
+     *            The current values of the row
+     * @param savedValues
+     *            The values as last saved
+     * @return A row to update, or null if nothing has changed
+     */
+    protected DataRow getUpdateRow(DataTable updateTable, DataRow row, List<Object> values, List<Object> savedValues)
+    {
+        if (savedValues == null || savedValues.size() != values.size())
+        {
+            // Shouldn't happen, but update everything just in case.
+            savedValues = null;
+        }
+
+        List<String> idNames = updateTable.getIdFieldNames();
+        List<DataField> fields = row.getFields();
+        DataRow updateRow = new DataRow(updateTable);
+        boolean changed = false;
+        for (int i = 0; i < fields.size(); i++)
+        {
+            DataField field = fields.get(i);
+            if (idNames.contains(field.getName()))
+            {
+                updateRow.add(field);
+                continue;
+            }
+
+            Object value = values.get(i);
+            Object savedValue = savedValues == null ? null : savedValues.get(i);
+            if (savedValues == null || (value == null ? savedValue != null : !value.equals(savedValue)))
+            {
+                updateRow.add(field);
+                changed = true;
+            }
+        }
+
+        return changed ? updateRow : null;
+    }
+
+    /**
+     * Capture the current state of an object, as it would be written to the
+     * data store.
+     * 
+     * @param instance
+     *            The object
+     * @return The object's current state
+     */
+    protected PersistedState getState(Object instance)
+    {
+        DataRow row = new DataRow(getClassTable());
+        populate(row, instance);
+        PersistedState state = new PersistedState(PersistedState.getValues(row));
+        for (PersistedList list : externalFields)
+        {
+            DataTable listTable = getListTable(list);
+            list.save(listTable, instance);
+            state.setList(list, PersistedState.getValues(listTable.getRows()));
+        }
+        return state;
+    }
+
     public PersistedField getIdField()
     {
         return idField;
@@ -599,6 +1252,76 @@ public class PersistentClass implements PersistedClass
         return listTable;
     }
 
+    /**
+     * Look up several objects by id at once.
+     * 
+     * Ids that aren't cached are loaded from the data store together, rather
+     * than one at a time.
+     * 
+     * @param ids
+     *            The ids of the objects to get
+     * @param missing
+     *            A list to add the ids that weren't found to, or null
+     * @return The object for each id, in the same order, with null for ids
+     *         that weren't found
+     */
+    public List<Object> getMany(Collection<?> ids, List<Object> missing)
+    {
+        checkLoadCache();
+        List<Object> results = new ArrayList<Object>(ids.size());
+        if (idField == null)
+        {
+            for (Object id : ids)
+            {
+                results.add(null);
+                if (missing != null)
+                {
+                    missing.add(id);
+                }
+            }
+            return results;
+        }
+
+        // Collect the stored ids of everything that isn't cached
+        boolean canLoad = isLazy() && !fullyLoaded && loadState == LoadState.LOADED;
+        List<Object> loadIds = new ArrayList<Object>();
+        for (Object id : ids)
+        {
+            Object result = getCached(id);
+            results.add(result);
+            if (result == null && canLoad)
+            {
+                Object concreteId = getConcreteId(id);
+                if (concreteId != null && !missingIds.containsKey(concreteId) && !removedMap.containsKey(id))
+                {
+                    loadIds.add(concreteId);
+                }
+            }
+        }
+
+        if (loadIds.size() > 0)
+        {
+            loadByIds(loadIds);
+        }
+
+        int index = 0;
+        for (Object id : ids)
+        {
+            Object result = results.get(index);
+            if (result == null && loadIds.size() > 0)
+            {
+                result = getCached(id);
+                results.set(index, result);
+            }
+            if (result == null && missing != null)
+            {
+                missing.add(id);
+            }
+            index++;
+        }
+        return results;
+    }
+
     public MigrationInfo getMigrationInfo()
     {
         return migrationInfo;
@@ -619,6 +1342,23 @@ public class PersistentClass implements PersistedClass
         return persistence;
     }
 
+    /**
+     * Get the columns of this class's table.
+     * 
+     * The plan is built when references are bound. If it is needed before
+     * then, it is built from the fields as they are.
+     * 
+     * @return This class's row plan
+     */
+    public RowPlan getRowPlan()
+    {
+        if (rowPlan == null)
+        {
+            rowPlan = new RowPlan(internalFields);
+        }
+        return rowPlan;
+    }
+
     public Schema getSchema()
     {
         return schema;
@@ -649,6 +1389,46 @@ public class PersistentClass implements PersistedClass
         return container != null;
     }
 
+    /**
+     * Check for saves queued in the background that haven't finished yet.
+     */
+    protected boolean hasPendingWrites()
+    {
+        synchronized (pendingWrites)
+        {
+            return pendingWrites.size() > 0;
+        }
+    }
+
+    /**
+     * Check for changes that haven't been written to the data store yet.
+     * 
+     * Queries run by the data store flush these first, since the store
+     * won't reflect them.
+     * 
+     * @return true if there are modified or removed objects, or pending
+     *         writes
+     */
+    protected boolean hasUnsavedChanges()
+    {
+        return dirty || removedMap.size() > 0 || hasPendingWrites();
+    }
+
+    /**
+     * Add a cached object to this class's indexes, or update its index
+     * entries.
+     * 
+     * @param cached
+     *            The object to index
+     */
+    protected void index(CachedObject cached)
+    {
+        for (FieldIndex index : indexes.values())
+        {
+            index.add(cached);
+        }
+    }
+
     public boolean isContainedClass()
     {
         return entityInfo.isContained();
@@ -659,99 +1439,313 @@ public class PersistentClass implements PersistedClass
         return dirty;
     }
 
-    /*
-     * Protected members
+    public boolean isLazy()
+    {
+        return entityInfo.getLoadMode() == LoadMode.LAZY && !contained;
+    }
+
+    /**
+     * Check to see if a query can be run by the data store, or must be run
+     * against the cache.
+     * 
+     * Unsaved changes are written before a query is run by the store, so
+     * they don't force a query to run against the cache.
+     * 
+     * @param query
+     *            The query to check
+     * @return true if the data store will run the query
+     * @see Query#isStoreQuery()
+     */
+    protected boolean isStoreQuery(Query<?> query)
+    {
+        checkLoadCache();
+        if (query.getDataQuery(null) == null)
+        {
+            return false;
+        }
+        return getDefaultStore().connect();
+    }
+
+    /*
+     * Protected members
+     */
+
+    public void load(DataRow row, Object o) throws InvalidDataException
+    {
+        getRowPlan().load(row, o);
+    }
+
+    /**
+     * Find the objects that match a query.
+     * 
+     * @param query
+     *            The query to run
+     * @return The matching objects, in order, or null on error
+     * @see Query#list()
+     */
+    protected List<Object> list(Query<?> query)
+    {
+        checkLoadCache();
+        DataQuery dataQuery = query.getDataQuery(null);
+        DataStore store = getDefaultStore();
+        if (dataQuery == null || !store.connect() || !flush(store))
+        {
+            checkFullyLoaded();
+            return query.apply(getCachedObjects());
+        }
+
+        DataTable classTable = getClassTable();
+        classTable.addIdFieldName(idField.getDataName());
+        if (!store.load(classTable, dataQuery))
+        {
+            return null;
+        }
+
+        try
+        {
+            return load(store, classTable, true);
+        }
+        catch (InvalidDataException e)
+        {
+            log.warning("Persistence: Error loading query results for " + schemaName + "." + name + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    protected void loadCache() throws InvalidDataException
+    {
+        loadCache(getDefaultStore());
+    }
+
+    protected void loadCache(DataStore store) throws InvalidDataException
+    {
+        if (!store.connect())
+        {
+            return;
+        }
+
+        // Stream the class table, so only one row is held in memory at a time
+        DataTable classTable = getClassTable();
+        InstanceLoader loader = new InstanceLoader();
+        LoadContext context = LoadContext.get();
+        context.beginReferences();
+        try
+        {
+            store.load(classTable, loader);
+        }
+        finally
+        {
+            context.endReferences();
+        }
+
+        loadLists(store, loader, false);
+        fullyLoaded = true;
+    }
+
+    /**
+     * Create and cache an object for each row of a class table, and then load
+     * their list data.
+     * 
+     * Rows for objects that are already cached are skipped, the cached object
+     * is kept.
+     * 
+     * @param store
+     *            The store to load list data from
+     * @param classTable
+     *            The loaded class data
+     * @param byId
+     *            If true, only load the list data for these objects.
+     *            Otherwise, load the entire list tables.
+     * @return The object for each row, in row order
+     */
+    protected List<Object> load(DataStore store, DataTable classTable, boolean byId) throws InvalidDataException
+    {
+        InstanceLoader loader = new InstanceLoader();
+
+        // Begin deferred referencing, to prevent the problem of DAO's
+        // referencing unloaded DAOs.
+        // DAOs will be loaded recursively as needed,
+        // and then all deferred references will be resolved afterward.
+        LoadContext context = LoadContext.get();
+        context.beginReferences();
+        try
+        {
+            for (DataRow row : classTable.getRows())
+            {
+                loader.handle(row);
+            }
+        }
+        finally
+        {
+            // Bind deferred references, to handle DAOs referencing other DAOs,
+            // even of the Same type.
+            // DAOs will be loaded recursively as needed, and then references
+            // bound when everything has been resolved.
+            context.endReferences();
+        }
+
+        loadLists(store, loader, byId);
+        return loader.results;
+    }
+
+    /**
+     * Load the list data for a set of newly created objects, and remember
+     * their saved state.
+     * 
+     * @param store
+     *            The store to load list data from
+     * @param loader
+     *            The objects that were created
+     * @param byId
+     *            If true, only load the list data for these objects.
+     *            Otherwise, load the entire list tables.
      */
-
-    public void load(DataRow row, Object o) throws InvalidDataException
+    protected void loadLists(DataStore store, InstanceLoader loader, boolean byId) throws InvalidDataException
     {
-        for (PersistedField field : internalFields)
+        List<Object> instances = loader.instances;
+        List<Object> instanceIds = loader.instanceIds;
+
+        // Defer load lists of entities
+        LoadContext context = LoadContext.get();
+        context.beginLists();
+        try
         {
-            if (field.isReadOnly())
+            // Load list data
+            if (externalFields.size() > 0 && instances.size() > 0)
             {
-                continue;
+                for (PersistedList list : externalFields)
+                {
+                    DataTable listTable = getListTable(list);
+                    if (byId)
+                    {
+                        listTable.addIdFieldName(getContainedIdName());
+                        store.loadIds(listTable, instanceIds);
+                    }
+                    else
+                    {
+                        store.load(listTable);
+                    }
+                    list.load(listTable, instances, context);
+                }
             }
+        }
+        finally
+        {
+            // Load any reference lists
+            context.endLists();
+        }
 
-            field.load(row, o);
+        // Remember what was loaded, so saves only write changes
+        for (int i = 0; i < instances.size(); i++)
+        {
+            Object concreteId = instanceIds.get(i);
+            CachedObject cached = concreteId == null ? null : concreteIdMap.get(concreteId);
+            if (cached != null)
+            {
+                cached.setSavedState(getState(instances.get(i)));
+                if (indexes.size() > 0)
+                {
+                    synchronized (indexQueue)
+                    {
+                        indexQueue.add(cached);
+                    }
+                }
+            }
         }
     }
 
-    protected void loadCache() throws InvalidDataException
+    /**
+     * Load a single object from the data store, by id.
+     * 
+     * This is used by lazy-loaded classes on a cache miss.
+     * 
+     * @param id
+     *            The id of the object to load
+     * @return The loaded object, or null if not found
+     */
+    protected Object loadById(Object id)
     {
-        loadCache(getDefaultStore());
+        Object concreteId = getConcreteId(id);
+        if (concreteId == null || missingIds.containsKey(concreteId) || removedMap.containsKey(id))
+        {
+            return null;
+        }
+
+        List<Object> ids = new ArrayList<Object>();
+        ids.add(concreteId);
+        loadByIds(ids);
+
+        CachedObject cached = concreteIdMap.get(concreteId);
+        if (cached == null)
+        {
+            return null;
+        }
+        return cached.getObject();
     }
 
-    protected void loadCache(DataStore store) throws InvalidDataException
+    /**
+     * Load a set of objects from the data store, by id, in one query.
+     * 
+     * Ids that aren't found are remembered, so they aren't looked for again.
+     * 
+     * @param concreteIds
+     *            The stored ids of the objects to load
+     */
+    protected void loadByIds(List<Object> concreteIds)
     {
-        if (!store.connect())
+        DataStore store = getDefaultStore();
+        if (store == null || !store.connect())
         {
             return;
         }
 
         DataTable classTable = getClassTable();
-        store.load(classTable);
-
-        // Begin deferred referencing, to prevent the problem of DAO's
-        // referencing unloaded DAOs.
-        // DAOs will be loaded recursively as needed,
-        // and then all deferred references will be resolved afterward.
-        PersistedObject.beginDefer();
+        classTable.addIdFieldName(idField.getDataName());
+        if (!store.loadIds(classTable, concreteIds))
+        {
+            return;
+        }
 
-        for (DataRow row : classTable.getRows())
+        try
         {
-            Object newInstance = createInstance(row);
+            load(store, classTable, true);
+        }
+        catch (InvalidDataException e)
+        {
+            // Don't remember ids as missing if they couldn't be read
+            log.warning("Persistence: Error loading " + concreteIds.size() + " " + schemaName + "." + name + " objects by id: " + e.getMessage());
+            return;
+        }
 
-            if (newInstance != null)
+        for (Object concreteId : concreteIds)
+        {
+            if (!concreteIdMap.containsKey(concreteId))
             {
-                if (idField.isAutogenerated())
-                {
-                    int id = (Integer) idField.get(newInstance);
-                    if (id > maxId)
-                    {
-                        maxId = id;
-                    }
-                }
-
-                // cache by concrete (data) is from the store
-                // as well as the actual id
-                // This covers the case of "object as id", when that
-                // Object may not be loaded yet
-                DataField idData = row.get(idField.getDataName());
-                Object concreteId = idData.getValue();
-
-                addToCache(newInstance, concreteId);
+                missingIds.put(concreteId, true);
             }
         }
+    }
 
-        // Bind deferred references, to handle DAOs referencing other DAOs, even
-        // of the
-        // Same type.
-        // DAOs will be loaded recursively as needed, and then references bound
-        // when everything has been
-        // resolved.
-        PersistedObject.endDefer();
-
-        // Defer load lists of entities
-        PersistedList.beginDefer();
-
-        // Load list data
-        if (externalFields.size() > 0)
+    /**
+     * Pick up the next auto-generated id without loading the table.
+     * 
+     * @param store
+     *            The store to check
+     */
+    protected void loadMaxId(DataStore store)
+    {
+        if (idField == null || !idField.isAutogenerated())
         {
-            List<Object> instances = new ArrayList<Object>();
-            for (CachedObject cached : cacheMap.values())
-            {
-                instances.add(cached.getObject());
-            }
-            for (PersistedList list : externalFields)
-            {
-                DataTable listTable = getListTable(list);
-                store.load(listTable);
-                list.load(listTable, instances);
-            }
+            return;
         }
 
-        // Load any reference lists
-        PersistedList.endDefer();
+        DataTable classTable = getClassTable();
+        classTable.addIdFieldName(idField.getDataName());
+        long storedMax = store.getMaxId(classTable);
+        if (storedMax >= maxId)
+        {
+            maxId = storedMax + 1;
+        }
     }
 
     protected void logMigrateError(String schema, String table)
@@ -854,17 +1848,13 @@ public class PersistentClass implements PersistedClass
 
     public void populate(DataRow row, Object instance)
     {
-        for (PersistedField field : internalFields)
+        try
         {
-            try
-            {
-                field.save(row, instance);
-            }
-            catch (InvalidDataException e)
-            {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            }
+            getRowPlan().populate(row, instance);
+        }
+        catch (InvalidDataException e)
+        {
+            log.warning("Persistence: Error saving " + schemaName + "." + name + " object: " + e.getMessage());
         }
     }
 
@@ -880,10 +1870,7 @@ public class PersistentClass implements PersistedClass
 
     public void populateHeader(DataTable table)
     {
-        for (PersistedField field : internalFields)
-        {
-            field.populateHeader(table);
-        }
+        getRowPlan().populateHeader(table);
     }
 
     public void put(Object o)
@@ -900,6 +1887,7 @@ public class PersistentClass implements PersistedClass
         // TODO: merge
         co.setCached(cacheObjects);
         co.setObject(o);
+        index(co);
         dirty = true;
     }
 
@@ -909,13 +1897,44 @@ public class PersistentClass implements PersistedClass
         // TODO: merge...
     }
 
+    /**
+     * Start a query on the instances of this class.
+     * 
+     * @return A new query
+     */
+    public Query<Object> query()
+    {
+        return new Query<Object>(this, Object.class);
+    }
+
     public void remove(Object o)
     {
         Object id = getId(o);
-        removeFromCache(id);
+        if (id != null && isLazy() && !cacheMap.containsKey(id))
+        {
+            // Not loaded, or already evicted- still needs to be removed from
+            // the data store.
+            removedMap.put(id, new CachedObject(o));
+        }
+        else
+        {
+            removeFromCache(id);
+        }
         dirty = true;
     }
 
+    protected void removeCached(Map<Object, CachedObject> fromCache, Set<CachedObject> objects)
+    {
+        Iterator<Map.Entry<Object, CachedObject>> it = fromCache.entrySet().iterator();
+        while (it.hasNext())
+        {
+            if (objects.contains(it.next().getValue()))
+            {
+                it.remove();
+            }
+        }
+    }
+
     protected void removeFromCache(Object id)
     {
         CachedObject co = cacheMap.get(id);
@@ -932,9 +1951,48 @@ public class PersistentClass implements PersistedClass
         {
             concreteIdMap.remove(id);
         }
+        unindex(co);
         removedMap.put(id, co);
     }
 
+    /**
+     * Mark the objects in a snapshot that failed to write as modified again.
+     * 
+     * @param snapshot
+     *            The snapshot that failed
+     */
+    protected void restore(EntitySnapshot snapshot)
+    {
+        for (CachedObject cached : snapshot.savedObjects)
+        {
+            // The store may not match the saved state any more, so write
+            // everything next time.
+            cached.setSavedState(null);
+            cached.setDirty();
+        }
+        dirty = true;
+        endWrite(snapshot.savedObjects);
+    }
+
+    /**
+     * Forget about removed objects once their removal has been written.
+     * 
+     * @param snapshot
+     *            The snapshot that was written
+     */
+    protected void saved(EntitySnapshot snapshot)
+    {
+        endWrite(snapshot.savedObjects);
+        for (CachedObject removed : snapshot.removedObjects)
+        {
+            Object id = getId(removed.getObject());
+            if (id != null)
+            {
+                removedMap.remove(id);
+            }
+        }
+    }
+
     public void reset()
     {
         reset(getDefaultStore());
@@ -960,34 +2018,152 @@ public class PersistentClass implements PersistedClass
         maxId = 1;
     }
 
-    public void save()
+    public boolean save()
     {
-        save(getDefaultStore());
+        return save(getDefaultStore());
     }
 
-    public void save(DataStore store)
+    /**
+     * Save all modified data in a single transaction.
+     * 
+     * @param store
+     *            The store to save to
+     * @return true if success
+     */
+    public boolean save(DataStore store)
     {
-        if (loadState != LoadState.LOADED)
+        EntitySnapshot snapshot = snapshot();
+        if (snapshot == null)
         {
-            return;
+            return true;
         }
-        if (!dirty)
+        List<EntitySnapshot> snapshots = new ArrayList<EntitySnapshot>();
+        snapshots.add(snapshot);
+        return EntitySnapshot.write(store, snapshots);
+    }
+
+    public boolean save(List<CachedObject> instances)
+    {
+        return save(instances, getDefaultStore());
+    }
+
+    public boolean save(List<CachedObject> instances, DataStore store)
+    {
+        List<EntitySnapshot> snapshots = new ArrayList<EntitySnapshot>();
+        snapshots.add(snapshot(instances, false));
+        return EntitySnapshot.write(store, snapshots);
+    }
+
+    /**
+     * Read some fields of the objects that match a query.
+     * 
+     * @param query
+     *            The query to run
+     * @param fields
+     *            The fields to read
+     * @return The values of the fields for each matching object, or null on
+     *         error
+     * @see Query#select(String...)
+     */
+    protected List<Object[]> select(Query<?> query, List<PersistedField> fields)
+    {
+        return select(query, fields, false);
+    }
+
+    /**
+     * Read some fields of the objects that match a query.
+     * 
+     * @param query
+     *            The query to run
+     * @param fields
+     *            The fields to read
+     * @param storeOnly
+     *            true to only run the query in the data store, without
+     *            touching the cache, so it can be run off of the main thread
+     * @return The values of the fields for each matching object, or null on
+     *         error, or if storeOnly is set and the store can't run the query
+     *         right now
+     * @see Query#selectInStore(String...)
+     */
+    protected List<Object[]> select(Query<?> query, List<PersistedField> fields, boolean storeOnly)
+    {
+        DataQuery dataQuery = query.getDataQuery(fields);
+        DataStore store = getDefaultStore();
+        List<Object[]> results = new ArrayList<Object[]>();
+        if (storeOnly)
         {
-            return;
+            if (!canRunInStore(dataQuery, store))
+            {
+                return null;
+            }
+        }
+        else
+        {
+            checkLoadCache();
+            if (dataQuery == null || !store.connect() || !flush(store))
+            {
+                checkFullyLoaded();
+                for (Object o : query.apply(getCachedObjects()))
+                {
+                    results.add(query.getValues(fields, o));
+                }
+                return results;
+            }
         }
 
-        // Drop removed objects
-        Collection<CachedObject> removedList = removedMap.values();
-        if (removedList.size() > 0)
+        DataTable classTable = getClassTable();
+        if (!store.load(classTable, dataQuery))
+        {
+            return null;
+        }
+        for (DataRow row : classTable.getRows())
         {
-            DataTable clearTable = getClassTable();
-            populate(clearTable, removedList);
-            store.clear(clearTable);
+            results.add(query.getValues(fields, row));
+        }
+        return results;
+    }
+
+    /**
+     * Set the policy used to evict objects from this class's cache.
+     * 
+     * This only has an effect on lazy-loaded classes.
+     * 
+     * @param evictionPolicy
+     *            The policy to use, or null to never evict
+     */
+    public void setEvictionPolicy(EvictionPolicy evictionPolicy)
+    {
+        this.evictionPolicy = evictionPolicy;
+    }
+
+    public void setMigrationInfo(MigrationInfo migrationInfo)
+    {
+        this.migrationInfo = migrationInfo;
+    }
+
+    public void setSchema(Schema schema)
+    {
+        this.schema = schema;
+    }
 
-            removedMap.clear();
+    /**
+     * Take a snapshot of all modified and removed objects.
+     * 
+     * The snapshotted objects are marked as saved.
+     * 
+     * @return The snapshot, or null if there is nothing to save
+     */
+    protected EntitySnapshot snapshot()
+    {
+        if (loadState != LoadState.LOADED)
+        {
+            return null;
+        }
+        if (!dirty)
+        {
+            return null;
         }
 
-        // Save dirty objects
         List<CachedObject> dirtyObjects = new ArrayList<CachedObject>();
         for (CachedObject cached : cacheMap.values())
         {
@@ -997,61 +2173,121 @@ public class PersistentClass implements PersistedClass
             }
         }
 
-        save(dirtyObjects, store);
         dirty = false;
+        EntitySnapshot snapshot = snapshot(dirtyObjects, true);
+        if (snapshot.isEmpty())
+        {
+            return null;
+        }
+        return snapshot;
     }
 
-    public void save(List<CachedObject> instances)
+    protected EntitySnapshot snapshot(List<CachedObject> instances, boolean includeRemoved)
     {
-        save(instances, getDefaultStore());
-    }
+        EntitySnapshot snapshot = new EntitySnapshot(this);
 
-    public void save(List<CachedObject> instances, DataStore store)
-    {
-        if (!store.connect())
+        if (includeRemoved && removedMap.size() > 0)
         {
-            return;
+            snapshot.removedTable = getClassTable();
+            snapshot.removedTable.addIdFieldName(idField.getDataName());
+            // Removed objects stay in the removed map until the removal has
+            // been written, so lazy loading won't bring them back.
+            for (CachedObject removed : removedMap.values())
+            {
+                snapshot.removedObjects.add(removed);
+                snapshot.removedIds.add(getIdData(removed.getObject()));
+            }
         }
 
-        // Save main class data
-        DataTable classTable = getClassTable();
-        populate(classTable, instances);
-        store.save(classTable);
+        snapshot.classTable = getClassTable();
+        snapshot.updateTable = getClassTable();
+        snapshot.updateTable.addIdFieldName(idField.getDataName());
 
-        // Save list data
         for (PersistedList list : externalFields)
         {
             DataTable listTable = getListTable(list);
-            List<Object> instanceIds = new ArrayList<Object>();
+            listTable.addIdFieldName(getContainedIdName());
+            snapshot.listTables.add(listTable);
+            List<Object> listIds = new ArrayList<Object>();
+            listIds.addAll(snapshot.removedIds);
+            snapshot.listIds.add(listIds);
+            snapshot.listAdditions.add(getListTable(list));
+            snapshot.listRemovals.add(getListTable(list));
+        }
+
+        // Compare each object to its saved state, and only write what has
+        // changed.
+        for (CachedObject cached : instances)
+        {
+            Object instance = cached.getObject();
+            PersistedState savedState = null;
+            if (cached.getSavedState() instanceof PersistedState)
+            {
+                savedState = (PersistedState) cached.getSavedState();
+            }
 
-            for (CachedObject instance : instances)
+            DataRow row = new DataRow(snapshot.classTable);
+            populate(row, instance);
+            PersistedState newState = new PersistedState(PersistedState.getValues(row));
+
+            // Objects with contained ids have no single id column to update
+            // by, so always write the whole row.
+            if (savedState == null || row.get(idField.getDataName()) == null)
+            {
+                snapshot.classTable.addRow(row);
+            }
+            else
             {
-                Object id = getIdData(instance.getObject());
-                instanceIds.add(id);
-                list.save(listTable, instance.getObject());
+                DataRow updateRow = getUpdateRow(snapshot.updateTable, row, newState.getValues(), savedState.getValues());
+                if (updateRow != null)
+                {
+                    snapshot.updateTable.addRow(updateRow);
+                }
             }
 
-            // First, delete removed items
-            store.clearIds(listTable, instanceIds);
+            Object id = getIdData(instance);
+            for (int i = 0; i < externalFields.size(); i++)
+            {
+                PersistedList list = externalFields.get(i);
+                DataTable listTable = snapshot.listTables.get(i);
+                List<DataRow> listRows = listTable.getRows();
+                int firstRow = listRows.size();
+                list.save(listTable, instance);
+                List<DataRow> instanceRows = listRows.subList(firstRow, listRows.size());
+                List<List<Object>> listState = PersistedState.getValues(instanceRows);
+                newState.setList(list, listState);
+
+                List<List<Object>> savedList = savedState == null ? null : savedState.getList(list);
+                if (savedList != null && listState.equals(savedList))
+                {
+                    // Unchanged, don't re-write this list
+                    instanceRows.clear();
+                }
+                else if (!list.diff(savedList, instanceRows, snapshot.listAdditions.get(i), snapshot.listRemovals.get(i)))
+                {
+                    snapshot.listIds.get(i).add(id);
+                }
+            }
 
-            // Save new list data
-            store.save(listTable);
+            cached.setSavedState(newState);
         }
 
         for (CachedObject cached : instances)
         {
             cached.setSaved();
+            snapshot.savedObjects.add(cached);
         }
-    }
+        beginWrite(snapshot.savedObjects);
 
-    public void setMigrationInfo(MigrationInfo migrationInfo)
-    {
-        this.migrationInfo = migrationInfo;
+        return snapshot;
     }
 
-    public void setSchema(Schema schema)
+    protected void unindex(CachedObject cached)
     {
-        this.schema = schema;
+        for (FieldIndex index : indexes.values())
+        {
+            index.remove(cached);
+        }
     }
 
     public boolean validate() throws InvalidPersistedClassException
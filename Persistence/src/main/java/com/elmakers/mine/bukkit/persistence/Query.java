@@ -0,0 +1,499 @@
+package com.elmakers.mine.bukkit.persistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.elmakers.mine.bukkit.data.DataQuery;
+import com.elmakers.mine.bukkit.data.DataQuery.Operator;
+import com.elmakers.mine.bukkit.data.DataRow;
+import com.elmakers.mine.bukkit.data.DataType;
+
+/**
+ * A query on the instances of a persisted class.
+ * 
+ * Build a query with where(), orderBy(), limit() and offset(), then run it
+ * with list(), count() or select(). For example:
+ * 
+ * List<PlayerData> top = persistence.query(PlayerData.class).where("online",
+ * true).orderBy("lastLogin", false).limit(10).list();
+ * 
+ * Queries are run by the data store where possible, so only the matching
+ * objects are read. Changes to the persisted class that haven't been written
+ * yet are saved first, so the store sees them. Queries that use a contained
+ * field are run against the cache instead.
+ * 
+ * Reference fields are compared by the id of the referenced object- either
+ * the object or its id may be used as a value.
+ * 
+ * @author NathanWolf
+ * 
+ * @param <T>
+ *            The type of object to find
+ */
+public class Query<T>
+{
+    class FieldCondition
+    {
+        public final PersistedField field;
+        public final Operator       operator;
+        public final Object         value;
+
+        public FieldCondition(PersistedField field, Operator operator, Object value)
+        {
+            this.field = field;
+            this.operator = operator;
+            this.value = value;
+        }
+    }
+
+    class FieldOrder
+    {
+        public final boolean        ascending;
+        public final PersistedField field;
+
+        public FieldOrder(PersistedField field, boolean ascending)
+        {
+            this.field = field;
+            this.ascending = ascending;
+        }
+    }
+
+    /**
+     * Get the value of a field that queries compare against.
+     * 
+     * @param field
+     *            The field
+     * @param o
+     *            The object to read
+     * @return The field's value, or the referenced object's id
+     */
+    protected static Object getKey(PersistedField field, Object o)
+    {
+        if (field instanceof PersistedObject)
+        {
+            return field.getDataValue(o);
+        }
+        return field.get(o);
+    }
+
+    protected final List<FieldCondition> conditions = new ArrayList<FieldCondition>();
+    protected int                        limit      = -1;
+    protected int                        offset     = 0;
+    protected final List<FieldOrder>     orders     = new ArrayList<FieldOrder>();
+    protected final PersistentClass      persistedClass;
+    protected final Class<T>             type;
+    protected boolean                    valid      = true;
+
+    public Query(PersistentClass persistedClass, Class<T> type)
+    {
+        this.persistedClass = persistedClass;
+        this.type = type;
+    }
+
+    /**
+     * Continue a query after the last object of a previous page.
+     * 
+     * Results are sorted by the field, and only objects with a greater value
+     * are returned. Unlike offset(), the data store doesn't need to read and
+     * skip the earlier pages, so each page costs the same no matter how far
+     * into the results it is. The field should be unique, such as the id.
+     * 
+     * @param fieldName
+     *            The field to page on
+     * @param lastKey
+     *            The field's value in the last object of the previous page, or
+     *            null for the first page
+     * @return This query
+     */
+    public Query<T> after(String fieldName, Object lastKey)
+    {
+        orderBy(fieldName);
+        if (lastKey != null)
+        {
+            where(fieldName, Operator.GREATER, lastKey);
+        }
+        return this;
+    }
+
+    /**
+     * Filter, sort and limit a set of objects in memory.
+     * 
+     * @param objects
+     *            The objects to query
+     * @return The matching objects, in order
+     */
+    protected List<Object> apply(Collection<Object> objects)
+    {
+        List<Object> results = new ArrayList<Object>();
+        for (Object o : objects)
+        {
+            if (matches(o))
+            {
+                results.add(o);
+            }
+        }
+
+        if (orders.size() > 0)
+        {
+            Collections.sort(results, new Comparator<Object>()
+            {
+                public int compare(Object o, Object other)
+                {
+                    for (FieldOrder order : orders)
+                    {
+                        int comparison = DataQuery.compare(getKey(order.field, o), getKey(order.field, other));
+                        if (comparison != 0)
+                        {
+                            return order.ascending ? comparison : -comparison;
+                        }
+                    }
+                    return 0;
+                }
+            });
+        }
+
+        int start = Math.min(offset, results.size());
+        int end = limit < 0 ? results.size() : Math.min(results.size(), start + limit);
+        return new ArrayList<Object>(results.subList(start, end));
+    }
+
+    /**
+     * Convert a query value to the form getKey() returns.
+     */
+    protected Object convertValue(PersistedField field, Object value)
+    {
+        if (value == null)
+        {
+            return null;
+        }
+
+        PersistentClass referenceType = field.getReferenceType();
+        if (field instanceof PersistedObject && referenceType != null)
+        {
+            if (referenceType.getType().isAssignableFrom(value.getClass()))
+            {
+                return referenceType.getIdData(value);
+            }
+            return value;
+        }
+        return FieldIndex.convertKey(field, value);
+    }
+
+    /**
+     * Count the matching objects.
+     * 
+     * Ordering, limit and offset are ignored.
+     * 
+     * @return The number of matching objects, or -1 on error
+     */
+    public int count()
+    {
+        if (!valid)
+        {
+            return -1;
+        }
+        return persistedClass.count(this);
+    }
+
+    /**
+     * Count the matching objects in the data store, without using the cache.
+     * 
+     * This may be called off of the main thread. It fails if the persisted
+     * class has changes that haven't been written yet, rather than writing
+     * them.
+     * 
+     * @return The number of matching objects, or -1 on error, or if the data
+     *         store can't run this query right now
+     * @see #isStoreQuery()
+     */
+    public int countInStore()
+    {
+        if (!valid)
+        {
+            return -1;
+        }
+        return persistedClass.count(this, true);
+    }
+
+    /**
+     * Get a field of the persisted class by name.
+     * 
+     * Marks this query as invalid if there is no such field.
+     */
+    protected PersistedField getField(String fieldName)
+    {
+        PersistedField field = persistedClass.getIndexableField(fieldName);
+        if (field == null)
+        {
+            valid = false;
+        }
+        return field;
+    }
+
+    /**
+     * Build a data store query for this query.
+     * 
+     * @param fields
+     *            The fields to read, or null for all fields
+     * @return The data store query, or null if this query can't be run by
+     *         the data store
+     */
+    protected DataQuery getDataQuery(List<PersistedField> fields)
+    {
+        DataQuery query = new DataQuery();
+        for (FieldCondition condition : conditions)
+        {
+            String column = getColumn(condition.field);
+            if (column == null)
+            {
+                return null;
+            }
+            query.where(column, condition.field.getDataType(), condition.operator, condition.value);
+        }
+        for (FieldOrder order : orders)
+        {
+            String column = getColumn(order.field);
+            if (column == null)
+            {
+                return null;
+            }
+            query.orderBy(column, order.ascending);
+        }
+        if (fields != null)
+        {
+            for (PersistedField field : fields)
+            {
+                String column = getColumn(field);
+                if (column == null)
+                {
+                    return null;
+                }
+                query.select(column);
+            }
+        }
+        query.limit(limit);
+        query.offset(offset);
+        return query;
+    }
+
+    /**
+     * Get the column a field is stored in.
+     * 
+     * @return The column name, or null if the field is stored in several
+     *         columns
+     */
+    protected String getColumn(PersistedField field)
+    {
+        RowPlan.Column column = persistedClass.getRowPlan().getColumn(field.getDataName());
+        if (column == null || column.getField() != field)
+        {
+            return null;
+        }
+        return column.getName();
+    }
+
+    /**
+     * Read the selected fields from a row returned by the data store.
+     */
+    protected Object[] getValues(List<PersistedField> fields, DataRow row)
+    {
+        Object[] values = new Object[fields.size()];
+        for (int i = 0; i < values.length; i++)
+        {
+            PersistedField field = fields.get(i);
+            Object value = row.getValue(field.getDataName());
+            if (!(field instanceof PersistedObject))
+            {
+                value = DataType.convertValue(value, field.getType());
+            }
+            values[i] = value;
+        }
+        return values;
+    }
+
+    /**
+     * Read the selected fields from a cached object.
+     */
+    protected Object[] getValues(List<PersistedField> fields, Object o)
+    {
+        Object[] values = new Object[fields.size()];
+        for (int i = 0; i < values.length; i++)
+        {
+            values[i] = getKey(fields.get(i), o);
+        }
+        return values;
+    }
+
+    /**
+     * Check to see if this query will be run by the data store.
+     * 
+     * Only queries run by the data store can use countInStore() and
+     * selectInStore(), which may be called off of the main thread. All other
+     * query methods must be called on the main thread.
+     * 
+     * @return true if the data store will run this query
+     */
+    public boolean isStoreQuery()
+    {
+        if (!valid)
+        {
+            return false;
+        }
+        return persistedClass.isStoreQuery(this);
+    }
+
+    /**
+     * Only return up to a number of objects.
+     * 
+     * @param limit
+     *            The maximum number of objects, or -1 for no limit
+     * @return This query
+     */
+    public Query<T> limit(int limit)
+    {
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * Find the matching objects.
+     * 
+     * Objects that aren't cached yet are loaded and cached.
+     * 
+     * @return The matching objects, or null on error
+     */
+    @SuppressWarnings("unchecked")
+    public List<T> list()
+    {
+        if (!valid)
+        {
+            return null;
+        }
+        List<Object> objects = persistedClass.list(this);
+        if (objects == null)
+        {
+            return null;
+        }
+        List<T> results = new ArrayList<T>(objects.size());
+        for (Object o : objects)
+        {
+            if (type.isInstance(o))
+            {
+                results.add((T) o);
+            }
+        }
+        return results;
+    }
+
+    protected boolean matches(Object o)
+    {
+        for (FieldCondition condition : conditions)
+        {
+            if (!condition.operator.matches(getKey(condition.field, o), condition.value))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Skip a number of objects, after sorting.
+     * 
+     * @param offset
+     *            The number of objects to skip
+     * @return This query
+     */
+    public Query<T> offset(int offset)
+    {
+        this.offset = offset;
+        return this;
+    }
+
+    public Query<T> orderBy(String fieldName)
+    {
+        return orderBy(fieldName, true);
+    }
+
+    public Query<T> orderBy(String fieldName, boolean ascending)
+    {
+        PersistedField field = getField(fieldName);
+        if (field != null)
+        {
+            orders.add(new FieldOrder(field, ascending));
+        }
+        return this;
+    }
+
+    /**
+     * Read only some of the fields of the matching objects.
+     * 
+     * Objects are not loaded into the cache. Reference fields are returned as
+     * the id of the referenced object.
+     * 
+     * @param fieldNames
+     *            The fields to read
+     * @return An array of values for each matching object, in the order the
+     *         fields were given, or null on error
+     */
+    public List<Object[]> select(String... fieldNames)
+    {
+        List<PersistedField> fields = new ArrayList<PersistedField>();
+        for (String fieldName : fieldNames)
+        {
+            fields.add(getField(fieldName));
+        }
+        if (!valid)
+        {
+            return null;
+        }
+        return persistedClass.select(this, fields);
+    }
+
+    /**
+     * Read only some of the fields of the matching objects in the data store,
+     * without using the cache.
+     * 
+     * This may be called off of the main thread. It fails if the persisted
+     * class has changes that haven't been written yet, rather than writing
+     * them.
+     * 
+     * @param fieldNames
+     *            The fields to read
+     * @return An array of values for each matching object, in the order the
+     *         fields were given, or null on error, or if the data store can't
+     *         run this query right now
+     * @see #select(String...)
+     */
+    public List<Object[]> selectInStore(String... fieldNames)
+    {
+        List<PersistedField> fields = new ArrayList<PersistedField>();
+        for (String fieldName : fieldNames)
+        {
+            fields.add(getField(fieldName));
+        }
+        if (!valid)
+        {
+            return null;
+        }
+        return persistedClass.select(this, fields, true);
+    }
+
+    public Query<T> where(String fieldName, Object value)
+    {
+        return where(fieldName, Operator.EQUAL, value);
+    }
+
+    public Query<T> where(String fieldName, Operator operator, Object value)
+    {
+        PersistedField field = getField(fieldName);
+        if (field != null)
+        {
+            conditions.add(new FieldCondition(field, operator, convertValue(field, value)));
+        }
+        return this;
+    }
+}
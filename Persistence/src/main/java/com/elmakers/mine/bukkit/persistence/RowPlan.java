@@ -0,0 +1,368 @@
+package com.elmakers.mine.bukkit.persistence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.elmakers.com.bukkit.data.exception.InvalidDataException;
+import com.elmakers.mine.bukkit.data.DataColumns;
+import com.elmakers.mine.bukkit.data.DataField;
+import com.elmakers.mine.bukkit.data.DataRow;
+import com.elmakers.mine.bukkit.data.DataTable;
+import com.elmakers.mine.bukkit.data.DataType;
+
+/**
+ * The columns of a persisted class's table, worked out once when the class is
+ * bound.
+ * 
+ * Column names and types can take some work to figure out- contained and
+ * reference fields build their names from other classes. A RowPlan does this
+ * once, so that loading and saving a row is a simple loop over the columns.
+ * 
+ * Contained objects are stored as several columns, these are handed off to
+ * the field, which uses the contained class's own plan.
+ * 
+ * Each column also picks how its values are read- int, long, double and enum
+ * fields are set straight from a row's primitive values, other fields go
+ * through the field's own conversion.
+ * 
+ * @author NathanWolf
+ * 
+ */
+public class RowPlan
+{
+    public static class Column
+    {
+        protected final boolean        autogenerated;
+        protected final boolean        delegated;
+        protected final PersistedField field;
+        protected final boolean        idField;
+        protected final String         name;
+        protected final int            ordinal;
+        protected final boolean        readOnly;
+        protected final Reader         reader;
+        protected final DataType       type;
+
+        public Column(PersistedField field, int ordinal)
+        {
+            this.field = field;
+            this.ordinal = ordinal;
+
+            // Contained objects, and references that failed to bind, are
+            // left to the field to handle.
+            boolean delegate = false;
+            if (field instanceof PersistedObject)
+            {
+                PersistentClass referenceType = field.getReferenceType();
+                delegate = referenceType == null || referenceType.hasContainer();
+            }
+            this.delegated = delegate;
+            this.name = delegated ? null : field.getDataName();
+            this.type = delegated ? null : field.getDataType();
+            this.idField = field.isIdField();
+            this.autogenerated = field.isAutogenerated();
+            this.readOnly = field.isReadOnly();
+            this.reader = delegated ? Reader.VALUE : Reader.getReader(field);
+        }
+
+        /**
+         * Create a data field for this column.
+         * 
+         * @param value
+         *            The column value
+         * @return A new data field
+         */
+        public DataField createField(Object value)
+        {
+            DataField dataField = new DataField(name, type, value);
+            dataField.setIdField(idField);
+            dataField.setAutogenerated(autogenerated);
+            return dataField;
+        }
+
+        public PersistedField getField()
+        {
+            return field;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public int getOrdinal()
+        {
+            return ordinal;
+        }
+
+        public Reader getReader()
+        {
+            return reader;
+        }
+
+        public DataType getType()
+        {
+            return type;
+        }
+
+        /**
+         * Check whether this column is handled by its field, rather than by
+         * the plan.
+         * 
+         * @return true for contained objects, which may be several columns
+         */
+        public boolean isDelegated()
+        {
+            return delegated;
+        }
+    }
+
+    /**
+     * Where each plan column is found in a particular column layout.
+     */
+    static class ColumnMapping
+    {
+        public final int[]       indexes;
+        public final DataColumns layout;
+
+        public ColumnMapping(DataColumns layout, int[] indexes)
+        {
+            this.layout = layout;
+            this.indexes = indexes;
+        }
+    }
+
+    /**
+     * How a column's values are read from a row.
+     */
+    public enum Reader
+    {
+        DOUBLE, ENUMERATION, INT, LONG, VALUE;
+
+        public static Reader getReader(PersistedField field)
+        {
+            if (field instanceof PersistedObject)
+            {
+                return VALUE;
+            }
+
+            Class<?> fieldType = field.getType();
+            if (fieldType == int.class)
+            {
+                return INT;
+            }
+            if (fieldType == long.class)
+            {
+                return LONG;
+            }
+            if (fieldType == double.class)
+            {
+                return DOUBLE;
+            }
+            if (fieldType != null && fieldType.isEnum())
+            {
+                return ENUMERATION;
+            }
+            return VALUE;
+        }
+    }
+
+    protected final Map<String, Column> columnMap;
+    protected final List<Column>        columns;
+    // The last layout rows were loaded from, rows of a table share one
+    protected volatile ColumnMapping    lastMapping = null;
+
+    public RowPlan(List<PersistedField> fields)
+    {
+        List<Column> planColumns = new ArrayList<Column>(fields.size());
+        Map<String, Column> planColumnMap = new HashMap<String, Column>();
+        for (PersistedField field : fields)
+        {
+            Column column = new Column(field, planColumns.size());
+            planColumns.add(column);
+            if (column.getName() != null)
+            {
+                planColumnMap.put(column.getName(), column);
+            }
+        }
+        columns = Collections.unmodifiableList(planColumns);
+        columnMap = Collections.unmodifiableMap(planColumnMap);
+    }
+
+    public Column getColumn(String name)
+    {
+        return columnMap.get(name);
+    }
+
+    public List<Column> getColumns()
+    {
+        return columns;
+    }
+
+    /**
+     * Find where each of this plan's columns is in a column layout.
+     * 
+     * @param layout
+     *            The layout of the rows being loaded
+     * @return The index of each plan column in the layout, or -1 if missing
+     */
+    protected int[] getIndexes(DataColumns layout)
+    {
+        ColumnMapping mapping = lastMapping;
+        if (mapping != null && mapping.layout == layout)
+        {
+            return mapping.indexes;
+        }
+
+        int[] indexes = new int[columns.size()];
+        for (int i = 0; i < indexes.length; i++)
+        {
+            Column column = columns.get(i);
+            indexes[i] = column.name == null ? -1 : layout.getIndex(column.name);
+        }
+        lastMapping = new ColumnMapping(layout, indexes);
+        return indexes;
+    }
+
+    /**
+     * Copy the values from a row into an object.
+     * 
+     * @param row
+     *            The row to read
+     * @param o
+     *            The object to update
+     * @throws InvalidDataException
+     *             If a value can't be set
+     */
+    public void load(DataRow row, Object o) throws InvalidDataException
+    {
+        DataColumns layout = row.getColumns();
+        if (layout != null)
+        {
+            int[] indexes = getIndexes(layout);
+            for (int i = 0; i < indexes.length; i++)
+            {
+                Column column = columns.get(i);
+                if (column.readOnly)
+                {
+                    continue;
+                }
+
+                if (column.delegated)
+                {
+                    column.field.load(row, o);
+                    continue;
+                }
+
+                // Silently drop missing data...
+                int index = indexes[i];
+                if (index >= 0)
+                {
+                    load(column, row, index, o);
+                }
+            }
+            return;
+        }
+
+        for (Column column : columns)
+        {
+            if (column.readOnly)
+            {
+                continue;
+            }
+
+            if (column.delegated)
+            {
+                column.field.load(row, o);
+                continue;
+            }
+
+            // Silently drop missing data...
+            DataField dataField = row.get(column.name);
+            if (dataField != null)
+            {
+                column.field.load(dataField, o);
+            }
+        }
+    }
+
+    /**
+     * Read a single value from a row, using the column's reader.
+     * 
+     * Nulls and values that aren't numbers go through the field's normal
+     * conversion.
+     */
+    protected void load(Column column, DataRow row, int index, Object o) throws InvalidDataException
+    {
+        if (column.reader != Reader.VALUE && row.isNumber(index))
+        {
+            switch (column.reader)
+            {
+                case DOUBLE:
+                    column.field.setDouble(o, row.getDouble(index));
+                    return;
+                case ENUMERATION:
+                    column.field.set(o, column.field.getEnumValue(row.getInt(index)));
+                    return;
+                case INT:
+                    column.field.setInt(o, row.getInt(index));
+                    return;
+                case LONG:
+                    column.field.setLong(o, row.getLong(index));
+                    return;
+            }
+        }
+        column.field.loadValue(row.getValue(index), o);
+    }
+
+    /**
+     * Add the values of an object to a row.
+     * 
+     * @param row
+     *            The row to add to
+     * @param o
+     *            The object to read
+     * @throws InvalidDataException
+     *             If a value can't be read
+     */
+    public void populate(DataRow row, Object o) throws InvalidDataException
+    {
+        for (Column column : columns)
+        {
+            if (column.delegated)
+            {
+                column.field.save(row, o);
+                continue;
+            }
+
+            Object value = o == null ? null : column.field.getDataValue(o);
+            row.add(column.createField(value));
+        }
+    }
+
+    /**
+     * Add this plan's columns to a table's header.
+     * 
+     * @param table
+     *            The table to add to, with a header row
+     */
+    public void populateHeader(DataTable table)
+    {
+        DataRow headerRow = table.getHeader();
+        for (Column column : columns)
+        {
+            if (column.delegated)
+            {
+                column.field.populateHeader(table);
+                continue;
+            }
+
+            if (headerRow != null)
+            {
+                headerRow.add(column.createField(null));
+            }
+        }
+    }
+}
@@ -61,8 +61,54 @@ public class Schema
         return defaultStore;
     }
 
+    /**
+     * Save all modified data in this schema in a single transaction.
+     * 
+     * @return true if success
+     */
+    public boolean save()
+    {
+        return write(snapshot());
+    }
+
     public void setName(String name)
     {
         this.name = name;
     }
+
+    /**
+     * Take a snapshot of all modified data in this schema.
+     * 
+     * @return A list of snapshots, one per modified class
+     */
+    protected List<EntitySnapshot> snapshot()
+    {
+        List<EntitySnapshot> snapshots = new ArrayList<EntitySnapshot>();
+        for (PersistentClass persistedClass : persistedClasses)
+        {
+            EntitySnapshot snapshot = persistedClass.snapshot();
+            if (snapshot != null)
+            {
+                snapshots.add(snapshot);
+            }
+        }
+        return snapshots;
+    }
+
+    /**
+     * Write a set of snapshots of this schema in a single transaction.
+     * 
+     * @param snapshots
+     *            The snapshots to write
+     * @return true if success
+     */
+    protected boolean write(List<EntitySnapshot> snapshots)
+    {
+        boolean success = EntitySnapshot.write(defaultStore, snapshots);
+        if (!success)
+        {
+            Persistence.getLogger().warning("Persistence: Failed to save schema " + name + ", changes will be retried on next save");
+        }
+        return success;
+    }
 }
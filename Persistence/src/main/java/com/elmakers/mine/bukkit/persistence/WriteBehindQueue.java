@@ -0,0 +1,190 @@
+package com.elmakers.mine.bukkit.persistence;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Writes schema snapshots to their data stores on a background thread.
+ * 
+ * Snapshots are taken on the calling thread, so the cached objects are copied
+ * while the server is not modifying them. Only the data store writes happen
+ * in the background, one schema at a time, in the order they were queued.
+ * 
+ * If too many saves are waiting to be written, queueing another save will
+ * block until there is room.
+ * 
+ * @author NathanWolf
+ * 
+ */
+public class WriteBehindQueue
+{
+    class SchemaWrite implements Runnable
+    {
+        public final Schema               schema;
+        public final List<EntitySnapshot> snapshots;
+
+        public SchemaWrite(Schema schema, List<EntitySnapshot> snapshots)
+        {
+            this.schema = schema;
+            this.snapshots = snapshots;
+        }
+
+        public void run()
+        {
+            schema.write(snapshots);
+        }
+    }
+
+    protected static Logger            log             = Persistence.getLogger();
+
+    protected static final int         defaultMaxQueue = 16;
+
+    protected final ThreadPoolExecutor executor;
+
+    public WriteBehindQueue()
+    {
+        this(defaultMaxQueue);
+    }
+
+    public WriteBehindQueue(int maxQueue)
+    {
+        BlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>(maxQueue);
+        executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, queue, new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "Persistence Writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, new RejectedExecutionHandler()
+        {
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor)
+            {
+                // Apply back-pressure: wait for room in the queue
+                if (executor.isShutdown())
+                {
+                    throw new RejectedExecutionException("Persistence: Writer has been shut down");
+                }
+                try
+                {
+                    executor.getQueue().put(r);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException(e);
+                }
+            }
+        });
+    }
+
+    public int getPendingCount()
+    {
+        return executor.getQueue().size();
+    }
+
+    public boolean isShutdown()
+    {
+        return executor.isShutdown();
+    }
+
+    /**
+     * Snapshot a schema and queue it to be written.
+     * 
+     * This must be called from the thread that modifies cached data- normally
+     * the main server thread.
+     * 
+     * @param schema
+     *            The schema to save
+     * @return false if the schema could not be queued, in which case it will
+     *         be retried on the next save
+     */
+    public boolean save(Schema schema)
+    {
+        List<EntitySnapshot> snapshots = schema.snapshot();
+        if (snapshots.size() == 0)
+        {
+            return true;
+        }
+
+        try
+        {
+            executor.execute(new SchemaWrite(schema, snapshots));
+        }
+        catch (RejectedExecutionException e)
+        {
+            log.warning("Persistence: Could not queue save of schema " + schema.getName() + ": " + e.getMessage());
+            for (EntitySnapshot snapshot : snapshots)
+            {
+                snapshot.restore();
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Wait for all queued writes to finish, then stop the writer thread.
+     * 
+     * @param timeout
+     *            The maximum time to wait, in milliseconds
+     */
+    public void shutdown(long timeout)
+    {
+        executor.shutdown();
+        try
+        {
+            if (!executor.awaitTermination(timeout, TimeUnit.MILLISECONDS))
+            {
+                log.warning("Persistence: Timed out waiting for " + getPendingCount() + " pending saves");
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Wait for all writes queued so far to finish.
+     */
+    public void waitForWrites()
+    {
+        if (executor.isShutdown())
+        {
+            return;
+        }
+
+        Future<?> marker = null;
+        try
+        {
+            marker = executor.submit(new Runnable()
+            {
+                public void run()
+                {
+                }
+            });
+            marker.get();
+        }
+        catch (RejectedExecutionException e)
+        {
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (ExecutionException e)
+        {
+        }
+    }
+}
@@ -6,11 +6,14 @@ import java.util.List;
 
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitScheduler;
 
+import com.elmakers.mine.bukkit.data.DataStore;
 import com.elmakers.mine.bukkit.persistence.PersistedField;
 import com.elmakers.mine.bukkit.persistence.PersistedList;
 import com.elmakers.mine.bukkit.persistence.Persistence;
 import com.elmakers.mine.bukkit.persistence.PersistentClass;
+import com.elmakers.mine.bukkit.persistence.Query;
 import com.elmakers.mine.bukkit.persistence.Schema;
 import com.elmakers.mine.bukkit.persistence.dao.Message;
 import com.elmakers.mine.bukkit.persistence.dao.PlayerData;
@@ -20,57 +23,63 @@ import com.elmakers.mine.bukkit.utilities.PluginUtilities;
 
 public class PersistenceCommands
 {
-    private Message       commandListMessage;
+    private final String      asyncParameter = "async";
 
-    private Message       dataSavedMessage;
+    private Message           commandListMessage;
 
-    private PluginCommand describeSubCommand;
+    private Message           dataSavedMessage;
 
-    private Message       entityDisplayMessage;
+    private PluginCommand     describeSubCommand;
 
-    private Message       entityListMessage;
+    private Message           entityDisplayMessage;
 
-    private Message       entityNotFoundMessage;
+    private Message           entityListMessage;
 
-    private PluginCommand helpCommand;
+    private Message           entityNotFoundMessage;
 
-    private PluginCommand listSubCommand;
+    private Message           entityPageMessage;
 
-    private final int     maxColumnWidth = 10;
+    private PluginCommand     helpCommand;
 
-    private final int     maxIdCount     = 50;
+    private PluginCommand     listSubCommand;
 
-    private final int     maxLineCount   = 10;
+    private final int         maxColumnWidth = 10;
 
-    private final int     maxLineLength  = 50;
+    private final int         maxIdCount     = 50;
 
-    private PluginCommand persistCommand;
+    private final int         maxLineCount   = 10;
 
-    private Persistence   persistence;
+    private final int         maxLineLength  = 50;
 
-    private Message       pluginListMessage;
+    private PluginCommand     persistCommand;
 
-    private Message       pluginNotFoundMessage;
+    private Persistence       persistence;
 
-    private Message       reloadingEntityMessage;
+    private PersistencePlugin plugin;
 
-    private PluginCommand reloadSubCommand;
+    private Message           pluginListMessage;
 
-    private PluginCommand resetSubCommand;
+    private Message           pluginNotFoundMessage;
 
-    private Message       resettingEntityMessage;
+    private Message           reloadingEntityMessage;
 
-    private PluginCommand saveSubCommand;
+    private PluginCommand     reloadSubCommand;
 
-    private Message       schemaDisplayMessage;
+    private PluginCommand     resetSubCommand;
 
-    private Message       schemaListMessage;
-    private PluginCommand suCommand;
-    private Message       suDisabledMessage;
-    private Message       suEnabledMessage;
+    private Message           resettingEntityMessage;
 
-    private Message       unknownEntityMessage;
-    private Message       unknownSchemaMessage;
+    private PluginCommand     saveSubCommand;
+
+    private Message           schemaDisplayMessage;
+
+    private Message           schemaListMessage;
+    private PluginCommand     suCommand;
+    private Message           suDisabledMessage;
+    private Message           suEnabledMessage;
+
+    private Message           unknownEntityMessage;
+    private Message           unknownSchemaMessage;
 
     protected void addCommands(CommandSender messageOutput, PluginCommand command, List<PluginCommand> allCommands)
     {
@@ -146,6 +155,7 @@ public class PersistenceCommands
     {
         PersistenceDefaults d = new PersistenceDefaults();
         this.persistence = persistence;
+        this.plugin = plugin;
 
         // Initialize Messages
 
@@ -155,6 +165,7 @@ public class PersistenceCommands
         entityDisplayMessage = utilities.getMessage("entityDisplay", d.entityDisplayMessage);
         schemaDisplayMessage = utilities.getMessage("schemaDisplay", d.schemaDisplayMessage);
         entityListMessage = utilities.getMessage("entityList", d.entityListMessage);
+        entityPageMessage = utilities.getMessage("entityPage", d.entityPageMessage);
         schemaListMessage = utilities.getMessage("schemaList", d.schemaListMessage);
         unknownSchemaMessage = utilities.getMessage("unknownSchema", d.unknownSchemaMessage);
         unknownEntityMessage = utilities.getMessage("unknownEntity", d.unknownEntityMessage);
@@ -383,7 +394,7 @@ public class PersistenceCommands
         }
     }
 
-    protected void listEntityIds(CommandSender messageOutput, String schemaName, String entityName)
+    protected void listEntityIds(final CommandSender messageOutput, final String schemaName, final String entityName, String lastId, boolean async)
     {
         PersistentClass persisted = getEntity(messageOutput, schemaName, entityName);
         if (persisted == null)
@@ -391,51 +402,62 @@ public class PersistenceCommands
             return;
         }
 
-        List<Object> entities = new ArrayList<Object>();
-        persisted.getAll(entities);
-
-        entityListMessage.sendTo(messageOutput, schemaName, entityName, entities.size());
+        // Page through the ids in order, reading one extra to see if there
+        // is another page. The data store only reads the ids shown.
+        final String idName = persisted.getIdField().getName();
+        final Query<Object> total = persisted.query();
+        final Query<Object> page = persisted.query();
+        page.after(idName, parseId(persisted.getIdField(), lastId)).limit(maxIdCount + 1);
 
-        int idCount = 0;
-        List<String> idLines = new ArrayList<String>();
-        String currentLine = "";
-        for (Object entity : entities)
+        if (async && total.isStoreQuery() && page.isStoreQuery())
         {
-            boolean firstInLine = currentLine.length() == 0;
-
-            if (!firstInLine)
-            {
-                currentLine += ", ";
-            }
-            else
+            final BukkitScheduler scheduler = plugin.getServer().getScheduler();
+            final DataStore store = persisted.getDefaultStore();
+            scheduler.scheduleAsyncDelayedTask(plugin, new Runnable()
             {
-                currentLine = " ";
-            }
-            String thisId = persisted.getIdData(entity).toString();
-            String newLine = currentLine + thisId;
-            if (newLine.length() > maxLineLength)
-            {
-                idLines.add(currentLine);
-                currentLine = " " + thisId;
-            }
-            else
-            {
-                currentLine = newLine;
-            }
-            idCount++;
-            if (idCount >= maxIdCount)
-            {
-                currentLine += "...";
-            }
-        }
-        if (currentLine.length() > 0)
-        {
-            idLines.add(currentLine);
-        }
-        for (String idLine : idLines)
-        {
-            messageOutput.sendMessage(idLine);
+                public void run()
+                {
+                    // These don't touch the cache, which is only safe to use
+                    // on the main thread
+                    int count = -1;
+                    List<Object[]> selected = null;
+                    try
+                    {
+                        count = total.countInStore();
+                        if (count >= 0)
+                        {
+                            selected = page.selectInStore(idName);
+                        }
+                    }
+                    finally
+                    {
+                        // Worker threads are pooled, don't leave them holding
+                        // a connection
+                        store.release();
+                    }
+
+                    final int entityCount = count;
+                    final List<Object[]> ids = selected;
+                    scheduler.scheduleSyncDelayedTask(plugin, new Runnable()
+                    {
+                        public void run()
+                        {
+                            // Changes were made in the meantime, write them
+                            // and list the ids here instead
+                            if (entityCount < 0 || ids == null)
+                            {
+                                sendEntityIds(messageOutput, schemaName, entityName, total.count(), page.select(idName));
+                                return;
+                            }
+                            sendEntityIds(messageOutput, schemaName, entityName, entityCount, ids);
+                        }
+                    });
+                }
+            });
+            return;
         }
+
+        sendEntityIds(messageOutput, schemaName, entityName, total.count(), page.select(idName));
     }
 
     protected void listSchemas(CommandSender messageOutput)
@@ -562,7 +584,20 @@ public class PersistenceCommands
 
         if (entityPath.length == 2)
         {
-            listEntityIds(messageOutput, schemaName, entityName);
+            String lastId = null;
+            boolean async = false;
+            for (int i = 1; i < parameters.length; i++)
+            {
+                if (parameters[i].equalsIgnoreCase(asyncParameter))
+                {
+                    async = true;
+                }
+                else
+                {
+                    lastId = parameters[i];
+                }
+            }
+            listEntityIds(messageOutput, schemaName, entityName, lastId, async);
             return true;
         }
 
@@ -649,6 +684,41 @@ public class PersistenceCommands
         return String.format("%1$-" + maxColumnWidth + "s", column);
     }
 
+    /**
+     * Convert an id typed in a command to the type of an id field.
+     * 
+     * @return The id, or null if it isn't valid for the field
+     */
+    protected Object parseId(PersistedField idField, String id)
+    {
+        if (id == null)
+        {
+            return null;
+        }
+
+        Class<?> idType = idField.getType();
+        try
+        {
+            if (idType == int.class || idType == Integer.class)
+            {
+                return Integer.parseInt(id);
+            }
+            if (idType == long.class || idType == Long.class)
+            {
+                return Long.parseLong(id);
+            }
+            if (idType == double.class || idType == Double.class)
+            {
+                return Double.parseDouble(id);
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+        return id;
+    }
+
     protected void reloadEntity(CommandSender messageOutput, String schemaName, String entityName)
     {
         PersistentClass persisted = getEntity(messageOutput, schemaName, entityName);
@@ -658,9 +728,69 @@ public class PersistenceCommands
         }
 
         reloadingEntityMessage.sendTo(messageOutput, schemaName, entityName);
+
+        // Make sure any queued saves land before reloading from the store
+        persistence.waitForWrites();
         persisted.clear();
     }
 
+    protected void sendEntityIds(CommandSender messageOutput, String schemaName, String entityName, int entityCount, List<Object[]> ids)
+    {
+        if (entityCount < 0 || ids == null)
+        {
+            return;
+        }
+
+        entityListMessage.sendTo(messageOutput, schemaName, entityName, entityCount);
+
+        boolean morePages = ids.size() > maxIdCount;
+        if (morePages)
+        {
+            ids = ids.subList(0, maxIdCount);
+        }
+
+        List<String> idLines = new ArrayList<String>();
+        String currentLine = "";
+        for (Object[] id : ids)
+        {
+            boolean firstInLine = currentLine.length() == 0;
+
+            if (!firstInLine)
+            {
+                currentLine += ", ";
+            }
+            else
+            {
+                currentLine = " ";
+            }
+            String thisId = String.valueOf(id[0]);
+            String newLine = currentLine + thisId;
+            if (newLine.length() > maxLineLength)
+            {
+                idLines.add(currentLine);
+                currentLine = " " + thisId;
+            }
+            else
+            {
+                currentLine = newLine;
+            }
+        }
+        if (currentLine.length() > 0)
+        {
+            idLines.add(currentLine);
+        }
+        for (String idLine : idLines)
+        {
+            messageOutput.sendMessage(idLine);
+        }
+
+        if (morePages)
+        {
+            Object lastId = ids.get(ids.size() - 1)[0];
+            entityPageMessage.sendTo(messageOutput, schemaName, entityName, lastId);
+        }
+    }
+
     protected void resetEntity(CommandSender messageOutput, String schemaName, String entityName)
     {
         PersistentClass persisted = getEntity(messageOutput, schemaName, entityName);
@@ -670,6 +800,7 @@ public class PersistenceCommands
         }
 
         resettingEntityMessage.sendTo(messageOutput, schemaName, entityName);
+        persistence.waitForWrites();
         persisted.reset();
     }
 
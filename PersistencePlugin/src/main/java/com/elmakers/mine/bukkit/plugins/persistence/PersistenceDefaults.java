@@ -9,10 +9,11 @@ class PersistenceDefaults
     public final String   entityDisplayMessage   = "Entity %s.%s:";
     public final String   entityListMessage      = "%s, %s : %d entities:";
     public final String   entityNotFoundMessage  = "Can't find entity: %s.%s with %s=%s";
+    public final String   entityPageMessage      = "More: /persist list %s.%s %s";
     public final String[] helpCommand            = { "phelp", "Get help on Persistence plugins", "<command | plugin>" };
 
     public final String[] listSubCommand         = { "list", "List entities or data", "<schema>.<entity>" };
-    public final String[] listUsage              = { "<schema>.<entity>.<id>" };
+    public final String[] listUsage              = { "<schema>.<entity>.<id>", "<schema>.<entity> [after id] [async]" };
 
     // Defaults
     public final String[] persistCommand         = { "persist", "Manage Persistence", null };
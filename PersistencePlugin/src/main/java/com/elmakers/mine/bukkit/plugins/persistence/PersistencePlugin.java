@@ -17,6 +17,7 @@ import org.bukkit.plugin.PluginDescriptionFile;
 import org.bukkit.plugin.PluginManager;
 import org.bukkit.plugin.java.JavaPlugin;
 import org.bukkit.util.BlockVector;
+import org.bukkit.util.config.Configuration;
 
 import com.elmakers.mine.bukkit.data.DataStoreProvider;
 import com.elmakers.mine.bukkit.groups.GroupManager;
@@ -48,6 +49,17 @@ public class PersistencePlugin extends JavaPlugin
     // TODO : support multiple perm files
     private static final String permissionsFile = "permissions.yml";
 
+    // Five minutes, in server ticks
+    private static final long   autoSaveTicks   = 20 * 60 * 5;
+
+    // Maximum time to wait for pending saves on shutdown, in milliseconds
+    private static final long   shutdownTimeout = 60000;
+
+    // Maximum time to spend loading data on startup, in milliseconds
+    private static final long   warmUpTimeout   = 120000;
+
+    private static final int    warmUpThreads   = 4;
+
 
     // TODO : Use Persistence.persistenceMap to track one persistence instance
     // per server
@@ -59,6 +71,7 @@ public class PersistencePlugin extends JavaPlugin
     private final PersistenceListener            listener        = new PersistenceListener();
     private List<Object>                         listeners       = null;
     private PermissionManager                    permissions     = null;
+    private int                                  autoSaveTask    = -1;
     private final Map<String, DataStoreProvider> providers       = new ConcurrentHashMap<String, DataStoreProvider>();
     private PluginUtilities                      utilities       = null;
 
@@ -197,10 +210,31 @@ public class PersistencePlugin extends JavaPlugin
         handler.initialize(this, getPersistence(), getUtilities());
         listener.initialize(getPersistence(), handler);
 
+        // Optionally load all data now, rather than when it is first used
+        Configuration config = getConfiguration();
+        if (persistence != null && config != null && config.getBoolean("warmup.enabled", false))
+        {
+            persistence.warmUp(config.getInt("warmup.threads", warmUpThreads), warmUpTimeout);
+        }
+
         PluginManager pm = getServer().getPluginManager();
 
         pm.registerEvent(Type.PLAYER_QUIT, listener, Priority.Normal, this);
         pm.registerEvent(Type.PLAYER_JOIN, listener, Priority.Normal, this);
+
+        // Periodically queue a save of modified data, and evict unused data
+        // that was saved in a previous pass
+        autoSaveTask = getServer().getScheduler().scheduleSyncRepeatingTask(this, new Runnable()
+        {
+            public void run()
+            {
+                if (persistence != null)
+                {
+                    persistence.evict();
+                    persistence.save();
+                }
+            }
+        }, autoSaveTicks, autoSaveTicks);
     }
 
     /*
@@ -229,9 +263,14 @@ public class PersistencePlugin extends JavaPlugin
      */
     public void onDisable()
     {
+        if (autoSaveTask != -1)
+        {
+            getServer().getScheduler().cancelTask(autoSaveTask);
+            autoSaveTask = -1;
+        }
         if (persistence != null)
         {
-            persistence.save();
+            persistence.shutdown(shutdownTimeout);
             persistence.clear();
             persistence.disconnect();
         }
@@ -1,11 +1,7 @@
 package com.elmakers.mine.bukkit.data.sql;
 
 import java.io.File;
-import java.util.List;
 
-import com.elmakers.mine.bukkit.data.DataField;
-import com.elmakers.mine.bukkit.data.DataRow;
-import com.elmakers.mine.bukkit.data.DataTable;
 import com.elmakers.mine.bukkit.data.DataType;
 
 public class SQLiteStore extends SqlStore
@@ -32,65 +28,6 @@ public class SQLiteStore extends SqlStore
         return "org.sqlite.JDBC";
     }
 
-    @Override
-    public String getMasterTableName()
-    {
-        return "sqlite_master";
-    }
-
-    @Override
-    public DataTable getTableHeader(String tableName)
-    {
-        DataTable currentTable = new DataTable(tableName);
-        currentTable.createHeader();
-        DataRow headerRow = currentTable.getHeader();
-
-        DataTable pragmaTable = new DataTable("pragma");
-        String pragmaSql = "PRAGMA TABLE_INFO(\"" + tableName + "\")";
-        load(pragmaTable, pragmaSql);
-
-        List<DataRow> pragmaRows = pragmaTable.getRows();
-        for (DataRow row : pragmaRows)
-        {
-            DataField nameField = row.get("name");
-            DataField typeField = row.get("type");
-
-            if (nameField == null || typeField == null)
-            {
-                continue;
-            }
-
-            String fieldName = (String) nameField.getValue();
-            String fieldType = (String) typeField.getValue();
-            DataType dataType = getTypeFromName(fieldType);
-
-            DataField newColumn = new DataField(fieldName, dataType);
-            headerRow.add(newColumn);
-        }
-
-        return currentTable;
-    }
-
-    // This is all really pointless since SqlLite doesn't even really type
-    // things :\
-    public DataType getTypeFromName(String typeName)
-    {
-        if (typeName.equalsIgnoreCase("INTEGER"))
-        {
-            return DataType.LONG;
-        }
-        else if (typeName.equalsIgnoreCase("REAL"))
-        {
-            return DataType.DOUBLE;
-        }
-        else if (typeName.equalsIgnoreCase("TEXT"))
-        {
-            return DataType.STRING;
-        }
-
-        return DataType.NULL;
-    }
-
     @Override
     public String getTypeName(DataType dataType)
     {
@@ -115,4 +52,14 @@ public class SQLiteStore extends SqlStore
         }
         return null;
     }
+
+    /**
+     * The bundled sqlite-jdbc is SQLite 3.7.2, which predates multi-row
+     * VALUES lists, so rows are batched one per statement instead.
+     */
+    @Override
+    public boolean supportsMultiRowInsert()
+    {
+        return false;
+    }
 }
@@ -0,0 +1,362 @@
+package com.elmakers.mine.bukkit.utilities;
+
+import java.util.LinkedList;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.plugin.Plugin;
+
+import com.elmakers.mine.bukkit.persistence.dao.BlockKey;
+import com.elmakers.mine.bukkit.persistence.dao.BlockList;
+import com.elmakers.mine.bukkit.persistence.dao.BoundingBox;
+import com.elmakers.mine.bukkit.persistence.dao.LongIndex;
+import com.elmakers.mine.bukkit.persistence.dao.MaterialList;
+
+/**
+ * Makes large block changes a little at a time, so that they don't stall the
+ * server.
+ * 
+ * Each tick, queued changes are made until a time budget runs out, and the
+ * rest are left for the next tick. Changes are made one chunk at a time, so
+ * that each chunk is only looked up and updated once.
+ * 
+ * Queued changes run in the order they were queued. Listeners are told how
+ * far each change has gotten at the end of every tick, and when it's done.
+ * 
+ * This should only be used from the main thread.
+ * 
+ * @author NathanWolf
+ * 
+ */
+public class BlockChangeScheduler implements Runnable
+{
+    abstract class Change
+    {
+        protected int                        changed = 0;
+        protected final BlockRequestListener listener;
+        protected boolean                    success = true;
+        protected final int                  total;
+
+        public Change(int total, BlockRequestListener listener)
+        {
+            this.total = total;
+            this.listener = listener;
+        }
+
+        /**
+         * Make the next block change.
+         * 
+         * @return false if there was nothing left to change
+         */
+        public abstract boolean step();
+    }
+
+    class FillChange extends Change
+    {
+        protected final BlockList    affected;
+        protected int                chunkX;
+        protected int                chunkZ;
+        protected final MaterialList destructable;
+        protected final int          lastChunkX;
+        protected final int          lastChunkZ;
+        protected final Material     material;
+        protected final int          maxX;
+        protected final int          maxY;
+        protected final int          maxZ;
+        protected final int          minX;
+        protected final int          minY;
+        protected final int          minZ;
+        protected final World        world;
+        protected int                x;
+        protected int                y;
+        protected int                z;
+
+        public FillChange(World world, BoundingBox area, Material material, MaterialList destructable, BlockList affected, BlockRequestListener listener)
+        {
+            super(getVolume(area), listener);
+            this.world = world;
+            this.material = material;
+            this.destructable = destructable;
+            this.affected = affected;
+
+            minX = area.getMin().getBlockX();
+            minY = area.getMin().getBlockY();
+            minZ = area.getMin().getBlockZ();
+            maxX = area.getMax().getBlockX();
+            maxY = area.getMax().getBlockY();
+            maxZ = area.getMax().getBlockZ();
+            lastChunkX = maxX - 1 >> 4;
+            lastChunkZ = maxZ - 1 >> 4;
+
+            chunkX = total == 0 ? lastChunkX + 1 : minX >> 4;
+            chunkZ = minZ >> 4;
+            x = minX;
+            y = minY;
+            z = minZ;
+        }
+
+        /**
+         * Move to the next block, finishing each column, then each chunk,
+         * before moving on.
+         */
+        protected void advance()
+        {
+            if (++y < maxY)
+            {
+                return;
+            }
+            y = minY;
+            if (++z < Math.min(maxZ, chunkZ + 1 << 4))
+            {
+                return;
+            }
+            z = Math.max(minZ, chunkZ << 4);
+            if (++x < Math.min(maxX, chunkX + 1 << 4))
+            {
+                return;
+            }
+
+            if (++chunkZ > lastChunkZ)
+            {
+                chunkZ = minZ >> 4;
+                chunkX++;
+            }
+            x = Math.max(minX, chunkX << 4);
+            z = Math.max(minZ, chunkZ << 4);
+        }
+
+        @Override
+        public boolean step()
+        {
+            if (chunkX > lastChunkX)
+            {
+                return false;
+            }
+
+            Block block = world.getBlockAt(x, y, z);
+            if (destructable == null || destructable.contains(block.getType()))
+            {
+                // Remember the block as it was, so it can be undone
+                if (affected != null)
+                {
+                    affected.add(block);
+                }
+                block.setType(material);
+            }
+            changed++;
+            advance();
+            return true;
+        }
+    }
+
+    class UndoChange extends Change
+    {
+        protected final BlockList blocks;
+        protected int             next = 0;
+        protected final int[]     order;
+
+        public UndoChange(BlockList blocks, BlockRequestListener listener)
+        {
+            super(blocks.size(), listener);
+            this.blocks = blocks;
+            this.order = getChunkOrder(blocks);
+        }
+
+        @Override
+        public boolean step()
+        {
+            if (next >= order.length)
+            {
+                return false;
+            }
+            if (!blocks.undo(order[next++]))
+            {
+                success = false;
+            }
+            changed++;
+            return true;
+        }
+    }
+
+    protected static final long defaultTickBudget = 5000000;
+
+    /**
+     * Sort the blocks in a list by chunk.
+     * 
+     * Chunks are kept in the order they're first seen in, and so are the
+     * blocks in each chunk.
+     * 
+     * @param blocks
+     *            The blocks to sort
+     * @return The indexes of the blocks in the list, in chunk order
+     */
+    protected static int[] getChunkOrder(BlockList blocks)
+    {
+        int size = blocks.size();
+        LongIndex chunks = new LongIndex();
+        int[] chunkIndexes = new int[size];
+        int[] counts = new int[16];
+        for (int i = 0; i < size; i++)
+        {
+            // Chunk keys have no y, so the world goes there
+            long chunkKey = BlockKey.getChunkKey(blocks.getBlockKey(i)) | blocks.getWorldId(i);
+            int chunk = chunks.get(chunkKey);
+            if (chunk == LongIndex.MISSING)
+            {
+                chunk = chunks.size();
+                chunks.put(chunkKey, chunk);
+                if (chunk == counts.length)
+                {
+                    int[] newCounts = new int[counts.length * 2];
+                    System.arraycopy(counts, 0, newCounts, 0, counts.length);
+                    counts = newCounts;
+                }
+            }
+            chunkIndexes[i] = chunk;
+            counts[chunk]++;
+        }
+
+        int start = 0;
+        for (int chunk = 0; chunk < chunks.size(); chunk++)
+        {
+            int count = counts[chunk];
+            counts[chunk] = start;
+            start += count;
+        }
+
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++)
+        {
+            order[counts[chunkIndexes[i]]++] = i;
+        }
+        return order;
+    }
+
+    protected static int getVolume(BoundingBox area)
+    {
+        int width = area.getMax().getBlockX() - area.getMin().getBlockX();
+        int height = area.getMax().getBlockY() - area.getMin().getBlockY();
+        int depth = area.getMax().getBlockZ() - area.getMin().getBlockZ();
+        if (width <= 0 || height <= 0 || depth <= 0)
+        {
+            return 0;
+        }
+        return width * height * depth;
+    }
+
+    protected final LinkedList<Change> changes    = new LinkedList<Change>();
+    protected final Plugin             plugin;
+    protected int                      taskId     = -1;
+    protected long                     tickBudget = defaultTickBudget;
+
+    public BlockChangeScheduler(Plugin plugin)
+    {
+        this.plugin = plugin;
+    }
+
+    /**
+     * Fill an area with a material, a little at a time.
+     * 
+     * This works like BoundingBox.fill().
+     * 
+     * @param world
+     *            The world to fill
+     * @param area
+     *            The area to fill
+     * @param material
+     *            The material to fill with
+     * @param destructable
+     *            The materials that may be replaced, or null to replace
+     *            everything
+     * @param affected
+     *            A BlockList to add the replaced blocks to, as they were
+     *            before, or null
+     * @param listener
+     *            A listener to tell about progress, or null
+     */
+    public void fill(World world, BoundingBox area, Material material, MaterialList destructable, BlockList affected, BlockRequestListener listener)
+    {
+        schedule(new FillChange(world, area, material, destructable, affected, listener));
+    }
+
+    /**
+     * Get the number of changes that haven't finished yet.
+     */
+    public int getPending()
+    {
+        return changes.size();
+    }
+
+    public long getTickBudget()
+    {
+        return tickBudget;
+    }
+
+    public void run()
+    {
+        long deadline = System.nanoTime() + tickBudget;
+        int steps = 0;
+        while (changes.size() > 0)
+        {
+            Change change = changes.getFirst();
+            while (change.step())
+            {
+                // Checking the time is slower than changing a block
+                if ((++steps & 63) == 0 && System.nanoTime() > deadline)
+                {
+                    if (change.listener != null)
+                    {
+                        change.listener.onBlockChangeProgress(change.changed, change.total);
+                    }
+                    return;
+                }
+            }
+
+            changes.removeFirst();
+            if (change.listener != null)
+            {
+                change.listener.onBlockChangesComplete(change.changed, change.success);
+            }
+        }
+
+        plugin.getServer().getScheduler().cancelTask(taskId);
+        taskId = -1;
+    }
+
+    protected void schedule(Change change)
+    {
+        changes.add(change);
+        if (taskId == -1)
+        {
+            taskId = plugin.getServer().getScheduler().scheduleSyncRepeatingTask(plugin, this, 1, 1);
+        }
+    }
+
+    /**
+     * Set how long to spend changing blocks each tick.
+     * 
+     * @param tickBudget
+     *            The time budget, in nanoseconds
+     */
+    public void setTickBudget(long tickBudget)
+    {
+        this.tickBudget = tickBudget;
+    }
+
+    /**
+     * Undo a list of blocks, a little at a time.
+     * 
+     * Blocks in chunks that aren't loaded are skipped, and the listener is
+     * told that the undo didn't succeed.
+     * 
+     * @param blocks
+     *            The blocks to put back
+     * @param listener
+     *            A listener to tell about progress, or null
+     */
+    public void undo(BlockList blocks, BlockRequestListener listener)
+    {
+        schedule(new UndoChange(blocks, listener));
+    }
+}
@@ -1,50 +1,266 @@
 package com.elmakers.mine.bukkit.utilities;
 
+import org.bukkit.World;
 import org.bukkit.block.Block;
-import org.bukkit.block.BlockFace;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitScheduler;
 
-import com.elmakers.mine.bukkit.persistence.dao.BlockData;
+import com.elmakers.mine.bukkit.persistence.dao.BlockKey;
 import com.elmakers.mine.bukkit.persistence.dao.BlockList;
+import com.elmakers.mine.bukkit.persistence.dao.LongIndex;
 
+/**
+ * Flood-fills outward from a block, calling a BlockRecurseAction on each
+ * block it reaches.
+ * 
+ * Blocks are visited breadth-first, nearest first, using a queue of
+ * BlockKeys and a LongIndex of the blocks already seen- so a fill of any
+ * size uses no stack, and doesn't create an object per block. The fill
+ * spreads from a block to its six neighbours only if the action returns true
+ * for it.
+ * 
+ * A fill stops spreading at maxRecursion steps from the start, or maxRadius
+ * blocks away from it on any axis, and stops altogether once maxBlocks blocks
+ * have been visited.
+ * 
+ * Every visited block is added to a BlockList before the action is
+ * performed on it, so the list can be used to undo the fill. The list is given
+ * to the action with setAffectedBlocks() when the fill is done.
+ * 
+ * @author NathanWolf
+ * 
+ */
 public class BlockRecurse
 {
-
-    protected int maxRecursion = 8;
-
-    public int recurse(Block startBlock, BlockRecurseAction recurseAction)
+    class Fill implements Runnable
     {
-        BlockList affectedBlocks = new BlockList();
-        recurse(startBlock, recurseAction, affectedBlocks, null, 0);
-        recurseAction.setAffectedBlocks(affectedBlocks);
-        return affectedBlocks.size();
-    }
+        protected final BlockRecurseAction action;
+        protected final BlockList          affectedBlocks = new BlockList();
+        protected int[]                    depths         = new int[64];
+        protected int                      head           = 0;
+        protected long[]                   queue          = new long[64];
+        protected int                      queued         = 0;
+        protected BukkitScheduler          scheduler      = null;
+        protected final long               sliceNanos;
+        protected final int                startX;
+        protected final int                startY;
+        protected final int                startZ;
+        protected int                      taskId         = -1;
+        protected final LongIndex          visited        = new LongIndex();
+        protected final World              world;
 
-    protected void recurse(Block block, BlockRecurseAction recurseAction, BlockList affectedBlocks, BlockFace nextFace, int rDepth)
-    {
-        if (nextFace != null)
+        public Fill(Block startBlock, BlockRecurseAction action, long sliceNanos)
         {
-            block = block.getFace(nextFace);
+            this.action = action;
+            this.sliceNanos = sliceNanos;
+            world = startBlock.getWorld();
+            startX = startBlock.getX();
+            startY = startBlock.getY();
+            startZ = startBlock.getZ();
+            enqueue(BlockKey.getKey(startX, startY, startZ), 0);
         }
-        if (affectedBlocks.contains(block))
+
+        protected void enqueue(long blockKey, int depth)
         {
-            return;
+            if (visited.put(blockKey, depth) != LongIndex.MISSING)
+            {
+                return;
+            }
+            if (queued == queue.length)
+            {
+                long[] newQueue = new long[queue.length * 2];
+                int[] newDepths = new int[queue.length * 2];
+                int first = queue.length - head;
+                System.arraycopy(queue, head, newQueue, 0, first);
+                System.arraycopy(queue, 0, newQueue, first, head);
+                System.arraycopy(depths, head, newDepths, 0, first);
+                System.arraycopy(depths, 0, newDepths, first, head);
+                queue = newQueue;
+                depths = newDepths;
+                head = 0;
+            }
+            int tail = (head + queued) % queue.length;
+            queue[tail] = blockKey;
+            depths[tail] = depth;
+            queued++;
         }
-        affectedBlocks.add(block);
 
-        if (!recurseAction.perform(block))
+        protected void enqueue(int x, int y, int z, int depth)
         {
-            return;
+            if (y < 0 || y >= worldHeight || !BlockKey.isValid(x, y, z))
+            {
+                return;
+            }
+            if (maxRadius > 0 && (Math.abs(x - startX) > maxRadius || Math.abs(y - startY) > maxRadius || Math.abs(z - startZ) > maxRadius))
+            {
+                return;
+            }
+            enqueue(BlockKey.getKey(x, y, z), depth);
         }
 
-        if (rDepth < maxRecursion)
+        /**
+         * Visit blocks until the fill is done, or a time has passed.
+         * 
+         * @param deadline
+         *            The System.nanoTime() to stop at, or 0 to run until done
+         * @return true if the fill is done
+         */
+        public boolean fill(long deadline)
         {
-            for (BlockFace face : BlockData.FACES)
+            int checked = 0;
+            while (queued > 0)
             {
-                if (nextFace == null || nextFace != BlockData.getReverseFace(face))
+                if (maxBlocks > 0 && affectedBlocks.size() >= maxBlocks)
                 {
-                    recurse(block, recurseAction, affectedBlocks, face, rDepth + 1);
+                    queued = 0;
+                    break;
                 }
+
+                // Checking the time is slower than visiting a block
+                if (deadline != 0 && (++checked & 63) == 0 && System.nanoTime() > deadline)
+                {
+                    return false;
+                }
+
+                long blockKey = queue[head];
+                int depth = depths[head];
+                head = (head + 1) % queue.length;
+                queued--;
+
+                int x = BlockKey.getX(blockKey);
+                int y = BlockKey.getY(blockKey);
+                int z = BlockKey.getZ(blockKey);
+                Block block = world.getBlockAt(x, y, z);
+                affectedBlocks.add(block);
+                if (!action.perform(block) || depth >= maxRecursion)
+                {
+                    continue;
+                }
+
+                int next = depth + 1;
+                enqueue(x - 1, y, z, next);
+                enqueue(x + 1, y, z, next);
+                enqueue(x, y, z - 1, next);
+                enqueue(x, y, z + 1, next);
+                enqueue(x, y + 1, z, next);
+                enqueue(x, y - 1, z, next);
             }
+
+            action.setAffectedBlocks(affectedBlocks);
+            return true;
+        }
+
+        public void run()
+        {
+            if (fill(System.nanoTime() + sliceNanos) && taskId != -1)
+            {
+                scheduler.cancelTask(taskId);
+                taskId = -1;
+            }
+        }
+    }
+
+    protected static final int worldHeight  = 128;
+
+    protected int              maxBlocks    = 0;
+    protected int              maxRadius    = 0;
+    protected int              maxRecursion = 8;
+
+    public int getMaxBlocks()
+    {
+        return maxBlocks;
+    }
+
+    public int getMaxRadius()
+    {
+        return maxRadius;
+    }
+
+    public int getMaxRecursion()
+    {
+        return maxRecursion;
+    }
+
+    /**
+     * Fill outward from a block, all at once.
+     * 
+     * @param startBlock
+     *            The block to start from
+     * @param recurseAction
+     *            The action to perform on each block
+     * @return The number of blocks visited
+     */
+    public int recurse(Block startBlock, BlockRecurseAction recurseAction)
+    {
+        Fill fill = new Fill(startBlock, recurseAction, 0);
+        fill.fill(0);
+        return fill.affectedBlocks.size();
+    }
+
+    /**
+     * Fill outward from a block, a little at a time.
+     * 
+     * Each server tick, blocks are visited for up to a number of
+     * milliseconds, until the fill is done. The first slice is run right
+     * away. The action's setAffectedBlocks() is called when the fill
+     * finishes.
+     * 
+     * This must be called from the main thread.
+     * 
+     * @param plugin
+     *            The plugin to schedule the fill for
+     * @param startBlock
+     *            The block to start from
+     * @param recurseAction
+     *            The action to perform on each block
+     * @param sliceMillis
+     *            The most time to spend filling each tick
+     * @return true if the fill finished right away
+     */
+    public boolean recurse(Plugin plugin, Block startBlock, BlockRecurseAction recurseAction, int sliceMillis)
+    {
+        long sliceNanos = sliceMillis * 1000000L;
+        Fill fill = new Fill(startBlock, recurseAction, sliceNanos);
+        if (fill.fill(System.nanoTime() + sliceNanos))
+        {
+            return true;
         }
+
+        fill.scheduler = plugin.getServer().getScheduler();
+        fill.taskId = fill.scheduler.scheduleSyncRepeatingTask(plugin, fill, 1, 1);
+        return false;
+    }
+
+    /**
+     * Set the most blocks a fill may visit.
+     * 
+     * @param maxBlocks
+     *            The block budget, or 0 for no limit
+     */
+    public void setMaxBlocks(int maxBlocks)
+    {
+        this.maxBlocks = maxBlocks;
+    }
+
+    /**
+     * Set how far from the start block a fill may reach on any axis.
+     * 
+     * @param maxRadius
+     *            The radius, in blocks, or 0 for no limit
+     */
+    public void setMaxRadius(int maxRadius)
+    {
+        this.maxRadius = maxRadius;
+    }
+
+    /**
+     * Set how many steps from the start block a fill may spread.
+     * 
+     * @param maxRecursion
+     *            The number of steps
+     */
+    public void setMaxRecursion(int maxRecursion)
+    {
+        this.maxRecursion = maxRecursion;
     }
 }
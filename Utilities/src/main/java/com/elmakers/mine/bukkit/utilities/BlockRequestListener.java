@@ -6,5 +6,27 @@ import org.bukkit.block.Block;
 
 public interface BlockRequestListener
 {
+    /**
+     * Called at the end of each tick that a scheduled block change is still
+     * running.
+     * 
+     * @param changed
+     *            The number of blocks changed so far
+     * @param total
+     *            The number of blocks to change
+     */
+    public void onBlockChangeProgress(int changed, int total);
+
+    /**
+     * Called when a scheduled block change is finished.
+     * 
+     * @param changed
+     *            The number of blocks changed
+     * @param success
+     *            false if some blocks couldn't be changed, because their chunks
+     *            weren't loaded
+     */
+    public void onBlockChangesComplete(int changed, boolean success);
+
     public void onBlockListLoaded(List<Block> blocks);
 }
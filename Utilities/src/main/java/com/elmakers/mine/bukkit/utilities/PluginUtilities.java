@@ -74,11 +74,17 @@ public class PluginUtilities
         // Let the plugin bind its transient command and message instances
         if (plugin.getCommands().isEmpty() && plugin.getMessages().isEmpty())
         {
-            List<Message> allMessages = new ArrayList<Message>();
-            List<PluginCommand> allCommands = new ArrayList<PluginCommand>();
-            persistence.getAll(allMessages, Message.class);
-            persistence.getAll(allCommands, PluginCommand.class);
-            plugin.initializeCache(allMessages, allCommands);
+            List<Message> pluginMessages = persistence.findBy(Message.class, "plugin", plugin);
+            List<PluginCommand> pluginCommands = persistence.findBy(PluginCommand.class, "plugin", plugin);
+            if (pluginMessages == null)
+            {
+                pluginMessages = new ArrayList<Message>();
+            }
+            if (pluginCommands == null)
+            {
+                pluginCommands = new ArrayList<PluginCommand>();
+            }
+            plugin.initializeCache(pluginMessages, pluginCommands);
         }
 
         playerSender = persistence.get("player", CommandSenderData.class);
@@ -1,49 +1,745 @@
 package com.elmakers.mine.bukkit.utilities;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.logging.Logger;
 
+import org.bukkit.Server;
+import org.bukkit.World;
 import org.bukkit.block.Block;
 
+import com.elmakers.mine.bukkit.persistence.Persistence;
+import com.elmakers.mine.bukkit.persistence.dao.BlockKey;
 import com.elmakers.mine.bukkit.persistence.dao.BlockList;
+import com.elmakers.mine.bukkit.persistence.dao.LongIndex;
 
+/**
+ * A player's history of block changes, which can be undone newest first, or
+ * by the last change to a particular block.
+ * 
+ * The queue can be limited by a number of actions, and by the number of
+ * blocks kept in memory. Given a log file, the oldest actions are written to
+ * it once there are too many blocks in memory, rather than dropped. Logged
+ * actions can still be undone- they are read back when needed. Use a separate
+ * log file for each player.
+ * 
+ * The log is an append-only file. Each action takes about 12 bytes per block,
+ * and is marked as removed in place when undone, so the log survives a
+ * restart. Once removed actions take up more than half of the log, the live
+ * actions are copied to a new log, which replaces the old one. Call close()
+ * when the player leaves, to log the actions still in memory.
+ * 
+ * Each block kept in memory takes about 13 bytes in its action, plus 24 to 48
+ * bytes in an index of the most recent action that changed each block, which
+ * makes finding the last change to a block a single lookup. Logged actions
+ * aren't indexed- only their bounds are kept in memory, and those are checked
+ * when no action in memory has changed a block, newest first, so that memory
+ * stays bounded by setMaxBlocks(), however large the log grows.
+ * 
+ * @author NathanWolf
+ * 
+ */
 public class UndoQueue
 {
-    private final LinkedList<BlockList> blockQueue = new LinkedList<BlockList>();
-    private int                         maxSize    = 0;
+    class Entry
+    {
+        public BlockList blocks;
+        public final int id;
+        public int       length = 0;
+        public int       maxX;
+        public int       maxZ;
+        public int       minX;
+        public int       minZ;
+        public long      offset = -1;
+        public final int size;
+
+        public Entry(int id, BlockList blocks)
+        {
+            this.id = id;
+            this.blocks = blocks;
+            size = blocks.size();
+            for (int i = 0; i < size; i++)
+            {
+                long blockKey = blocks.getBlockKey(i);
+                int x = BlockKey.getX(blockKey);
+                int z = BlockKey.getZ(blockKey);
+                if (i == 0 || x < minX)
+                {
+                    minX = x;
+                }
+                if (i == 0 || x > maxX)
+                {
+                    maxX = x;
+                }
+                if (i == 0 || z < minZ)
+                {
+                    minZ = z;
+                }
+                if (i == 0 || z > maxZ)
+                {
+                    maxZ = z;
+                }
+            }
+        }
+
+        public boolean contains(int x, int z)
+        {
+            return x >= minX && x <= maxX && z >= minZ && z <= maxZ;
+        }
+
+        public boolean overlaps(Entry other)
+        {
+            return minX <= other.maxX && maxX >= other.minX && minZ <= other.maxZ && maxZ >= other.minZ;
+        }
+    }
+
+    /**
+     * Puts a list back in the queue if it couldn't be completely undone, the
+     * same way undo() does when it isn't scheduled.
+     */
+    class RequeueListener implements BlockRequestListener
+    {
+        private final BlockList            blocks;
+        private final BlockRequestListener listener;
+
+        public RequeueListener(BlockList blocks, BlockRequestListener listener)
+        {
+            this.blocks = blocks;
+            this.listener = listener;
+        }
+
+        public void onBlockChangeProgress(int changed, int total)
+        {
+            if (listener != null)
+            {
+                listener.onBlockChangeProgress(changed, total);
+            }
+        }
+
+        public void onBlockChangesComplete(int changed, boolean success)
+        {
+            if (!success)
+            {
+                add(blocks);
+            }
+            if (listener != null)
+            {
+                listener.onBlockChangesComplete(changed, success);
+            }
+        }
+
+        public void onBlockListLoaded(List<Block> loaded)
+        {
+            if (listener != null)
+            {
+                listener.onBlockListLoaded(loaded);
+            }
+        }
+    }
+
+    private static final Logger       log             = Persistence.getLogger();
+    // Don't bother compacting logs smaller than this
+    private static final int          minCompactBytes = 64 * 1024;
+
+    private LongIndex[]               blockIndexes    = new LongIndex[0];
+    private long                      deadBytes       = 0;
+    private final LinkedList<Entry>   entries         = new LinkedList<Entry>();
+    private final Map<Integer, Entry> entryMap        = new HashMap<Integer, Entry>();
+    private int                       loggedEntries   = 0;
+    private RandomAccessFile          logFile         = null;
+    private File                      logPath         = null;
+    private int                       maxBlocks       = 0;
+    private int                       maxSize         = 0;
+    private int                       memoryBlocks    = 0;
+    private int                       nextId          = 0;
+    private BlockChangeScheduler      scheduler       = null;
+    private final Server              server;
+
+    public UndoQueue()
+    {
+        server = null;
+    }
+
+    /**
+     * Create an undo queue that logs old actions to a file.
+     * 
+     * Any actions already in the log are loaded, so they can be undone.
+     * 
+     * @param server
+     *            The server, used to find the worlds of logged actions
+     * @param file
+     *            The log file
+     */
+    public UndoQueue(Server server, File file)
+    {
+        this.server = server;
+        try
+        {
+            File folder = file.getParentFile();
+            if (folder != null)
+            {
+                folder.mkdirs();
+            }
+            logPath = file;
+            logFile = new RandomAccessFile(file, "rw");
+            readLog();
+        }
+        catch (IOException e)
+        {
+            log.warning("Persistence: Can't open undo log " + file.getName() + ", old actions will be dropped: " + e.getMessage());
+            clear();
+        }
+    }
 
     public void add(BlockList blocks)
     {
-        if (maxSize > 0 && blockQueue.size() > maxSize)
+        Entry entry = new Entry(nextId++, blocks);
+        index(entry, blocks);
+        entries.add(entry);
+        entryMap.put(entry.id, entry);
+        memoryBlocks += entry.size;
+
+        while (maxSize > 0 && entries.size() > maxSize)
+        {
+            Entry oldest = entries.getFirst();
+            remove(oldest, load(oldest));
+        }
+        spill();
+    }
+
+    /**
+     * Forget every action, and stop logging.
+     */
+    protected void clear()
+    {
+        entries.clear();
+        entryMap.clear();
+        blockIndexes = new LongIndex[0];
+        memoryBlocks = 0;
+        loggedEntries = 0;
+        deadBytes = 0;
+        if (logFile != null)
+        {
+            try
+            {
+                logFile.close();
+            }
+            catch (IOException e)
+            {
+                log.warning("Persistence: Error closing undo log " + logPath.getName() + ": " + e.getMessage());
+            }
+            logFile = null;
+        }
+    }
+
+    /**
+     * Write every action in memory to the log, and close it.
+     * 
+     * The queue is empty afterwards. The logged actions can be undone by
+     * opening the log again.
+     */
+    public void close()
+    {
+        if (logFile == null)
+        {
+            return;
+        }
+
+        for (Entry entry : entries)
+        {
+            if (entry.blocks != null && !write(entry))
+            {
+                break;
+            }
+        }
+        clear();
+    }
+
+    /**
+     * Copy the actions that haven't been removed to a new log, and replace
+     * the old log with it.
+     * 
+     * If the new log can't be written, the old one is kept as it is.
+     */
+    protected void compact()
+    {
+        File compactedPath = new File(logPath.getPath() + ".tmp");
+        List<Entry> logged = new ArrayList<Entry>(loggedEntries);
+        long[] offsets = new long[entries.size()];
+        RandomAccessFile compacted = null;
+        try
+        {
+            compacted = new RandomAccessFile(compactedPath, "rw");
+            compacted.setLength(0);
+            for (Entry entry : entries)
+            {
+                if (entry.blocks != null)
+                {
+                    continue;
+                }
+                byte[] record = new byte[entry.length];
+                logFile.seek(entry.offset);
+                logFile.readFully(record);
+                offsets[logged.size()] = compacted.getFilePointer();
+                compacted.write(record);
+                logged.add(entry);
+            }
+            compacted.close();
+            compacted = null;
+        }
+        catch (IOException e)
+        {
+            log.warning("Persistence: Can't compact undo log " + logPath.getName() + ": " + e.getMessage());
+            if (compacted != null)
+            {
+                try
+                {
+                    compacted.close();
+                }
+                catch (IOException closeError)
+                {
+                }
+            }
+            compactedPath.delete();
+            return;
+        }
+
+        try
+        {
+            logFile.close();
+            logFile = null;
+
+            // Not every platform can rename over an existing file
+            if (!logPath.delete())
+            {
+                compactedPath.delete();
+                logFile = new RandomAccessFile(logPath, "rw");
+                log.warning("Persistence: Can't replace undo log " + logPath.getName() + ", it won't be compacted");
+                return;
+            }
+            if (!compactedPath.renameTo(logPath))
+            {
+                // Keep using the new log where it is, for now
+                log.warning("Persistence: Can't rename compacted undo log to " + logPath.getName());
+                logPath = compactedPath;
+            }
+            logFile = new RandomAccessFile(logPath, "rw");
+        }
+        catch (IOException e)
+        {
+            log.warning("Persistence: Can't reopen undo log " + logPath.getName() + ", logged actions have been lost: " + e.getMessage());
+            dropLogged();
+            return;
+        }
+
+        for (int i = 0; i < logged.size(); i++)
+        {
+            logged.get(i).offset = offsets[i];
+        }
+        deadBytes = 0;
+    }
+
+    /**
+     * Forget the logged actions, after losing the log, and stop logging.
+     */
+    protected void dropLogged()
+    {
+        Iterator<Entry> it = entries.iterator();
+        while (it.hasNext())
+        {
+            Entry entry = it.next();
+            if (entry.blocks == null)
+            {
+                it.remove();
+                entryMap.remove(entry.id);
+            }
+        }
+        loggedEntries = 0;
+        deadBytes = 0;
+        logFile = null;
+    }
+
+    /**
+     * Remove an action from the queue's indexes, and from the log if it was
+     * logged.
+     * 
+     * Blocks that the action was the most recent change to are re-indexed to
+     * the next most recent action in memory that changed them, if any.
+     * 
+     * @param entry
+     *            The action to remove, which must already be out of the queue
+     * @param blocks
+     *            The action's blocks
+     */
+    protected void forget(Entry entry, BlockList blocks)
+    {
+        entryMap.remove(entry.id);
+        if (entry.blocks != null)
+        {
+            memoryBlocks -= entry.size;
+        }
+        else if (logFile != null)
+        {
+            loggedEntries--;
+            try
+            {
+                // Nothing in the log is needed any more
+                if (loggedEntries == 0)
+                {
+                    logFile.setLength(0);
+                    deadBytes = 0;
+                }
+                else
+                {
+                    logFile.seek(entry.offset + 4);
+                    logFile.writeByte(0);
+                    deadBytes += entry.length;
+                    if (deadBytes >= minCompactBytes && deadBytes * 2 > logFile.length())
+                    {
+                        compact();
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                log.warning("Persistence: Can't mark an action as undone in undo log " + logPath.getName() + ", it may come back after a restart: " + e.getMessage());
+            }
+        }
+        if (entry.blocks == null)
+        {
+            // Logged actions aren't indexed
+            return;
+        }
+
+        BlockList orphans = unindex(entry, blocks);
+        if (orphans.size() == 0)
+        {
+            return;
+        }
+
+        // Only older actions can be the next most recent change, and the
+        // newest of those wins. Logged actions are found by getLastEntry().
+        Entry orphanArea = new Entry(-1, orphans);
+        ListIterator<Entry> it = entries.listIterator(entries.size());
+        int found = 0;
+        while (found < orphans.size() && it.hasPrevious())
+        {
+            Entry older = it.previous();
+            if (older.id > entry.id || older.blocks == null || !older.overlaps(orphanArea))
+            {
+                continue;
+            }
+            BlockList olderBlocks = older.blocks;
+            for (int i = 0; i < orphans.size(); i++)
+            {
+                int worldId = orphans.getWorldId(i);
+                long blockKey = orphans.getBlockKey(i);
+                LongIndex index = getIndex(worldId);
+                if (!index.contains(blockKey) && olderBlocks.contains(worldId, blockKey))
+                {
+                    index.put(blockKey, older.id);
+                    found++;
+                }
+            }
+        }
+    }
+
+    protected LongIndex getIndex(int worldId)
+    {
+        if (worldId >= blockIndexes.length)
+        {
+            LongIndex[] indexes = new LongIndex[worldId + 1];
+            System.arraycopy(blockIndexes, 0, indexes, 0, blockIndexes.length);
+            blockIndexes = indexes;
+        }
+        if (blockIndexes[worldId] == null)
         {
-            blockQueue.removeFirst();
+            blockIndexes[worldId] = new LongIndex();
         }
-        blockQueue.add(blocks);
+        return blockIndexes[worldId];
     }
 
     public BlockList getLast()
     {
-        if (blockQueue.isEmpty())
+        if (entries.isEmpty())
         {
             return null;
         }
-        return blockQueue.getLast();
+        return load(entries.getLast());
     }
 
     public BlockList getLast(Block target)
     {
+        Entry entry = getLastEntry(target);
+        if (entry == null)
+        {
+            return null;
+        }
+        return load(entry);
+    }
+
+    /**
+     * Find the most recent action that changed a block.
+     * 
+     * Actions in memory are looked up in the index. Logged actions newer than
+     * that are checked newest first, reading only the ones whose bounds
+     * contain the block.
+     */
+    protected Entry getLastEntry(Block target)
+    {
+        int worldId = BlockKey.getWorldId(target.getWorld());
+        long blockKey = BlockKey.getKey(target);
+        Entry last = null;
+        if (worldId < blockIndexes.length && blockIndexes[worldId] != null)
+        {
+            int id = blockIndexes[worldId].get(blockKey);
+            if (id != LongIndex.MISSING)
+            {
+                last = entryMap.get(id);
+            }
+        }
+
+        // Entries are in id order
+        ListIterator<Entry> it = entries.listIterator(entries.size());
+        while (it.hasPrevious())
+        {
+            Entry entry = it.previous();
+            if (last != null && entry.id < last.id)
+            {
+                break;
+            }
+            if (entry.blocks == null && entry.contains(target.getX(), target.getZ()) && load(entry).contains(worldId, blockKey))
+            {
+                return entry;
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Get the number of blocks, in all actions, that are kept in memory.
+     * 
+     * The index of the last change to each of these blocks takes another 24
+     * to 48 bytes per block, on top of about 13 in the actions themselves.
+     */
+    public int getMemoryBlocks()
+    {
+        return memoryBlocks;
+    }
+
+    public int getSize()
+    {
+        return entries.size();
+    }
+
+    /**
+     * Make an action the most recent one for each of its blocks.
+     */
+    protected void index(Entry entry, BlockList blocks)
+    {
+        for (int i = 0; i < entry.size; i++)
+        {
+            getIndex(blocks.getWorldId(i)).put(blocks.getBlockKey(i), entry.id);
+        }
+    }
+
+    /**
+     * Get the blocks of an action, reading them from the log if needed.
+     * 
+     * Logged actions are not kept in memory once they're read.
+     * 
+     * @return The action's blocks, or an empty list if the log can't be read
+     */
+    protected BlockList load(Entry entry)
+    {
+        if (entry.blocks != null)
+        {
+            return entry.blocks;
+        }
+        BlockList blocks = null;
+        try
+        {
+            blocks = read(entry.offset);
+        }
+        catch (IOException e)
+        {
+            log.warning("Persistence: Can't read an action from undo log " + logPath.getName() + ", it has been lost: " + e.getMessage());
+            return new BlockList();
+        }
+        if (blocks == null)
+        {
+            log.warning("Persistence: An action in undo log " + logPath.getName() + " was already removed, it has been lost");
+            return new BlockList();
+        }
+        return blocks;
+    }
 
-        if (blockQueue.size() == 0)
+    /**
+     * Read an action from the log.
+     * 
+     * @param offset
+     *            The position of the action in the log
+     * @return The action's blocks, or null if the action has been removed
+     * @throws IOException
+     *             If the action can't be read, or is cut short or damaged
+     */
+    protected BlockList read(long offset) throws IOException
+    {
+        logFile.seek(offset);
+        int length = logFile.readInt();
+        if (length < 0 || offset + 5 + length > logFile.length())
+        {
+            throw new IOException("Action at " + offset + " is cut short");
+        }
+        boolean live = logFile.readByte() != 0;
+        if (!live)
         {
             return null;
         }
-        for (BlockList blocks : blockQueue)
+        byte[] payload = new byte[length];
+        logFile.readFully(payload);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        int size = in.readInt();
+        int[] worldIds = new int[in.readUnsignedByte()];
+        for (int i = 0; i < worldIds.length; i++)
+        {
+            worldIds[i] = getWorldId(in.readUTF());
+        }
+
+        BlockList blocks = new BlockList();
+        for (int i = 0; i < size; i++)
         {
-            if (blocks.contains(target))
+            long blockKey = in.readLong();
+            int worldIndex = in.readUnsignedByte();
+            if (worldIndex >= worldIds.length)
             {
-                return blocks;
+                throw new IOException("Action at " + offset + " has a bad world index");
             }
+            int worldId = worldIds[worldIndex];
+            int materialId = in.readShort();
+            byte data = in.readByte();
+            blocks.add(worldId, blockKey, materialId, data);
         }
-        return null;
+        return blocks;
+    }
+
+    /**
+     * Get the id of a logged world, making sure BlockKey can find it if it's
+     * loaded.
+     */
+    protected int getWorldId(String worldName)
+    {
+        int worldId = BlockKey.getWorldId(worldName);
+        if (BlockKey.getWorld(worldId) == null && server != null)
+        {
+            for (World world : server.getWorlds())
+            {
+                if (world.getName().equals(worldName))
+                {
+                    BlockKey.getWorldId(world);
+                }
+            }
+        }
+        return worldId;
+    }
+
+    /**
+     * Load the actions that haven't been undone from the log.
+     * 
+     * If the server stopped while an action was being written, or the log is
+     * otherwise damaged, the log is cut off at the first bad action and the
+     * actions before it are kept.
+     */
+    protected void readLog() throws IOException
+    {
+        long length = logFile.length();
+        long offset = 0;
+        while (offset < length)
+        {
+            BlockList blocks;
+            long next;
+            try
+            {
+                blocks = read(offset);
+                logFile.seek(offset);
+                next = offset + 5 + logFile.readInt();
+            }
+            catch (IOException e)
+            {
+                log.warning("Persistence: Undo log " + logPath.getName() + " is damaged, dropping the actions after the first " + loggedEntries + ": " + e.getMessage());
+                logFile.setLength(offset);
+                length = offset;
+                break;
+            }
+            if (blocks != null)
+            {
+                Entry entry = new Entry(nextId++, blocks);
+                entry.blocks = null;
+                entry.offset = offset;
+                entry.length = (int) (next - offset);
+                entries.add(entry);
+                entryMap.put(entry.id, entry);
+                loggedEntries++;
+            }
+            else
+            {
+                deadBytes += next - offset;
+            }
+            offset = next;
+        }
+        if (loggedEntries == 0)
+        {
+            logFile.setLength(0);
+            deadBytes = 0;
+        }
+        else if (deadBytes >= minCompactBytes && deadBytes * 2 > length)
+        {
+            compact();
+        }
+    }
+
+    /**
+     * Remove an action from the queue.
+     * 
+     * @param entry
+     *            The action to remove
+     * @param blocks
+     *            The action's blocks
+     * @see #forget(Entry, BlockList)
+     */
+    protected void remove(Entry entry, BlockList blocks)
+    {
+        entries.remove(entry);
+        forget(entry, blocks);
+    }
+
+    /**
+     * Limit the number of blocks kept in memory.
+     * 
+     * Once there are more, the oldest actions are written to the log, or
+     * dropped if there is no log. Each block in memory costs about 40 to 60
+     * bytes, counting the index; logged actions cost only their bounds.
+     * 
+     * @param maxBlocks
+     *            The most blocks to keep in memory, or 0 for no limit
+     */
+    public void setMaxBlocks(int maxBlocks)
+    {
+        this.maxBlocks = maxBlocks;
+        spill();
     }
 
     public void setMaxSize(int size)
@@ -51,34 +747,215 @@ public class UndoQueue
         maxSize = size;
     }
 
+    /**
+     * Make undos a little at a time, using a scheduler.
+     * 
+     * Once set, undo() returns as soon as the undo is scheduled. A list that
+     * can't be completely undone is put back at the end of the queue when the
+     * scheduler finishes with it.
+     * 
+     * @param scheduler
+     *            The scheduler to use, or null to undo right away
+     */
+    public void setScheduler(BlockChangeScheduler scheduler)
+    {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Write or drop the oldest actions in memory until there are few enough
+     * blocks in memory.
+     */
+    protected void spill()
+    {
+        if (maxBlocks <= 0)
+        {
+            return;
+        }
+
+        Iterator<Entry> it = entries.iterator();
+        while (memoryBlocks > maxBlocks && it.hasNext())
+        {
+            Entry entry = it.next();
+            if (entry.blocks == null || logFile != null && write(entry))
+            {
+                continue;
+            }
+            it.remove();
+            forget(entry, entry.blocks);
+        }
+    }
+
     public boolean undo()
     {
-        if (blockQueue.size() == 0)
+        return undo((BlockRequestListener) null);
+    }
+
+    public boolean undo(Block target)
+    {
+        return undo(target, null);
+    }
+
+    /**
+     * Undo the last action on a block.
+     * 
+     * @param target
+     *            The block to look for
+     * @param listener
+     *            A listener to tell about a scheduled undo, or null
+     * @return false if no action changed the block
+     */
+    public boolean undo(Block target, BlockRequestListener listener)
+    {
+        Entry entry = getLastEntry(target);
+        if (entry == null)
         {
             return false;
         }
 
-        BlockList blocks = blockQueue.removeLast();
+        BlockList lastActionOnTarget = load(entry);
+        remove(entry, lastActionOnTarget);
+        if (scheduler != null)
+        {
+            scheduler.undo(lastActionOnTarget, listener);
+            return true;
+        }
+        lastActionOnTarget.undo();
+
+        return true;
+    }
+
+    /**
+     * Undo the last action.
+     * 
+     * @param listener
+     *            A listener to tell about a scheduled undo, or null
+     * @return false if there is nothing to undo, or the undo wasn't scheduled
+     *         and some blocks' chunks weren't loaded
+     */
+    public boolean undo(BlockRequestListener listener)
+    {
+        if (entries.size() == 0)
+        {
+            return false;
+        }
+
+        Entry entry = entries.getLast();
+        BlockList blocks = load(entry);
+        remove(entry, blocks);
+        if (scheduler != null)
+        {
+            scheduler.undo(blocks, new RequeueListener(blocks, listener));
+            return true;
+        }
         if (!blocks.undo())
         {
-            blockQueue.add(blocks);
+            add(blocks);
             return false;
         }
         return true;
     }
 
-    public boolean undo(Block target)
+    /**
+     * Remove an action's blocks from the index.
+     * 
+     * @return The blocks that the action was the most recent change to
+     */
+    protected BlockList unindex(Entry entry, BlockList blocks)
+    {
+        BlockList orphans = new BlockList();
+        for (int i = 0; i < blocks.size(); i++)
+        {
+            int worldId = blocks.getWorldId(i);
+            long blockKey = blocks.getBlockKey(i);
+            LongIndex index = getIndex(worldId);
+            if (index.get(blockKey) == entry.id)
+            {
+                index.remove(blockKey);
+                orphans.add(worldId, blockKey, 0, (byte) 0);
+            }
+        }
+        return orphans;
+    }
+
+    /**
+     * Append an action to the log, and drop its blocks from memory.
+     * 
+     * @return false if the action couldn't be written
+     */
+    protected boolean write(Entry entry)
     {
-        BlockList lastActionOnTarget = getLast(target);
+        BlockList blocks = entry.blocks;
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(entry.size * 12 + 64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(entry.size);
+
+            // Worlds are written by name, since ids change between restarts
+            int[] worldIds = new int[4];
+            int worldCount = 0;
+            byte[] worldIndexes = new byte[entry.size];
+            for (int i = 0; i < entry.size; i++)
+            {
+                int worldId = blocks.getWorldId(i);
+                int worldIndex = 0;
+                while (worldIndex < worldCount && worldIds[worldIndex] != worldId)
+                {
+                    worldIndex++;
+                }
+                if (worldIndex == worldCount)
+                {
+                    if (worldCount == worldIds.length)
+                    {
+                        int[] newWorldIds = new int[worldCount * 2];
+                        System.arraycopy(worldIds, 0, newWorldIds, 0, worldCount);
+                        worldIds = newWorldIds;
+                    }
+                    // World indexes are written as a single byte
+                    if (worldCount == 256)
+                    {
+                        throw new IOException("Action changes blocks in more than 256 worlds");
+                    }
+                    worldIds[worldCount++] = worldId;
+                }
+                worldIndexes[i] = (byte) worldIndex;
+            }
+            out.writeByte(worldCount);
+            for (int i = 0; i < worldCount; i++)
+            {
+                out.writeUTF(BlockKey.getWorldName(worldIds[i]));
+            }
+
+            for (int i = 0; i < entry.size; i++)
+            {
+                out.writeLong(blocks.getBlockKey(i));
+                out.writeByte(worldIndexes[i]);
+                out.writeShort(blocks.getMaterialId(i));
+                out.writeByte(blocks.getMaterialData(i));
+            }
+            out.flush();
 
-        if (lastActionOnTarget == null)
+            long offset = logFile.length();
+            logFile.seek(offset);
+            logFile.writeInt(bytes.size());
+            logFile.writeByte(1);
+            logFile.write(bytes.toByteArray());
+            entry.offset = offset;
+            entry.length = 5 + bytes.size();
+        }
+        catch (IOException e)
         {
+            log.warning("Persistence: Can't write to undo log " + logPath.getName() + ": " + e.getMessage());
             return false;
         }
 
-        blockQueue.remove(lastActionOnTarget);
-        lastActionOnTarget.undo();
-
+        // The oldest actions are logged first, so there are no older actions
+        // in memory to re-index the blocks to.
+        unindex(entry, blocks);
+        entry.blocks = null;
+        memoryBlocks -= entry.size;
+        loggedEntries++;
         return true;
     }
 }